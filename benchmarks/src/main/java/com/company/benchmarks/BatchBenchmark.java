@@ -0,0 +1,85 @@
+package com.company.benchmarks;
+
+import com.company.Book;
+import com.company.Library;
+import com.company.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// A basket of books borrowed and returned one by one, a journal commit (and with the default
+// library.journal.syncEvery=1 an fsync) per book, against the same basket as two batches. The
+// results are per book: one borrow and one return.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class BatchBenchmark {
+    private static final int BOOKS = 10_000;
+    private static final int BASKET = 10;
+
+    private Path directory;
+    private Library library;
+    private User user;
+    private List<List<Book>> baskets;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("library-benchmark");
+        SyntheticData.writeLibrary(directory, SyntheticData.books(BOOKS, 42), SyntheticData.users(100));
+        library = new Library(directory);
+        user = library.getUser("user0");
+
+        baskets = new ArrayList<>();
+        List<Book> books = new ArrayList<>(library.getCatalog().getAllBooks());
+        for (int i = 0; i + BASKET <= books.size(); i += BASKET) {
+            baskets.add(books.subList(i, i + BASKET));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        library.shutdown();
+        LibraryState.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BASKET)
+    public void oneByOne() {
+        List<Book> basket = baskets.get(next++ % baskets.size());
+        for (Book book : basket) {
+            library.borrowBook(book, user);
+        }
+        for (Book book : basket) {
+            library.returnBook(book, user);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BASKET)
+    public void batch() {
+        List<Book> basket = baskets.get(next++ % baskets.size());
+        library.borrowBooks(basket, user);
+        library.returnBooks(basket, user);
+    }
+}
@@ -0,0 +1,55 @@
+package com.company.benchmarks;
+
+import com.company.Book;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Listing and sorting, i.e. what the "show all books", "show available books" and "sort books"
+// screens cost before anything is printed.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CatalogBenchmark {
+    @Benchmark
+    public List<Book> getAllBooks(LibraryState state) {
+        return new ArrayList<>(state.library.getCatalog().getAllBooks());
+    }
+
+    @Benchmark
+    public void iterateAllBooks(LibraryState state, Blackhole blackhole) {
+        for (Book book : state.library.getCatalog().getAllBooks()) {
+            blackhole.consume(book.getTitle());
+        }
+    }
+
+    @Benchmark
+    public List<Book> getAvailableBooks(LibraryState state) {
+        return state.library.getCatalog().getAvailableBooks();
+    }
+
+    @Benchmark
+    public void sortBooksByTitle(LibraryState state, Blackhole blackhole) {
+        for (Book book : state.library.getBooksSortedByTitle()) {
+            blackhole.consume(book);
+        }
+    }
+
+    @Benchmark
+    public void sortBooksByAuthor(LibraryState state, Blackhole blackhole) {
+        for (Book book : state.library.getBooksSortedByAuthor()) {
+            blackhole.consume(book);
+        }
+    }
+}
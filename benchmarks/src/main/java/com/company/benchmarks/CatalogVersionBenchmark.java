@@ -0,0 +1,109 @@
+package com.company.benchmarks;
+
+import com.company.Book;
+import com.company.Catalog;
+import com.company.CatalogVersion;
+import com.company.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+// What catalog versions cost and what they buy. The borrow and return benchmarks publish a version
+// per change, run them with -prof gc to see the memory per version (gc.alloc.rate.norm, two versions
+// per operation); the "WithoutPublishing" variant changes the books' loan state directly for
+// comparison. The "storm" group pages through available books from a pinned version while another
+// thread borrows and returns as fast as it can, "stormLive" does the same walking the live books.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class CatalogVersionBenchmark {
+    private static final int PAGE_SIZE = 20;
+
+    @Param({"100000", "1000000"})
+    public int bookCount;
+
+    private Catalog catalog;
+    private Book[] books;
+    private User user;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<Book> list = SyntheticData.books(bookCount, 1);
+        catalog = new Catalog(list, List.of());
+        books = list.toArray(new Book[0]);
+        user = new User("reader");
+        // a tenth of the books is out, like in a busy library
+        for (int i = 0; i < books.length; i += 10) {
+            catalog.borrowBook(books[i], new User("patron" + i), 0, () -> {});
+        }
+    }
+
+    @Benchmark
+    public boolean borrowAndReturn() {
+        Book book = books[1 + 10 * (next++ % (books.length / 10))];
+        catalog.borrowBook(book, user, 0, () -> {});
+        return catalog.returnBook(book, user, () -> {});
+    }
+
+    @Benchmark
+    public boolean borrowAndReturnWithoutPublishing() {
+        Book book = books[1 + 10 * (next++ % (books.length / 10))];
+        book.tryBorrow(user, 0);
+        return book.tryReturn(user);
+    }
+
+    @Benchmark
+    public CatalogVersion buildFirstVersion() {
+        return CatalogVersion.of(catalog.getAllBooks());
+    }
+
+    @Benchmark
+    @Group("storm")
+    @GroupThreads(1)
+    public boolean stormWriter() {
+        return borrowAndReturn();
+    }
+
+    @Benchmark
+    @Group("storm")
+    @GroupThreads(1)
+    public List<Book> stormReader() {
+        int offset = ThreadLocalRandom.current().nextInt(books.length / 2);
+        return catalog.snapshot().streamAvailableBooks().skip(offset).limit(PAGE_SIZE).collect(Collectors.toList());
+    }
+
+    @Benchmark
+    @Group("stormLive")
+    @GroupThreads(1)
+    public boolean stormLiveWriter() {
+        return borrowAndReturn();
+    }
+
+    @Benchmark
+    @Group("stormLive")
+    @GroupThreads(1)
+    public List<Book> stormLiveReader() {
+        int offset = ThreadLocalRandom.current().nextInt(books.length / 2);
+        return catalog.getAllBooks().stream().filter(Book::isAvailable).skip(offset).limit(PAGE_SIZE).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,61 @@
+package com.company.benchmarks;
+
+import com.company.BinaryCodec;
+import com.company.Book;
+import com.company.Catalog;
+import com.company.User;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Heap footprint of the in-memory model of a synthetic library, measured with JOL by walking the
+// object graph from the catalog. Two catalogs with the same books: one loaded from a books file the
+// way the library starts, one with every book added on its own the way the journal replay, the
+// importer and librarians add them (every book with strings of its own). Each title has the given
+// number of copies, and a tenth of the books is borrowed by the users.
+//
+// java -Xmx6g -cp benchmarks/target/benchmarks.jar com.company.benchmarks.FootprintReport [books] [copies] [users]
+public class FootprintReport {
+    public static void main(String[] args) throws IOException {
+        int bookCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int copies = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int userCount = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+
+        List<Book> titles = SyntheticData.books((bookCount + copies - 1) / copies, 1);
+        List<Book> added = new ArrayList<>(bookCount);
+        for (int id = 0; id < bookCount; id++) {
+            Book title = titles.get(id / copies);
+            added.add(new Book(id, id - id % copies, new String(title.getTitle()), new String(title.getAuthor()),
+                    new String(title.getDescription())));
+        }
+
+        Path directory = Files.createTempDirectory("footprint");
+        Path booksFile = directory.resolve("books.dat");
+        BinaryCodec.saveBooks(booksFile.toString(), added);
+        List<Book> loaded = BinaryCodec.loadBooks(booksFile.toString());
+
+        report("Loaded from the books file", loaded, userCount);
+        report("Added one by one", added, userCount);
+
+        Files.delete(booksFile);
+        Files.deleteIfExists(directory.resolve("books.dat" + BinaryCodec.BACKUP_SUFFIX));
+        Files.delete(directory);
+    }
+
+    private static void report(String name, List<Book> books, int userCount) {
+        List<User> users = SyntheticData.users(userCount);
+        Catalog catalog = new Catalog(books, List.of());
+        for (int i = 0; i < books.size(); i += 10) {
+            catalog.borrowBook(books.get(i), users.get(i / 10 % users.size()), 0, () -> {});
+        }
+
+        GraphLayout layout = GraphLayout.parseInstance(catalog);
+        System.out.println("=== " + name + ": " + books.size() + " books, " + users.size() + " users");
+        System.out.println(layout.toFootprint());
+        System.out.printf("%.1f MB, %.0f bytes per book%n%n", layout.totalSize() / 1e6, (double) layout.totalSize() / books.size());
+    }
+}
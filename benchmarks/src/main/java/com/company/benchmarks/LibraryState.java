@@ -0,0 +1,47 @@
+package com.company.benchmarks;
+
+import com.company.Library;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// A library opened on a synthetic catalog in a temporary data directory.
+@State(Scope.Benchmark)
+public class LibraryState {
+    @Param({"1000", "100000", "1000000"})
+    public int bookCount;
+
+    @Param({"10000"})
+    public int userCount;
+
+    public Path directory;
+    public Library library;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("library-benchmark");
+        SyntheticData.writeLibrary(directory, SyntheticData.books(bookCount, 42), SyntheticData.users(userCount));
+        library = new Library(directory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        library.shutdown();
+        deleteDirectory(directory);
+    }
+
+    static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.company.benchmarks;
+
+import com.company.Book;
+import com.company.Catalog;
+import com.company.User;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Stress test for borrowing and returning: many threads fight over the same few hot titles, once with
+// the catalog's compare-and-set loan state and once with a single lock around the same bookkeeping.
+// Fails loudly if a book is ever held by two users at once, if a loan cannot be returned by the user
+// who borrowed it, or if a book or a user still has a loan once every borrow has been returned.
+//
+// java -cp benchmarks/target/benchmarks.jar com.company.benchmarks.LoanContentionBenchmark [threads] [hot titles] [seconds per run]
+public class LoanContentionBenchmark {
+    private interface Loans {
+        boolean borrow(int bookIndex, User user);
+
+        boolean giveBack(int bookIndex, User user);
+
+        boolean isAvailable(int bookIndex);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        int hotTitles = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        System.out.printf("%d threads, %d hot titles, %d s per run\n", threads, hotTitles, seconds);
+
+        for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+            run("atomic loan state", atomicLoans(hotTitles), threads, hotTitles, seconds);
+            run("synchronized", synchronizedLoans(hotTitles), threads, hotTitles, seconds);
+        }
+    }
+
+    private static Loans atomicLoans(int hotTitles) {
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < hotTitles; i++) {
+            books.add(new Book(i, "Title " + i, "Author " + i, ""));
+        }
+        Catalog catalog = new Catalog(books, List.of());
+
+        return new Loans() {
+            public boolean borrow(int bookIndex, User user) {
+                return catalog.borrowBook(catalog.getBook(bookIndex), user, 0, () -> {});
+            }
+
+            public boolean giveBack(int bookIndex, User user) {
+                return catalog.returnBook(catalog.getBook(bookIndex), user, () -> {});
+            }
+
+            public boolean isAvailable(int bookIndex) {
+                return catalog.getBook(bookIndex).isAvailable();
+            }
+        };
+    }
+
+    private static Loans synchronizedLoans(int hotTitles) {
+        User[] borrowers = new User[hotTitles];
+        Book[] books = new Book[hotTitles];
+        for (int i = 0; i < hotTitles; i++) {
+            books[i] = new Book(i, "Title " + i, "Author " + i, "");
+        }
+
+        return new Loans() {
+            public synchronized boolean borrow(int bookIndex, User user) {
+                if (borrowers[bookIndex] != null) {
+                    return false;
+                }
+                borrowers[bookIndex] = user;
+                user.borrowBook(books[bookIndex]);
+                return true;
+            }
+
+            public synchronized boolean giveBack(int bookIndex, User user) {
+                if (borrowers[bookIndex] != user || !user.returnBook(books[bookIndex])) {
+                    return false;
+                }
+                borrowers[bookIndex] = null;
+                return true;
+            }
+
+            public synchronized boolean isAvailable(int bookIndex) {
+                return borrowers[bookIndex] == null;
+            }
+        };
+    }
+
+    private static void run(String name, Loans loans, int threads, int hotTitles, int seconds) throws InterruptedException {
+        AtomicIntegerArray holders = new AtomicIntegerArray(hotTitles);
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder attempts = new LongAdder();
+        LongAdder borrows = new LongAdder();
+        LongAdder violations = new LongAdder();
+        LongAdder lostLoans = new LongAdder();
+
+        List<User> users = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            User user = new User("user" + t);
+            users.add(user);
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    int bookIndex = random.nextInt(hotTitles);
+                    attempts.increment();
+
+                    if (loans.borrow(bookIndex, user)) {
+                        borrows.increment();
+                        if (holders.incrementAndGet(bookIndex) != 1) {
+                            violations.increment();
+                        }
+                        holders.decrementAndGet(bookIndex);
+                        if (!loans.giveBack(bookIndex, user)) {
+                            lostLoans.increment();
+                        }
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        // every borrow was returned, so nothing may be left on loan
+        for (int i = 0; i < hotTitles; i++) {
+            if (!loans.isAvailable(i)) {
+                lostLoans.increment();
+            }
+        }
+        for (User user : users) {
+            lostLoans.add(user.getBorrowedBookCount());
+        }
+
+        System.out.printf("%-20s %,14.0f attempts/s %,14.0f borrow+return/s  %d violations  %d lost loans\n", name,
+                attempts.sum() / (double) seconds, borrows.sum() / (double) seconds, violations.sum(), lostLoans.sum());
+
+        if (violations.sum() > 0) {
+            throw new IllegalStateException(name + ": a book was held by two users at the same time!");
+        }
+        if (lostLoans.sum() > 0) {
+            throw new IllegalStateException(name + ": " + lostLoans.sum() + " loans could not be returned or were left over!");
+        }
+    }
+}
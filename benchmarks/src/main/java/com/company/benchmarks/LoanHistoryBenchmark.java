@@ -0,0 +1,83 @@
+package com.company.benchmarks;
+
+import com.company.LoanHistory;
+import com.company.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The reports of the loan statistics menu over a history of finished loans: a year of loans of
+// 100,000 books by 10,000 users, most of them in opening hours.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class LoanHistoryBenchmark {
+    private static final int BOOKS = 100_000;
+    private static final int USERS = 10_000;
+    private static final long YEAR_START = 1_672_531_200L; // 2023-01-01
+    private static final ZoneId ZONE = ZoneId.of("Europe/Stockholm");
+
+    @Param({"1000000", "20000000"})
+    public int loanCount;
+
+    private LoanHistory.Columns history;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // never saved, so the file is never created
+        LoanHistory loanHistory = new LoanHistory(Path.of("unused-history.dat"));
+        List<String> names = SyntheticData.users(USERS).stream().map(User::getName).toList();
+
+        Random random = new Random(42);
+        for (int i = 0; i < loanCount; i++) {
+            long day = YEAR_START + (long) i * 365 / loanCount * 86_400;
+            long start = day + 9 * 3600 + random.nextInt(10 * 3600);
+            long length = 3600 + (long) random.nextInt(40 * 86_400);
+            // a few popular books and users make up a large share of the loans
+            int book = random.nextInt(4) == 0 ? random.nextInt(BOOKS / 100) : random.nextInt(BOOKS);
+            int user = random.nextInt(4) == 0 ? random.nextInt(USERS / 100) : random.nextInt(USERS);
+            loanHistory.add(book, names.get(user), start, start + length);
+        }
+        history = loanHistory.columns();
+    }
+
+    @Benchmark
+    public List<Map.Entry<Integer, Integer>> mostBorrowedBooks() {
+        return LoanHistory.mostBorrowedBooks(history, 10);
+    }
+
+    @Benchmark
+    public double averageLoanLength() {
+        return LoanHistory.averageLoanSeconds(history);
+    }
+
+    @Benchmark
+    public List<LoanHistory.UserLoans> overdueRates() {
+        return LoanHistory.overdueRates(history, Duration.ofDays(30).getSeconds(), 3, 10);
+    }
+
+    @Benchmark
+    public long[] loansPerHour() {
+        return LoanHistory.loansPerHour(history, ZONE);
+    }
+}
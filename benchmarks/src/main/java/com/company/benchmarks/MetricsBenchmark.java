@@ -0,0 +1,39 @@
+package com.company.benchmarks;
+
+import com.company.LatencyHistogram;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of timing one operation; gc.alloc.rate.norm should be 0 bytes per operation.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+    private final LatencyHistogram histogram = new LatencyHistogram("benchmark");
+
+    @Benchmark
+    public void recordLatency() {
+        long start = System.nanoTime();
+        histogram.record(System.nanoTime() - start);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordLatencyContended() {
+        long start = System.nanoTime();
+        histogram.record(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,86 @@
+package com.company.benchmarks;
+
+import com.company.Book;
+import com.company.OverdueTracker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Finding the overdue loans: 10% of the books are borrowed, spread over the last 60 days with a loan
+// duration of 30 days, and 1% of the loans are overdue. Compared with checking every book the way
+// the overdue count used to be computed.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class OverdueBenchmark {
+    private static final long LOAN_SECONDS = 30 * 86_400;
+    private static final long NOW = 1_700_000_000L;
+
+    @Param({"100000", "1000000"})
+    public int bookCount;
+
+    private List<Book> books;
+    private OverdueTracker tracker;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        books = SyntheticData.books(bookCount, 1);
+        tracker = new OverdueTracker(LOAN_SECONDS);
+        Random random = new Random(2);
+        for (Book book : books) {
+            if (random.nextInt(10) == 0) {
+                // loans up to 30.3 days old, so about 1% of them are overdue
+                long loanEpochSecond = NOW - (long) (random.nextDouble() * LOAN_SECONDS * 1.0101);
+                book.restoreLoan(null, loanEpochSecond);
+                tracker.add(book, loanEpochSecond);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Book> overdueFromTracker() {
+        return tracker.getOverdue(NOW);
+    }
+
+    @Benchmark
+    public long overdueByScanningBooks() {
+        return books.stream().filter(book -> !book.isAvailable() && book.getLoanEpochSecond() + LOAN_SECONDS < NOW).count();
+    }
+
+    @Benchmark
+    public List<Book> dueWithinADay() {
+        return tracker.getDueWithin(NOW, 86_400);
+    }
+
+    // a return and a new loan of a different book every time
+    @Benchmark
+    public int returnAndBorrow() {
+        Book book = books.get(next++ % books.size());
+        long loanEpochSecond = book.getLoanEpochSecond();
+        if (!book.isAvailable()) {
+            tracker.remove(book, loanEpochSecond);
+            tracker.add(book, loanEpochSecond);
+        } else {
+            tracker.add(book, NOW);
+            tracker.remove(book, NOW);
+        }
+        return next;
+    }
+}
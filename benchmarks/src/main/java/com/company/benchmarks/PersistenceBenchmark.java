@@ -0,0 +1,98 @@
+package com.company.benchmarks;
+
+import com.company.BinaryCodec;
+import com.company.Book;
+import com.company.FileUtility;
+import com.company.User;
+import com.company.UserStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Saving and loading the catalog, both in the binary format and with Java serialization through
+// FileUtility (the format used before the binary one).
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class PersistenceBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int bookCount;
+
+    @Param({"10000"})
+    public int userCount;
+
+    private Path directory;
+    private ArrayList<Book> books;
+    private ArrayList<User> users;
+
+    private String binaryBooks;
+    private String binaryUsers;
+    private String serializedBooks;
+    private String serializedUsers;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("library-benchmark");
+        books = new ArrayList<>(SyntheticData.books(bookCount, 42));
+        users = new ArrayList<>(SyntheticData.users(userCount));
+
+        binaryBooks = directory.resolve("books.dat").toString();
+        binaryUsers = directory.resolve("users.dat").toString();
+        serializedBooks = directory.resolve("books.ser").toString();
+        serializedUsers = directory.resolve("users.ser").toString();
+
+        BinaryCodec.saveBooks(binaryBooks, books);
+        UserStore.saveAll(Path.of(binaryUsers), users);
+        FileUtility.saveObject(serializedBooks, books);
+        FileUtility.saveObject(serializedUsers, users);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        LibraryState.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void saveBinary() {
+        BinaryCodec.saveBooks(binaryBooks, books);
+        UserStore.saveAll(Path.of(binaryUsers), users);
+    }
+
+    @Benchmark
+    public int loadBinary() {
+        List<Book> loadedBooks = BinaryCodec.loadBooks(binaryBooks);
+        List<User> loadedUsers = BinaryCodec.loadUsers(binaryUsers).users;
+        return loadedBooks.size() + loadedUsers.size();
+    }
+
+    @Benchmark
+    public void saveSerialized() {
+        FileUtility.saveObject(serializedBooks, books);
+        FileUtility.saveObject(serializedUsers, users);
+    }
+
+    @Benchmark
+    public Object loadSerialized() {
+        return List.of(FileUtility.loadObject(serializedBooks), FileUtility.loadObject(serializedUsers));
+    }
+}
@@ -0,0 +1,100 @@
+package com.company.benchmarks;
+
+import com.company.Book;
+import com.company.BookQuery;
+import com.company.Library;
+import com.company.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+// Queries run by BookQuery, which starts from the most selective index or list, against the same
+// conditions tested on every book of the catalog. A tenth of the books is borrowed.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+    @Param({"100000"})
+    public int bookCount;
+
+    private Path directory;
+    private Library library;
+    private User borrower;
+
+    private final BookQuery byTitleAndAuthor = BookQuery.parse("title:\"winter glass\" AND author:tolkien AND available");
+    private final BookQuery byBorrower = BookQuery.parse("borrower:user7 AND title:the");
+    private final BookQuery firstAvailable = BookQuery.parse("available AND NOT title:the LIMIT 10");
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("library-benchmark");
+        SyntheticData.writeLibrary(directory, SyntheticData.books(bookCount, 42), SyntheticData.users(1000));
+        library = new Library(directory);
+
+        List<Book> books = new ArrayList<>(library.getCatalog().getAllBooks());
+        for (int i = 0; i < books.size(); i += 10) {
+            library.borrowBook(books.get(i), library.getUser("user" + i / 10 % 1000));
+        }
+        borrower = library.getUser("user7");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        library.shutdown();
+        LibraryState.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public List<Book> titleAndAuthorPlanned() {
+        return byTitleAndAuthor.run(library).getBooks();
+    }
+
+    @Benchmark
+    public List<Book> titleAndAuthorScan() {
+        return library.getCatalog().getAllBooks().stream()
+                .filter(book -> book.getTitle().toLowerCase().contains("winter glass"))
+                .filter(book -> book.getAuthor().toLowerCase().contains("tolkien"))
+                .filter(Book::isAvailable)
+                .collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public List<Book> borrowerPlanned() {
+        return byBorrower.run(library).getBooks();
+    }
+
+    @Benchmark
+    public List<Book> borrowerScan() {
+        return library.getCatalog().getAllBooks().stream()
+                .filter(book -> book.getBorrower() == borrower)
+                .filter(book -> book.getTitle().toLowerCase().contains("the"))
+                .collect(Collectors.toList());
+    }
+
+    // stops after the first ten matches
+    @Benchmark
+    public List<Book> firstAvailablePlanned() {
+        return firstAvailable.run(library).getBooks();
+    }
+}
@@ -0,0 +1,63 @@
+package com.company.benchmarks;
+
+import com.company.Book;
+import com.company.DescriptionIndex;
+import com.company.LibraryService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SearchBenchmark {
+    @Benchmark
+    public List<Book> searchTitleRare(LibraryState state) {
+        return state.library.searchByTitle("winter glass");
+    }
+
+    @Benchmark
+    public List<Book> searchTitleCommon(LibraryState state) {
+        return state.library.searchByTitle("the");
+    }
+
+    @Benchmark
+    public List<Book> searchAuthor(LibraryState state) {
+        return state.library.searchByAuthor("tolkien");
+    }
+
+    @Benchmark
+    public List<Book> fuzzySearchTitle(LibraryState state) {
+        return state.library.fuzzySearchByTitle("wintr glas", LibraryService.FUZZY_RESULTS);
+    }
+
+    @Benchmark
+    public List<Book> fuzzySearchAuthor(LibraryState state) {
+        return state.library.fuzzySearchByAuthor("Tolkein Astird", LibraryService.FUZZY_RESULTS);
+    }
+
+    // the first call builds the description index, that happens during warmup
+    @Benchmark
+    public List<Book> searchDescription(LibraryState state) {
+        return state.library.searchByDescription("lighthouse keeper on a glacier", 50);
+    }
+
+    @Benchmark
+    public List<Book> searchDescriptionCommon(LibraryState state) {
+        return state.library.searchByDescription("the story of a young family", 50);
+    }
+
+    @Benchmark
+    public DescriptionIndex buildDescriptionIndex(LibraryState state) {
+        return new DescriptionIndex(state.library.getCatalog().getAllBooks());
+    }
+}
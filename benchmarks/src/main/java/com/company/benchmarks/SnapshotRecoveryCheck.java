@@ -0,0 +1,186 @@
+package com.company.benchmarks;
+
+import com.company.Book;
+import com.company.Library;
+import com.company.User;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+// Crash check for the snapshot files: borrows, returns, reserves, adds and removes books, and after
+// every round stops the way a crash would (the journal synced, no snapshot written), damages one of
+// the snapshot files of a copy of the data directory at a time and starts a library from the copy,
+// which must come back with the same books and loans. Between the rounds a snapshot is written, a low
+// share for the book delta file makes every few of them write the books file in full.
+//
+// java -cp benchmarks/target/benchmarks.jar com.company.benchmarks.SnapshotRecoveryCheck [rounds] [changes per round]
+public class SnapshotRecoveryCheck {
+    private static final String[] USERS = {"johan", "peter", "kalle"};
+
+    // the files that may be damaged, the delta file only by a block that was being written
+    private static final String[] SNAPSHOT_FILES = {"books.dat", "books.dat.bak", "users.dat", "users.dat.bak",
+            "books.dat.delta.bak"};
+    private static final String DELTA_FILE = "books.dat.delta";
+
+    public static void main(String[] args) throws IOException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 12;
+        int changes = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        setDefault("library.snapshot.bookDeltaPercent", "2");
+        setDefault("library.autosave.intervalSeconds", "3600");
+        setDefault("library.metrics.dumpSeconds", "0");
+
+        Path directory = Files.createTempDirectory("recovery");
+        Random random = new Random(42);
+        Library library = new Library(directory);
+        for (int i = 0; i < 500; i++) {
+            library.addBook("Title " + i, "Author " + i % 40, "A description of book " + i);
+        }
+        library.shutdown();
+
+        int failures = 0;
+        for (int round = 1; round <= rounds; round++) {
+            library = new Library(directory);
+            change(library, random, changes);
+            String expected = describe(library);
+
+            List<String> damaged = new ArrayList<>();
+            for (String name : SNAPSHOT_FILES) {
+                if (Files.exists(directory.resolve(name))) {
+                    damaged.add(name);
+                }
+            }
+            if (Files.exists(directory.resolve(DELTA_FILE)) && Files.size(directory.resolve(DELTA_FILE)) > 0) {
+                damaged.add(DELTA_FILE);
+            }
+
+            for (String name : damaged) {
+                Path copy = copy(directory);
+                if (name.equals(DELTA_FILE)) {
+                    tear(copy.resolve(name));
+                } else {
+                    damage(copy.resolve(name));
+                }
+                String recovered;
+                try {
+                    Library restarted = new Library(copy);
+                    recovered = describe(restarted);
+                    restarted.shutdown();
+                } catch (IllegalStateException e) {
+                    recovered = e.getMessage();
+                }
+                if (!recovered.equals(expected)) {
+                    failures++;
+                    System.out.printf("round %d, damaged %s: the state was not recovered\n  expected %s\n  found    %s\n",
+                            round, name, expected, recovered);
+                }
+                delete(copy);
+            }
+            System.out.printf("round %2d: damaged %s one at a time\n", round, damaged);
+
+            library.shutdown();
+        }
+        delete(directory);
+
+        if (failures > 0) {
+            throw new IllegalStateException(failures + " damaged files lost the snapshot!");
+        }
+        System.out.println("every damaged file was recovered from");
+    }
+
+    private static void change(Library library, Random random, int changes) {
+        List<Book> books = new ArrayList<>(library.getCatalog().getAllBooks());
+        for (int i = 0; i < changes; i++) {
+            User user = library.getUser(USERS[random.nextInt(USERS.length)]);
+            Book book = books.get(random.nextInt(Math.min(books.size(), 30)));
+            switch (random.nextInt(10)) {
+                case 0:
+                    books.add(library.addBook("New " + random.nextInt(), "Someone", "Added"));
+                    break;
+                case 1:
+                    library.removeBook(book);
+                    break;
+                case 2:
+                case 3:
+                    library.reserveBook(book, user);
+                    break;
+                case 4:
+                case 5:
+                case 6:
+                    library.returnBook(book, user);
+                    break;
+                default:
+                    library.borrowBook(book, user);
+                    break;
+            }
+        }
+        library.sync();
+    }
+
+    // the books with their loans and holds, and each user's loans and reservations
+    private static String describe(Library library) {
+        Map<String, String> users = new TreeMap<>();
+        for (String name : USERS) {
+            User user = library.getUser(name);
+            int[] loans = library.getBorrowedBooks(user).stream().mapToInt(Book::getId).sorted().toArray();
+            users.put(name, Arrays.toString(loans) + " " + new TreeMap<>(library.getReservations(user)));
+        }
+        Map<Integer, String> books = new TreeMap<>();
+        for (Book book : library.getCatalog().getAllBooks()) {
+            books.put(book.getId(), book.getTitle() + (book.isAvailable() ? "" : book.isHeld()
+                    ? " held for " + book.getHolder().getName() : " lent since " + book.getLoanEpochSecond()));
+        }
+        return users + " " + books;
+    }
+
+    private static void setDefault(String property, String value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+
+    // overwrites some bytes in the middle of the file
+    private static void damage(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            byte[] garbage = new byte[16];
+            Arrays.fill(garbage, (byte) 0x5A);
+            channel.write(ByteBuffer.wrap(garbage), channel.size() / 2);
+        }
+    }
+
+    // cuts off the end of the last block, as if the program stopped while writing it
+    private static void tear(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 8);
+        }
+    }
+
+    private static Path copy(Path directory) throws IOException {
+        Path copy = Files.createTempDirectory("recovery-copy");
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, copy.resolve(file.getFileName()));
+            }
+        }
+        return copy;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,81 @@
+package com.company.benchmarks;
+
+import com.company.BinaryCodec;
+import com.company.Book;
+import com.company.Librarian;
+import com.company.User;
+import com.company.UserStore;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Reproducible fake catalogs. Titles and authors are built from small word lists so that searches
+// hit a realistic share of the books, and a fixed seed keeps every run identical.
+public class SyntheticData {
+    private static final String[] WORDS = {
+            "the", "lord", "rings", "shadow", "winter", "house", "river", "night", "garden", "stone",
+            "empire", "silent", "city", "glass", "summer", "king", "journey", "secret", "history", "north",
+            "island", "storm", "daughter", "war", "peace", "light", "forest", "dream", "iron", "sea"
+    };
+    // descriptions also draw from these, with a skew towards the start of the list like real text
+    private static final String[] DESCRIPTION_WORDS = {
+            "a", "of", "and", "in", "to", "her", "his", "story", "young", "family", "life", "world", "love",
+            "old", "new", "years", "father", "mother", "village", "friend", "town", "ship", "letters", "murder",
+            "detective", "farm", "school", "memory", "mountain", "escape", "revolution", "music", "painter",
+            "exile", "inheritance", "lighthouse", "orphan", "smuggler", "archive", "cartographer", "glacier"
+    };
+    private static final String[] FIRST_NAMES = {
+            "Astrid", "Johan", "Maria", "Peter", "Karin", "Erik", "Anna", "Lars", "Ingrid", "Nils",
+            "Sofia", "Gustav", "Elsa", "Olof", "Greta", "Sven", "Maja", "Bengt", "Lena", "Åke"
+    };
+    private static final String[] LAST_NAMES = {
+            "Lindgren", "Tolkien", "Orwell", "Rowling", "Bloch", "Lagerlöf", "Strindberg", "Mankell",
+            "Larsson", "Öberg", "Ekström", "Austen", "Dickens", "Woolf", "Tranströmer", "Toole"
+    };
+
+    public static List<Book> books(int count, long seed) {
+        Random random = new Random(seed);
+        List<Book> books = new ArrayList<>(count);
+
+        for (int id = 0; id < count; id++) {
+            StringBuilder title = new StringBuilder();
+            int words = 2 + random.nextInt(4);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    title.append(' ');
+                }
+                String word = WORDS[random.nextInt(WORDS.length)];
+                title.append(w == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+            }
+
+            String author = LAST_NAMES[random.nextInt(LAST_NAMES.length)] + ", " + FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+            StringBuilder description = new StringBuilder("A book about ").append(WORDS[random.nextInt(WORDS.length)])
+                    .append(" and ").append(WORDS[random.nextInt(WORDS.length)]).append('.');
+            int descriptionWords = 10 + random.nextInt(21);
+            for (int w = 0; w < descriptionWords; w++) {
+                description.append(' ').append(DESCRIPTION_WORDS[random.nextInt(1 + random.nextInt(DESCRIPTION_WORDS.length))]);
+            }
+
+            books.add(new Book(id, title.toString(), author, description.toString()));
+        }
+
+        return books;
+    }
+
+    public static List<User> users(int count) {
+        List<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count - 1; i++) {
+            users.add(new User("user" + i));
+        }
+        users.add(new Librarian("admin"));
+        return users;
+    }
+
+    // Writes a catalog in the library's data file format so that a Library can be opened on it.
+    public static void writeLibrary(Path directory, List<Book> books, List<User> users) {
+        BinaryCodec.saveBooks(directory.resolve("books.dat").toString(), books);
+        UserStore.saveAll(directory.resolve("users.dat"), users);
+    }
+}
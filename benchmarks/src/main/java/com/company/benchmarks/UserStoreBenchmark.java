@@ -0,0 +1,118 @@
+package com.company.benchmarks;
+
+import com.company.Book;
+import com.company.Catalog;
+import com.company.User;
+import com.company.UserStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Opening the users of a library, reading one user's loans and saving after one user's loans
+// changed, compared with writing every user the way all saves used to.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class UserStoreBenchmark {
+    private static final int LOANS_PER_USER = 3;
+
+    @Param({"10000", "100000"})
+    public int userCount;
+
+    private Path directory;
+    private Path usersFile;
+    private List<User> users;
+    private UserStore store;
+    private Catalog catalog;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("library-benchmark");
+        usersFile = directory.resolve("users.dat");
+        users = SyntheticData.users(userCount);
+        for (int i = 0; i < users.size(); i++) {
+            for (int j = 0; j < LOANS_PER_USER; j++) {
+                users.get(i).restoreLoan(i * LOANS_PER_USER + j);
+            }
+        }
+        UserStore.saveAll(usersFile, users);
+
+        store = new UserStore(usersFile);
+        store.load(usersFile.toString());
+        catalog = borrowedBooks();
+    }
+
+    // the books the users have borrowed, without borrowers until the users' loans are read
+    private Catalog borrowedBooks() {
+        List<Book> books = new ArrayList<>(userCount * LOANS_PER_USER);
+        for (int id = 0; id < userCount * LOANS_PER_USER; id++) {
+            Book book = new Book(id, "title", "author", "description");
+            book.restoreLoan(null, 0);
+            books.add(book);
+        }
+        return new Catalog(books, List.of());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        LibraryState.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public UserStore openUsers() throws IOException {
+        UserStore opened = new UserStore(usersFile);
+        opened.load(usersFile.toString());
+        opened.close();
+        return opened;
+    }
+
+    // a different user every time, wrapping around once all have been read
+    @Benchmark
+    public User loadLoansOfOneUser() throws IOException {
+        if (next == userCount) {
+            store.close();
+            store = new UserStore(usersFile);
+            store.load(usersFile.toString());
+            catalog = borrowedBooks();
+            next = 0;
+        }
+        User user = store.getUser(users.get(next++).getName());
+        store.loadLoans(user, catalog);
+        return user;
+    }
+
+    @Benchmark
+    public boolean saveOneChangedUser() {
+        User user = store.getUsers().get(next++ % userCount);
+        store.loadLoans(user, catalog);
+        store.markChanged(user);
+        return store.save(store.takeChanges(), 0);
+    }
+
+    @Benchmark
+    public boolean saveAllUsers() {
+        return UserStore.saveAll(usersFile, users);
+    }
+}
@@ -0,0 +1,560 @@
+package com.company;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// File layout: magic (int), version (short), the journal sequence number the snapshot was taken at
+// (long), then for books a string table of authors, the block of descriptions and the book records,
+// for users the generation of the loans file and the user records, and finally a CRC32 of everything
+// before it (int). Every record starts with its length so that readers can skip fields added by
+// later versions.
+//
+// Since version 3 a users file is only a directory: a user record says where the user's loans are
+// in the loans file (see UserStore) instead of holding them, so they can be read when needed.
+//
+// Since version 4 a book record ends with the id of its title (copies of a title share it) and the
+// book records are followed by the hold queues: for every title users are waiting for its id and the
+// names in line, then for every copy held for a user the book id and the name. The record of a held
+// copy has the start of the hold as its loan date.
+//
+// Book records point into the description block with a fixed-width offset and length instead of
+// holding the description, so the books file can be memory-mapped and only titles and authors are
+// decoded at startup. Version 1 files stored the description inline in the record, and books files
+// before version 3 and users files before version 2 have neither sequence number nor checksum.
+//
+// A file is replaced by writing a new one next to it and renaming it into place; the file it
+// replaces is kept as the backup (".bak") so that a damaged snapshot can fall back to the one before.
+public class BinaryCodec {
+    public static final String BACKUP_SUFFIX = ".bak";
+
+    private static final int BOOKS_MAGIC = 0x4C424B53; // "LBKS"
+    private static final int USERS_MAGIC = 0x4C555352; // "LUSR"
+    private static final short BOOKS_VERSION = 4;
+    private static final short USERS_VERSION = 3;
+    private static final short FIRST_CHECKSUMMED_BOOKS_VERSION = 3;
+    private static final short FIRST_CHECKSUMMED_USERS_VERSION = 2;
+    private static final short FIRST_DIRECTORY_USERS_VERSION = 3;
+    private static final short FIRST_HOLDS_BOOKS_VERSION = 4;
+
+    private static final long NO_LOAN_DATE = Long.MIN_VALUE;
+    private static final long NO_LOANS = -1;
+    private static final byte TYPE_USER = 0;
+    private static final byte TYPE_LIBRARIAN = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final LatencyHistogram SAVE_BOOKS = Metrics.latency("io.saveBooks");
+    private static final LatencyHistogram LOAD_BOOKS = Metrics.latency("io.loadBooks");
+    private static final LatencyHistogram SAVE_USERS = Metrics.latency("io.saveUsers");
+    private static final LatencyHistogram LOAD_USERS = Metrics.latency("io.loadUsers");
+    private static final LatencyHistogram VERIFY = Metrics.latency("io.verifySnapshot");
+
+    public static boolean saveBooks(String filename, Collection<Book> books) {
+        return saveBooks(filename, books, Map.of(), 0);
+    }
+
+    // The users waiting for each title and the users copies are held for, by name.
+    public static class Holds {
+        public final Map<Integer, List<String>> queues;
+        public final Map<Integer, String> holders;
+
+        public Holds(Map<Integer, List<String>> queues, Map<Integer, String> holders) {
+            this.queues = queues;
+            this.holders = holders;
+        }
+    }
+
+    // Returns false if the file could not be written, in which case the existing file is unchanged.
+    // Holders are taken from the books, queues maps title ids to the names of the waiting users.
+    public static boolean saveBooks(String filename, Collection<Book> books, Map<Integer, List<String>> queues, long sequence) {
+        long start = System.nanoTime();
+        Map<String, Integer> authorIds = new HashMap<>();
+        List<String> authors = new ArrayList<>();
+        for (Book book : books) {
+            if (!authorIds.containsKey(book.getAuthor())) {
+                authorIds.put(book.getAuthor(), authors.size());
+                authors.add(book.getAuthor());
+            }
+        }
+
+        try (Writer writer = new Writer(Paths.get(filename))) {
+            writer.header(BOOKS_MAGIC, BOOKS_VERSION, sequence);
+
+            writer.record.putInt(authors.size());
+            for (String author : authors) {
+                writer.putString(author);
+            }
+            writer.writeRaw();
+
+            long descriptionsLengthPosition = writer.position();
+            writer.record.putLong(0); // patched once all descriptions are written
+            writer.writeRaw();
+
+            long descriptionsStart = writer.position();
+            int[] descriptionLengths = new int[books.size()];
+            int i = 0;
+            for (Book book : books) {
+                byte[] description = book.getDescription().getBytes(StandardCharsets.UTF_8);
+                writer.ensureCapacity(description.length);
+                writer.record.put(description);
+                writer.writeRaw();
+                descriptionLengths[i++] = description.length;
+            }
+            writer.patchLong(descriptionsLengthPosition, writer.position() - descriptionsStart);
+
+            writer.record.putInt(books.size());
+            writer.writeRaw();
+
+            long descriptionOffset = 0;
+            i = 0;
+            List<Book> heldBooks = new ArrayList<>();
+            for (Book book : books) {
+                writer.record.putInt(book.getId());
+                writer.putString(book.getTitle());
+                writer.record.putInt(authorIds.get(book.getAuthor()));
+                writer.record.putLong(book.isAvailable() ? NO_LOAN_DATE : book.getLoanEpochSecond());
+                writer.record.putLong(descriptionOffset);
+                writer.record.putInt(descriptionLengths[i]);
+                writer.record.putInt(book.getTitleId());
+                writer.writeRecord();
+                descriptionOffset += descriptionLengths[i++];
+                if (book.isHeld()) {
+                    heldBooks.add(book);
+                }
+            }
+
+            writer.record.putInt(queues.size());
+            writer.writeRaw();
+            for (Map.Entry<Integer, List<String>> queue : queues.entrySet()) {
+                writer.record.putInt(queue.getKey());
+                writer.record.putInt(queue.getValue().size());
+                writer.writeRaw();
+                for (String name : queue.getValue()) {
+                    writer.putString(name);
+                    writer.writeRaw();
+                }
+            }
+            writer.record.putInt(heldBooks.size());
+            writer.writeRaw();
+            for (Book book : heldBooks) {
+                writer.record.putInt(book.getId());
+                writer.putString(book.getHolder().getName());
+                writer.writeRaw();
+            }
+            writer.commit();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            SAVE_BOOKS.record(System.nanoTime() - start);
+        }
+        return false;
+    }
+
+    public static List<Book> loadBooks(String filename) {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed, and since snapshots are written to a
+            // new file and renamed into place it is never truncated underneath the books that use it
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Metrics.addBytesRead(data.limit());
+            short version = readHeader(data, Paths.get(filename), BOOKS_MAGIC, BOOKS_VERSION);
+            if (version >= FIRST_CHECKSUMMED_BOOKS_VERSION) {
+                data.getLong(); // sequence, see verifyBooks()
+            }
+
+            String[] authors = new String[data.getInt()];
+            for (int i = 0; i < authors.length; i++) {
+                authors[i] = getString(data);
+            }
+
+            int descriptionsStart = 0;
+            if (version >= 2) {
+                long descriptionsLength = data.getLong();
+                descriptionsStart = data.position();
+                data.position(descriptionsStart + (int) descriptionsLength);
+            }
+
+            int count = data.getInt();
+            List<Book> books = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int length = data.getInt();
+                int end = data.position() + length;
+
+                Book book;
+                if (version >= 2) {
+                    int id = data.getInt();
+                    String title = getString(data);
+                    String author = authors[data.getInt()];
+                    long loanDate = data.getLong();
+                    int descriptionOffset = descriptionsStart + (int) data.getLong();
+                    MappedText description = new MappedText(data, descriptionOffset, data.getInt());
+                    int titleId = version >= FIRST_HOLDS_BOOKS_VERSION ? data.getInt() : id;
+                    book = new Book(id, titleId, title, author, description);
+                    restoreLoanDate(book, loanDate);
+                } else {
+                    int id = data.getInt();
+                    book = new Book(id, id, getString(data), authors[data.getInt()], getString(data));
+                    restoreLoanDate(book, data.getLong());
+                }
+                books.add(book);
+
+                data.position(end);
+            }
+            return books;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            LOAD_BOOKS.record(System.nanoTime() - start);
+        }
+        return null;
+    }
+
+    // The hold queues saved after the books, empty for files from before version 4.
+    public static Holds loadHolds(String filename) {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            short version = readHeader(data, Paths.get(filename), BOOKS_MAGIC, BOOKS_VERSION);
+            Map<Integer, List<String>> queues = new HashMap<>();
+            Map<Integer, String> holders = new HashMap<>();
+            if (version < FIRST_HOLDS_BOOKS_VERSION) {
+                return new Holds(queues, holders);
+            }
+
+            // skip to the end of the book records
+            data.getLong();
+            int authors = data.getInt();
+            for (int i = 0; i < authors; i++) {
+                getString(data);
+            }
+            long descriptionsLength = data.getLong();
+            data.position(data.position() + (int) descriptionsLength);
+            int count = data.getInt();
+            for (int i = 0; i < count; i++) {
+                int length = data.getInt();
+                data.position(data.position() + length);
+            }
+
+            int queueCount = data.getInt();
+            for (int i = 0; i < queueCount; i++) {
+                int titleId = data.getInt();
+                List<String> names = new ArrayList<>();
+                int waiting = data.getInt();
+                for (int j = 0; j < waiting; j++) {
+                    names.add(getString(data));
+                }
+                queues.put(titleId, names);
+            }
+            int heldCount = data.getInt();
+            for (int i = 0; i < heldCount; i++) {
+                holders.put(data.getInt(), getString(data));
+            }
+            return new Holds(queues, holders);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // The users and where their loans are in the loans file of the given generation. Files before
+    // version 3 hold the loans in the user records, they are then restored into the users and the
+    // generation is -1.
+    public static class UserDirectory {
+        public final List<User> users;
+        public final Map<String, UserStore.Location> loans;
+        public final int loansGeneration;
+
+        public UserDirectory(List<User> users, Map<String, UserStore.Location> loans, int loansGeneration) {
+            this.users = users;
+            this.loans = loans;
+            this.loansGeneration = loansGeneration;
+        }
+    }
+
+    public static boolean saveUsers(String filename, UserDirectory directory, long sequence) {
+        long start = System.nanoTime();
+        try (Writer writer = new Writer(Paths.get(filename))) {
+            writer.header(USERS_MAGIC, USERS_VERSION, sequence);
+
+            writer.record.putInt(directory.loansGeneration);
+            writer.record.putInt(directory.users.size());
+            writer.writeRaw();
+
+            for (User user : directory.users) {
+                UserStore.Location loans = directory.loans.get(user.getName());
+                writer.record.put(user.isLibrarian() ? TYPE_LIBRARIAN : TYPE_USER);
+                writer.putString(user.getName());
+                writer.record.putLong(loans != null ? loans.offset : NO_LOANS);
+                writer.record.putInt(loans != null ? loans.length : 0);
+                writer.writeRecord();
+            }
+            writer.commit();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            SAVE_USERS.record(System.nanoTime() - start);
+        }
+        return false;
+    }
+
+    public static UserDirectory loadUsers(String filename) {
+        long start = System.nanoTime();
+        try {
+            ByteBuffer data = read(Paths.get(filename));
+            short version = readHeader(data, Paths.get(filename), USERS_MAGIC, USERS_VERSION);
+            if (version >= FIRST_CHECKSUMMED_USERS_VERSION) {
+                data.getLong(); // sequence, see verifyUsers()
+            }
+            int loansGeneration = version >= FIRST_DIRECTORY_USERS_VERSION ? data.getInt() : -1;
+
+            int count = data.getInt();
+            List<User> users = new ArrayList<>(count);
+            Map<String, UserStore.Location> loans = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                int length = data.getInt();
+                int end = data.position() + length;
+
+                byte type = data.get();
+                String name = getString(data);
+                User user = type == TYPE_LIBRARIAN ? new Librarian(name) : new User(name);
+
+                if (version >= FIRST_DIRECTORY_USERS_VERSION) {
+                    long offset = data.getLong();
+                    int loansLength = data.getInt();
+                    if (offset != NO_LOANS) {
+                        loans.put(name, new UserStore.Location(offset, loansLength));
+                    }
+                } else {
+                    int borrowedCount = data.getInt();
+                    for (int j = 0; j < borrowedCount; j++) {
+                        user.restoreLoan(data.getInt());
+                    }
+                }
+                users.add(user);
+
+                data.position(end);
+            }
+            return new UserDirectory(users, loans, loansGeneration);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            LOAD_USERS.record(System.nanoTime() - start);
+        }
+        return null;
+    }
+
+    // Checks that the file is complete and undamaged and returns the journal sequence number it was
+    // saved at. Files written before snapshots were checksummed are accepted as they are, with sequence 0.
+    public static long verifyBooks(String filename) throws IOException {
+        return verify(Paths.get(filename), BOOKS_MAGIC, BOOKS_VERSION, FIRST_CHECKSUMMED_BOOKS_VERSION);
+    }
+
+    public static long verifyUsers(String filename) throws IOException {
+        return verify(Paths.get(filename), USERS_MAGIC, USERS_VERSION, FIRST_CHECKSUMMED_USERS_VERSION);
+    }
+
+    private static long verify(Path path, int magic, short supportedVersion, short firstChecksummedVersion) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Metrics.addBytesRead(data.limit());
+            if (data.limit() < Integer.BYTES + Short.BYTES) {
+                throw new IOException(path + " is not a library data file");
+            }
+
+            short version = readHeader(data, path, magic, supportedVersion);
+            if (version < firstChecksummedVersion) {
+                return 0;
+            }
+
+            if (data.limit() < Integer.BYTES + Short.BYTES + Long.BYTES + Integer.BYTES) {
+                throw new IOException(path + " is damaged (too short)");
+            }
+            long sequence = data.getLong();
+
+            int checksumPosition = data.limit() - Integer.BYTES;
+            ByteBuffer contents = data.duplicate();
+            contents.position(0).limit(checksumPosition);
+            CRC32 crc = new CRC32();
+            crc.update(contents);
+            if ((int) crc.getValue() != data.getInt(checksumPosition)) {
+                throw new IOException(path + " is damaged (checksum mismatch)");
+            }
+            return sequence;
+        } finally {
+            VERIFY.record(System.nanoTime() - start);
+        }
+    }
+
+    private static ByteBuffer read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+            while (data.hasRemaining() && channel.read(data) >= 0) {
+                // keep reading until the whole file is in the buffer
+            }
+            data.flip();
+            Metrics.addBytesRead(data.limit());
+            return data;
+        }
+    }
+
+    private static short readHeader(ByteBuffer data, Path path, int magic, short supportedVersion) throws IOException {
+        if (data.getInt() != magic) {
+            throw new IOException(path + " is not a library data file");
+        }
+        short version = data.getShort();
+        if (version > supportedVersion) {
+            throw new IOException(path + " has unsupported version " + version);
+        }
+        return version;
+    }
+
+    private static String getString(ByteBuffer data) {
+        byte[] bytes = new byte[data.getInt()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // the borrower is filled in by the catalog once the users have been loaded
+    private static void restoreLoanDate(Book book, long epochSecond) {
+        if (epochSecond != NO_LOAN_DATE) {
+            book.restoreLoan(null, epochSecond);
+        }
+    }
+
+    // Encodes one record at a time into a reusable buffer and hands full output buffers to the channel.
+    // The data is written to a temporary file which replaces the target file when the writer is committed,
+    // and the replaced file becomes the backup.
+    private static class Writer implements AutoCloseable {
+        private final Path path;
+        private final Path temporaryPath;
+        private final FileChannel channel;
+        private final ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer record = ByteBuffer.allocate(BUFFER_SIZE);
+        private long written;
+
+        Writer(Path path) throws IOException {
+            this.path = path;
+            this.temporaryPath = Paths.get(path + ".tmp");
+            channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        void header(int magic, short version, long sequence) throws IOException {
+            record.putInt(magic);
+            record.putShort(version);
+            record.putLong(sequence);
+            writeRaw();
+        }
+
+        long position() {
+            return written + output.position();
+        }
+
+        void patchLong(long position, long value) throws IOException {
+            flush();
+            ByteBuffer patch = ByteBuffer.allocate(Long.BYTES).putLong(value);
+            patch.flip();
+            channel.write(patch, position);
+        }
+
+        void putString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            ensureCapacity(Integer.BYTES + bytes.length);
+            record.putInt(bytes.length);
+            record.put(bytes);
+        }
+
+        void ensureCapacity(int bytes) {
+            // fixed-size fields are written without checks, so always keep some headroom for them
+            if (record.remaining() >= bytes + 64) {
+                return;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + bytes + 64));
+            record.flip();
+            larger.put(record);
+            record = larger;
+        }
+
+        void writeRecord() throws IOException {
+            record.flip();
+            put(record.remaining(), true);
+        }
+
+        void writeRaw() throws IOException {
+            record.flip();
+            put(0, false);
+        }
+
+        private void put(int length, boolean lengthPrefixed) throws IOException {
+            if (output.remaining() < Integer.BYTES + record.remaining()) {
+                flush();
+            }
+            if (lengthPrefixed) {
+                output.putInt(length);
+            }
+            if (output.remaining() < record.remaining()) {
+                // record larger than the output buffer, write it straight through
+                flush();
+                while (record.hasRemaining()) {
+                    written += channel.write(record);
+                }
+            } else {
+                output.put(record);
+            }
+            record.clear();
+        }
+
+        private void flush() throws IOException {
+            output.flip();
+            while (output.hasRemaining()) {
+                written += channel.write(output);
+            }
+            output.clear();
+        }
+
+        void commit() throws IOException {
+            flush();
+
+            // checksummed after writing because of patchLong(), the file is still in the page cache
+            CRC32 crc = new CRC32();
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, written));
+            ByteBuffer checksum = ByteBuffer.allocate(Integer.BYTES).putInt((int) crc.getValue());
+            checksum.flip();
+            channel.write(checksum, written);
+            Metrics.addBytesWritten(written + Integer.BYTES);
+
+            channel.force(true);
+            channel.close();
+
+            // if there is a crash between the two moves the backup is the newest snapshot, and is used
+            if (Files.exists(path)) {
+                Files.move(path, Paths.get(path + BACKUP_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel.isOpen()) {
+                // not committed, leave the existing file untouched
+                channel.close();
+                Files.deleteIfExists(temporaryPath);
+            }
+        }
+    }
+}
@@ -1,20 +1,82 @@
 package com.company;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class Book implements Serializable {
+    private static final long serialVersionUID = -1057286143142777872L; // pinned so that old .ser files can still be migrated
+
+    private static final AtomicReferenceFieldUpdater<Book, Loan> LOAN =
+            AtomicReferenceFieldUpdater.newUpdater(Book.class, Loan.class, "loan");
+
+    // marks a book that has been removed from the catalog so that it can no longer be borrowed
+    private static final Loan REMOVED = new Loan(null, 0, false);
+
+    private final int id;
+    // copies of the same title share the id of the first copy, see HoldQueues
+    private transient int titleId;
     private String title;
     private String author;
     private String description;
-    private LocalDateTime loanDate;
+    private transient MappedText mappedDescription;
+
+    // null while the book is in the library, replaced as a whole on every borrow, return and hold
+    private transient volatile Loan loan;
 
-    public Book(String title, String author, String description) {
+    public Book(int id, String title, String author, String description) {
+        this(id, id, title, author, description);
+    }
+
+    public Book(int id, int titleId, String title, String author, String description) {
+        this.id = id;
+        this.titleId = titleId;
         this.title = title;
         this.author = author;
         this.description = description;
     }
 
+    // Used when loading from disk, the description is only decoded when somebody asks for it.
+    public Book(int id, int titleId, String title, String author, MappedText description) {
+        this.id = id;
+        this.titleId = titleId;
+        this.title = title;
+        this.author = author;
+        this.mappedDescription = description;
+    }
+
+    // A borrowed book, or with held set a returned book that is kept for the next user waiting for
+    // the title; borrower is then that user and loanEpochSecond when the hold started.
+    static final class Loan {
+        private final User borrower;
+        private final long loanEpochSecond;
+        private final boolean held;
+
+        Loan(User borrower, long loanEpochSecond, boolean held) {
+            this.borrower = borrower;
+            this.loanEpochSecond = loanEpochSecond;
+            this.held = held;
+        }
+    }
+
+    // books from .ser files predate copies, every book is its own title
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        titleId = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getTitleId() {
+        return titleId;
+    }
+
     public String getTitle() {
         return title;
     }
@@ -24,24 +86,124 @@ public class Book implements Serializable {
     }
 
     public String getDescription() {
-        return description;
+        return description != null ? description : mappedDescription.decode();
     }
 
-    public LocalDateTime getLoanDate() {
-        return loanDate;
+    // Succeeds for exactly one caller while the book is available.
+    public boolean tryBorrow(User user, long loanEpochSecond) {
+        return LOAN.compareAndSet(this, null, new Loan(user, loanEpochSecond, false));
     }
 
-    public void setLoanDate(LocalDateTime loanDate) {
-        this.loanDate = loanDate;
+    // Succeeds only if the book is held for the given user.
+    public boolean tryBorrowHeld(User user, long loanEpochSecond) {
+        Loan current = loan;
+        return current != null && current.held && current.borrower == user
+                && LOAN.compareAndSet(this, current, new Loan(user, loanEpochSecond, false));
+    }
+
+    // Succeeds only if the book is currently borrowed by the given user.
+    public boolean tryReturn(User user) {
+        return tryReturn(user, null, 0);
+    }
+
+    // Like tryReturn(), but with a holder the book is held for that user instead of becoming available.
+    public boolean tryReturn(User user, User holder, long holdEpochSecond) {
+        Loan current = loan;
+        return current != null && current != REMOVED && !current.held && current.borrower == user
+                && LOAN.compareAndSet(this, current, holder != null ? new Loan(holder, holdEpochSecond, true) : null);
+    }
+
+    // Ends the hold for the given user, the book is then held for the next holder or, without one,
+    // available again.
+    public boolean tryEndHold(User holder, User nextHolder, long holdEpochSecond) {
+        Loan current = loan;
+        return current != null && current.held && current.borrower == holder
+                && LOAN.compareAndSet(this, current, nextHolder != null ? new Loan(nextHolder, holdEpochSecond, true) : null);
+    }
+
+    public boolean tryRemove() {
+        return LOAN.compareAndSet(this, null, REMOVED);
+    }
+
+    // Makes the book share strings with the books already in the catalog: the author through the
+    // catalog's intern table, the title with the first copy of the title. Only called while the book
+    // is added to the catalog, before other sessions can see it.
+    void shareStrings(Interner authors, Book firstCopy) {
+        author = authors.intern(author);
+        if (firstCopy != null && firstCopy.title.equals(title)) {
+            title = firstCopy.title;
+        }
+    }
+
+    // A copy with the book's current loan, so that a snapshot can be written while the book changes.
+    public Book copy() {
+        Book copy = new Book(id, titleId, title, author, description);
+        copy.mappedDescription = mappedDescription;
+        copy.loan = loan;
+        return copy;
+    }
+
+    // Sets the loan read from disk, only used while loading before the book is shared.
+    public void restoreLoan(User borrower, long loanEpochSecond) {
+        loan = new Loan(borrower, loanEpochSecond, false);
+    }
+
+    public void restoreHold(User holder, long holdEpochSecond) {
+        loan = new Loan(holder, holdEpochSecond, true);
+    }
+
+    // Fills in the borrower of a loan that was read from disk without one, see UserStore.
+    public boolean restoreBorrower(User borrower) {
+        Loan current = loan;
+        return current != null && current != REMOVED && !current.held && current.borrower == null
+                && LOAN.compareAndSet(this, current, new Loan(borrower, current.loanEpochSecond, false));
+    }
+
+    // the current loan state as a whole, for CatalogVersion
+    Loan getLoan() {
+        return loan;
+    }
+
+    public boolean isAvailable() {
+        return loan == null;
+    }
+
+    public User getBorrower() {
+        Loan current = loan;
+        return current == null || current.held ? null : current.borrower;
+    }
+
+    public boolean isHeld() {
+        Loan current = loan;
+        return current != null && current.held;
+    }
+
+    // the user the book is held for, null if it is not held
+    public User getHolder() {
+        Loan current = loan;
+        return current != null && current.held ? current.borrower : null;
+    }
+
+    // for a held book when the hold started
+    public long getLoanEpochSecond() {
+        Loan current = loan;
+        return current == null ? 0 : current.loanEpochSecond;
+    }
+
+    public LocalDateTime getLoanDate() {
+        Loan current = loan;
+        return current == null || current == REMOVED ? null
+                : LocalDateTime.ofInstant(Instant.ofEpochSecond(current.loanEpochSecond), ZoneId.systemDefault());
     }
 
     @Override
     public String toString() {
         return "Book{" +
-                "title='" + title + '\'' +
+                "id=" + id +
+                ", title='" + title + '\'' +
                 ", author='" + author + '\'' +
-                ", description='" + description + '\'' +
-                ", loanDate=" + loanDate +
+                ", description='" + getDescription() + '\'' +
+                ", loanDate=" + getLoanDate() +
                 '}';
     }
 }
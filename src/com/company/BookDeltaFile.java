@@ -0,0 +1,266 @@
+package com.company;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// The books that changed from one snapshot to the next, so that a snapshot does not have to rewrite
+// every book (and decode every description) when only a few were borrowed or returned. Each snapshot
+// appends one block with the changes since the snapshot before it, also the snapshots that write the
+// books file in full. Those then start a new file and keep the old one as the backup, whose blocks
+// lead from the backup of the books file to the new books file, so that either books file can be
+// brought up to the newest snapshot.
+//
+// File layout: a sequence of blocks, each the length of the block (int), the sequence number of the
+// snapshot the changes are from (long), the sequence number of its snapshot (long), the changed books
+// (count, then id, title id, loan date, title, author, description and holder name, -1 for no holder),
+// the ids of the removed books (count, then ids), the hold queues as they were at that snapshot
+// (count, then title id and the names in line) and a CRC32 of everything before it in the block (int).
+public class BookDeltaFile {
+    private static final long NO_LOAN_DATE = Long.MIN_VALUE;
+
+    private static final LatencyHistogram SAVE = Metrics.latency("io.saveBookDelta");
+    private static final LatencyHistogram LOAD = Metrics.latency("io.loadBookDelta");
+
+    private final Path file;
+    private final Path backupFile;
+
+    // where the last intact block of the file ends, a new block is written from there
+    private long end;
+
+    // One snapshot's changes. The books carry their loan date, holders maps the ids of the held ones
+    // to the names of the users they are held for.
+    public static class Block {
+        public final long fromSequence;
+        public final long sequence;
+        public final List<Book> books;
+        public final Map<Integer, String> holders;
+        public final int[] removedIds;
+        public final Map<Integer, List<String>> queues;
+
+        Block(long fromSequence, long sequence, List<Book> books, Map<Integer, String> holders, int[] removedIds,
+              Map<Integer, List<String>> queues) {
+            this.fromSequence = fromSequence;
+            this.sequence = sequence;
+            this.books = books;
+            this.holders = holders;
+            this.removedIds = removedIds;
+            this.queues = queues;
+        }
+    }
+
+    public BookDeltaFile(Path file) {
+        this.file = file;
+        this.backupFile = Path.of(file + BinaryCodec.BACKUP_SUFFIX);
+    }
+
+    // Reads the intact blocks of the backup and of the file, in the order they were written. Blocks
+    // of snapshots that did not make it are among them, they lead to sequence numbers no users file has.
+    public List<Block> load() {
+        List<Block> blocks = new ArrayList<>();
+        read(backupFile, blocks);
+        end = read(file, blocks);
+        return blocks;
+    }
+
+    // where the intact blocks end, what comes after them was being written when the program stopped
+    private static long read(Path path, List<Block> blocks) {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Metrics.addBytesRead(data.limit());
+
+            while (data.remaining() >= Integer.BYTES) {
+                int blockStart = data.position();
+                int length = data.getInt(blockStart);
+                if (length < Integer.BYTES + 2 * Long.BYTES + Integer.BYTES || length > data.remaining()
+                        || !checksumMatches(data, blockStart, length)) {
+                    break;
+                }
+                data.position(blockStart + Integer.BYTES);
+                blocks.add(readBlock(data));
+                data.position(blockStart + length);
+            }
+            return data.position();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("ERROR: Could not read " + path + ", ignoring it!");
+            return 0;
+        } finally {
+            LOAD.record(System.nanoTime() - start);
+        }
+    }
+
+    private static Block readBlock(ByteBuffer data) {
+        long fromSequence = data.getLong();
+        long sequence = data.getLong();
+
+        int count = data.getInt();
+        List<Book> books = new ArrayList<>(count);
+        Map<Integer, String> holders = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            int id = data.getInt();
+            int titleId = data.getInt();
+            long loanDate = data.getLong();
+            Book book = new Book(id, titleId, getString(data), getString(data), getString(data));
+            if (loanDate != NO_LOAN_DATE) {
+                book.restoreLoan(null, loanDate);
+            }
+            String holder = getString(data);
+            if (holder != null) {
+                holders.put(id, holder);
+            }
+            books.add(book);
+        }
+
+        int[] removedIds = new int[data.getInt()];
+        for (int i = 0; i < removedIds.length; i++) {
+            removedIds[i] = data.getInt();
+        }
+
+        int queueCount = data.getInt();
+        Map<Integer, List<String>> queues = new HashMap<>();
+        for (int i = 0; i < queueCount; i++) {
+            int titleId = data.getInt();
+            List<String> names = new ArrayList<>();
+            int waiting = data.getInt();
+            for (int j = 0; j < waiting; j++) {
+                names.add(getString(data));
+            }
+            queues.put(titleId, names);
+        }
+        return new Block(fromSequence, sequence, books, holders, removedIds, queues);
+    }
+
+    // Called once the books file has been written in full. The blocks that led to it become the
+    // backup, the blocks that lead to the backup before that are no longer needed.
+    public void rotate() {
+        try {
+            if (Files.exists(file)) {
+                Files.move(file, backupFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            end = 0;
+        } catch (IOException e) {
+            // the blocks stay in the file, where they are found as well
+            e.printStackTrace();
+        }
+    }
+
+    // the bytes a load has to read on top of the books file
+    public long size() {
+        return end;
+    }
+
+    // Appends the block with the changes from the snapshot with fromSequence to the one with sequence,
+    // the books being copies taken while nothing changed. Only called by one thread at a time (the
+    // snapshot writer).
+    public boolean append(long fromSequence, long sequence, Collection<Book> books, int[] removedIds,
+                          Map<Integer, List<String>> queues) {
+        long start = System.nanoTime();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0); // the length, filled in below
+            out.writeLong(fromSequence);
+            out.writeLong(sequence);
+
+            out.writeInt(books.size());
+            for (Book book : books) {
+                out.writeInt(book.getId());
+                out.writeInt(book.getTitleId());
+                out.writeLong(book.isAvailable() ? NO_LOAN_DATE : book.getLoanEpochSecond());
+                putString(out, book.getTitle());
+                putString(out, book.getAuthor());
+                putString(out, book.getDescription());
+                putString(out, book.isHeld() ? book.getHolder().getName() : null);
+            }
+
+            out.writeInt(removedIds.length);
+            for (int id : removedIds) {
+                out.writeInt(id);
+            }
+
+            out.writeInt(queues.size());
+            for (Map.Entry<Integer, List<String>> queue : queues.entrySet()) {
+                out.writeInt(queue.getKey());
+                out.writeInt(queue.getValue().size());
+                for (String name : queue.getValue()) {
+                    putString(out, name);
+                }
+            }
+            out.flush();
+
+            byte[] contents = bytes.toByteArray();
+            ByteBuffer block = ByteBuffer.allocate(contents.length + Integer.BYTES);
+            block.put(contents).putInt(0, block.capacity());
+            CRC32 crc = new CRC32();
+            crc.update(block.array(), 0, contents.length);
+            block.putInt((int) crc.getValue());
+            block.flip();
+
+            // written over whatever a block that was being written when the program stopped left behind
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long position = end;
+                while (block.hasRemaining()) {
+                    position += channel.write(block, position);
+                }
+                channel.truncate(position);
+                channel.force(true);
+                Metrics.addBytesWritten(block.capacity());
+                end = position;
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            SAVE.record(System.nanoTime() - start);
+        }
+    }
+
+    private static boolean checksumMatches(ByteBuffer data, int blockStart, int length) {
+        ByteBuffer contents = data.duplicate();
+        contents.position(blockStart).limit(blockStart + length - Integer.BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        return (int) crc.getValue() == data.getInt(blockStart + length - Integer.BYTES);
+    }
+
+    // null is written as length -1
+    private static void putString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer data) {
+        int length = data.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,167 @@
+package com.company;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+// Imports books from a delimited file with one "title, author[, description]" row per line. Files
+// ending in .tsv are tab separated, anything else is read as CSV with optional double quotes. The
+// file is streamed in chunks; each chunk is parsed and validated in parallel and then added to the
+// library as one batch. Rows whose title and author already exist in the catalog are skipped.
+public class BookImporter {
+    private static final int CHUNK_SIZE = 10_000;
+    private static final int MAX_FIELD_LENGTH = 10_000;
+    private static final int MAX_REPORTED_ERRORS = 10;
+
+    private final Library library;
+    private final PrintStream out;
+
+    private final Set<String> knownBooks = new HashSet<>();
+
+    private long imported;
+    private long duplicates;
+    private long invalid;
+
+    public BookImporter(Library library, PrintStream out) {
+        this.library = library;
+        this.out = out;
+    }
+
+    public void importFile(String filename) {
+        Path path = Paths.get(filename);
+        char delimiter = filename.toLowerCase().endsWith(".tsv") ? '\t' : ',';
+
+        for (Book book : library.getCatalog().getAllBooks()) {
+            knownBooks.add(key(book.getTitle(), book.getAuthor()));
+        }
+
+        long start = System.nanoTime();
+
+        try (Stream<String> lines = Files.lines(path, StandardCharsets.UTF_8)) {
+            Iterator<String> iterator = lines.iterator();
+            List<String> chunk = new ArrayList<>(CHUNK_SIZE);
+            long firstLineNumber = 1;
+
+            while (iterator.hasNext()) {
+                chunk.add(iterator.next());
+
+                if (chunk.size() == CHUNK_SIZE || !iterator.hasNext()) {
+                    importChunk(chunk, firstLineNumber, delimiter);
+                    firstLineNumber += chunk.size();
+                    chunk.clear();
+
+                    out.printf("... %,d rows read, %,d imported\n", firstLineNumber - 1, imported);
+                    out.flush();
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            out.println("ERROR: Could not read " + filename + ": " + e.getMessage());
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long rows = imported + duplicates + invalid;
+        out.printf("Imported %,d books (%,d duplicates and %,d invalid rows skipped) in %.2f s, %,.0f rows/s\n",
+                imported, duplicates, invalid, seconds, rows / Math.max(seconds, 1e-9));
+    }
+
+    private void importChunk(List<String> chunk, long firstLineNumber, char delimiter) {
+        List<String[]> rows = IntStream.range(0, chunk.size()).parallel()
+                .mapToObj(i -> parse(chunk.get(i), firstLineNumber + i, delimiter))
+                .collect(Collectors.toList());
+
+        List<Book> books = new ArrayList<>();
+        for (String[] row : rows) {
+            if (row == null) {
+                continue; // header or empty line
+            }
+            if (row.length == 1) {
+                invalid++;
+                if (invalid <= MAX_REPORTED_ERRORS) {
+                    out.println("ERROR: " + row[0]);
+                }
+                continue;
+            }
+            if (!knownBooks.add(key(row[0], row[1]))) {
+                duplicates++;
+                continue;
+            }
+            books.add(new Book(library.getCatalog().nextBookId(), row[0], row[1], row[2]));
+        }
+
+        library.addBooks(books);
+        imported += books.size();
+    }
+
+    // Returns {title, author, description}, null for lines to ignore, or {error message} for bad rows.
+    private static String[] parse(String line, long lineNumber, char delimiter) {
+        if (line.isBlank()) {
+            return null;
+        }
+
+        List<String> fields = split(line, delimiter);
+        if (lineNumber == 1 && fields.size() >= 2 && fields.get(0).equalsIgnoreCase("title")
+                && fields.get(1).equalsIgnoreCase("author")) {
+            return null;
+        }
+
+        if (fields.size() < 2 || fields.size() > 3) {
+            return new String[]{"line " + lineNumber + ": expected 2 or 3 fields but found " + fields.size()};
+        }
+
+        String title = fields.get(0).strip();
+        String author = fields.get(1).strip();
+        String description = fields.size() == 3 ? fields.get(2).strip() : "";
+
+        if (title.isEmpty() || author.isEmpty()) {
+            return new String[]{"line " + lineNumber + ": title and author must not be empty"};
+        }
+        if (title.length() > MAX_FIELD_LENGTH || author.length() > MAX_FIELD_LENGTH || description.length() > MAX_FIELD_LENGTH) {
+            return new String[]{"line " + lineNumber + ": field longer than " + MAX_FIELD_LENGTH + " characters"};
+        }
+
+        return new String[]{title, author, description};
+    }
+
+    private static List<String> split(String line, char delimiter) {
+        List<String> fields = new ArrayList<>(3);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+
+            if (delimiter != '\t' && c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"'); // escaped quote
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == delimiter && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+
+        return fields;
+    }
+
+    private static String key(String title, String author) {
+        return title.toLowerCase() + '\u0000' + author.toLowerCase();
+    }
+}
@@ -0,0 +1,640 @@
+package com.company;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+// A query over the books, written as text or built in code:
+//
+//     author:tolkien AND available AND NOT overdue LIMIT 10
+//     BookQuery.where(BookQuery.and(BookQuery.author("tolkien"), BookQuery.available(), BookQuery.not(BookQuery.overdue()))).limit(10)
+//
+// Terms are title:, author:, description: (all "contains", ignoring case), borrower: (a user name),
+// and the states available, borrowed, held and overdue. A word on its own matches titles and
+// authors, and a value with spaces is quoted: title:"the hobbit". Terms are combined with AND (also
+// implied between two terms), OR, NOT and parentheses, and LIMIT n keeps the first n books. A query
+// starting with EXPLAIN is run as usual, and asks for its plan and timings to be shown as well.
+//
+// Books are found in the order they were added. See QueryPlan for how a query is run.
+public class BookQuery {
+    public static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    private final Condition condition;
+    private final int limit;
+    private final boolean explain;
+
+    private BookQuery(Condition condition, int limit, boolean explain) {
+        this.condition = condition;
+        this.limit = limit;
+        this.explain = explain;
+    }
+
+    public static BookQuery where(Condition condition) {
+        return new BookQuery(condition, NO_LIMIT, false);
+    }
+
+    public BookQuery limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit can not be negative");
+        }
+        return new BookQuery(condition, limit, explain);
+    }
+
+    public BookQuery explain() {
+        return new BookQuery(condition, limit, true);
+    }
+
+    public Condition getCondition() {
+        return condition;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public boolean isExplain() {
+        return explain;
+    }
+
+    public QueryPlan plan(Library library) {
+        return QueryPlan.plan(this, library);
+    }
+
+    public QueryPlan.Result run(Library library) {
+        return plan(library).run();
+    }
+
+    @Override
+    public String toString() {
+        List<String> parts = new ArrayList<>();
+        if (explain) {
+            parts.add("EXPLAIN");
+        }
+        if (!condition.toString().isEmpty()) {
+            parts.add(condition.toString());
+        }
+        if (limit != NO_LIMIT) {
+            parts.add("LIMIT " + limit);
+        }
+        return String.join(" ", parts);
+    }
+
+    // Conditions
+
+    public static Condition title(String text) {
+        return new Contains(Field.TITLE, text);
+    }
+
+    public static Condition author(String text) {
+        return new Contains(Field.AUTHOR, text);
+    }
+
+    public static Condition description(String text) {
+        return new Contains(Field.DESCRIPTION, text);
+    }
+
+    public static Condition borrower(String name) {
+        return new Borrower(name);
+    }
+
+    public static Condition available() {
+        return new State(StateKind.AVAILABLE);
+    }
+
+    public static Condition borrowed() {
+        return new State(StateKind.BORROWED);
+    }
+
+    public static Condition held() {
+        return new State(StateKind.HELD);
+    }
+
+    public static Condition overdue() {
+        return new State(StateKind.OVERDUE);
+    }
+
+    public static Condition not(Condition condition) {
+        return new Not(condition);
+    }
+
+    // and() of nothing matches every book
+    public static Condition and(Condition... conditions) {
+        List<Condition> all = new ArrayList<>();
+        for (Condition condition : conditions) {
+            all.addAll(condition instanceof And ? ((And) condition).conditions : List.of(condition));
+        }
+        return all.size() == 1 ? all.get(0) : new And(all);
+    }
+
+    public static Condition or(Condition... conditions) {
+        List<Condition> all = new ArrayList<>();
+        for (Condition condition : conditions) {
+            all.addAll(condition instanceof Or ? ((Or) condition).conditions : List.of(condition));
+        }
+        return all.size() == 1 ? all.get(0) : new Or(all);
+    }
+
+    public abstract static class Condition {
+        // relative cost of testing one book, QueryPlan tests the cheap conditions first
+        abstract int cost();
+
+        abstract Predicate<Book> compile(QueryPlan.Context context);
+
+        // Somewhere to find the matching books (and maybe others) without looking at every book,
+        // null if there is no such place.
+        QueryPlan.Source source(QueryPlan.Context context) {
+            return null;
+        }
+
+        // the conditions that must all hold, for the planner
+        List<Condition> conjuncts() {
+            return List.of(this);
+        }
+
+        // the text form, parsed back to the same condition
+        @Override
+        public abstract String toString();
+    }
+
+    private enum Field {
+        TITLE, AUTHOR, DESCRIPTION
+    }
+
+    private static class Contains extends Condition {
+        private final Field field;
+        private final String text;
+
+        Contains(Field field, String text) {
+            this.field = field;
+            this.text = text;
+        }
+
+        @Override
+        int cost() {
+            // a description is decoded from the books file first
+            return field == Field.DESCRIPTION ? 20 : 2;
+        }
+
+        @Override
+        Predicate<Book> compile(QueryPlan.Context context) {
+            // lower case the same way the indexes do
+            String searchString = text.toLowerCase();
+            switch (field) {
+                case TITLE:
+                    return book -> book.getTitle().toLowerCase().contains(searchString);
+                case AUTHOR:
+                    return book -> book.getAuthor().toLowerCase().contains(searchString);
+                default:
+                    return book -> book.getDescription().toLowerCase().contains(searchString);
+            }
+        }
+
+        @Override
+        QueryPlan.Source source(QueryPlan.Context context) {
+            Library library = context.library;
+            switch (field) {
+                case TITLE:
+                    return new QueryPlan.Source("title index " + quote(text), library.estimateTitleMatches(text), true,
+                            () -> library.searchByTitle(text).stream());
+                case AUTHOR:
+                    return new QueryPlan.Source("author index " + quote(text), library.estimateAuthorMatches(text), true,
+                            () -> library.searchByAuthor(text).stream());
+                default:
+                    // the description index ranks its matches and only keeps the best ones
+                    return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return field.name().toLowerCase(Locale.ROOT) + ":" + quote(text);
+        }
+    }
+
+    private static class Borrower extends Condition {
+        private final String name;
+
+        Borrower(String name) {
+            this.name = name;
+        }
+
+        @Override
+        int cost() {
+            return 1;
+        }
+
+        @Override
+        Predicate<Book> compile(QueryPlan.Context context) {
+            User user = context.library.getUser(name);
+            if (user == null) {
+                return book -> false;
+            }
+            // reads the user's loans if nobody has yet, so that the books know their borrower
+            context.library.getBorrowedBooks(user);
+            return book -> book.getBorrower() == user;
+        }
+
+        @Override
+        QueryPlan.Source source(QueryPlan.Context context) {
+            User user = context.library.getUser(name);
+            List<Book> loans = user != null ? context.library.getBorrowedBooks(user) : List.of();
+            return new QueryPlan.Source("loans of " + quote(name), loans.size(), true, loans::stream);
+        }
+
+        @Override
+        public String toString() {
+            return "borrower:" + quote(name);
+        }
+    }
+
+    private enum StateKind {
+        AVAILABLE, BORROWED, HELD, OVERDUE
+    }
+
+    private static class State extends Condition {
+        private final StateKind kind;
+
+        State(StateKind kind) {
+            this.kind = kind;
+        }
+
+        @Override
+        int cost() {
+            return 1;
+        }
+
+        @Override
+        Predicate<Book> compile(QueryPlan.Context context) {
+            switch (kind) {
+                case AVAILABLE:
+                    return Book::isAvailable;
+                case BORROWED:
+                    return book -> !book.isAvailable() && !book.isHeld();
+                case HELD:
+                    return Book::isHeld;
+                default: {
+                    // the same as Library.isOverdue(), without a LocalDateTime per book
+                    long loanSeconds = Library.LOAN_DURATION.getSeconds();
+                    long now = context.nowEpochSecond;
+                    return book -> !book.isAvailable() && !book.isHeld() && now > book.getLoanEpochSecond() + loanSeconds;
+                }
+            }
+        }
+
+        @Override
+        QueryPlan.Source source(QueryPlan.Context context) {
+            Library library = context.library;
+            CatalogVersion version = context.version;
+            switch (kind) {
+                case AVAILABLE:
+                    // the version may be a moment behind, so the books are checked again
+                    return QueryPlan.Source.inIdOrder("available books", version.countAvailable(), false,
+                            version::streamAvailableBooks);
+                case BORROWED:
+                    // held books are counted as well
+                    return new QueryPlan.Source("loans", version.size() - version.countAvailable(), true,
+                            () -> library.getLoanedBooks().stream());
+                case HELD: {
+                    List<Book> held = library.getHeldBooks();
+                    return new QueryPlan.Source("held books", held.size(), true, held::stream);
+                }
+                default:
+                    return new QueryPlan.Source("overdue loans", library.countOverdueBooks(), false,
+                            () -> library.getOverdueBooks().stream());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return kind.name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static class Not extends Condition {
+        private final Condition condition;
+
+        Not(Condition condition) {
+            this.condition = condition;
+        }
+
+        @Override
+        int cost() {
+            return condition.cost();
+        }
+
+        @Override
+        Predicate<Book> compile(QueryPlan.Context context) {
+            return condition.compile(context).negate();
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + (condition instanceof And || condition instanceof Or ? "(" + condition + ")" : condition);
+        }
+    }
+
+    private static class And extends Condition {
+        private final List<Condition> conditions;
+
+        And(List<Condition> conditions) {
+            this.conditions = conditions;
+        }
+
+        @Override
+        int cost() {
+            return conditions.stream().mapToInt(Condition::cost).sum();
+        }
+
+        @Override
+        Predicate<Book> compile(QueryPlan.Context context) {
+            Predicate<Book> predicate = book -> true;
+            for (Condition condition : QueryPlan.cheapestFirst(conditions)) {
+                predicate = predicate.and(condition.compile(context));
+            }
+            return predicate;
+        }
+
+        // the smallest of the parts, the other parts are tested against its books
+        @Override
+        QueryPlan.Source source(QueryPlan.Context context) {
+            QueryPlan.Source smallest = null;
+            for (Condition condition : conditions) {
+                QueryPlan.Source source = condition.source(context);
+                if (source != null && (smallest == null || source.estimate < smallest.estimate)) {
+                    smallest = source;
+                }
+            }
+            return smallest == null || conditions.size() == 1 ? smallest : smallest.inexact();
+        }
+
+        @Override
+        List<Condition> conjuncts() {
+            return conditions;
+        }
+
+        @Override
+        public String toString() {
+            List<String> parts = new ArrayList<>();
+            for (Condition condition : conditions) {
+                parts.add(condition instanceof Or ? "(" + condition + ")" : condition.toString());
+            }
+            return String.join(" AND ", parts);
+        }
+    }
+
+    private static class Or extends Condition {
+        private final List<Condition> conditions;
+
+        Or(List<Condition> conditions) {
+            this.conditions = conditions;
+        }
+
+        @Override
+        int cost() {
+            return conditions.stream().mapToInt(Condition::cost).sum();
+        }
+
+        @Override
+        Predicate<Book> compile(QueryPlan.Context context) {
+            Predicate<Book> predicate = book -> false;
+            for (Condition condition : QueryPlan.cheapestFirst(conditions)) {
+                predicate = predicate.or(condition.compile(context));
+            }
+            return predicate;
+        }
+
+        // the books of every part together, if every part has a source
+        @Override
+        QueryPlan.Source source(QueryPlan.Context context) {
+            List<QueryPlan.Source> sources = new ArrayList<>();
+            for (Condition condition : conditions) {
+                QueryPlan.Source source = condition.source(context);
+                if (source == null) {
+                    return null;
+                }
+                sources.add(source);
+            }
+            return QueryPlan.Source.union(sources);
+        }
+
+        @Override
+        public String toString() {
+            return String.join(" OR ", conditions.stream().map(Condition::toString).toArray(String[]::new));
+        }
+    }
+
+    private static final List<String> KEYWORDS = Arrays.asList("and", "or", "not", "limit", "explain",
+            "available", "borrowed", "held", "overdue");
+
+    private static String quote(String text) {
+        boolean plain = !text.isEmpty() && !KEYWORDS.contains(text.toLowerCase(Locale.ROOT))
+                && text.chars().noneMatch(c -> Character.isWhitespace(c) || c == '"' || c == '(' || c == ')' || c == ':');
+        return plain ? text : "\"" + text.replace("\"", "") + "\"";
+    }
+
+    // Parsing
+
+    // Throws an IllegalArgumentException saying what is wrong with the query.
+    public static BookQuery parse(String text) {
+        return new Parser(text).query();
+    }
+
+    private static class Token {
+        final String field; // null for a word, a keyword or a parenthesis
+        final String value;
+        final boolean quoted;
+
+        Token(String field, String value, boolean quoted) {
+            this.field = field;
+            this.value = value;
+            this.quoted = quoted;
+        }
+
+        boolean is(String keyword) {
+            return field == null && !quoted && value.equalsIgnoreCase(keyword);
+        }
+
+        @Override
+        public String toString() {
+            return field != null ? field + ":" + quote(value) : quoted ? "\"" + value + "\"" : value;
+        }
+    }
+
+    private static class Parser {
+        private final List<Token> tokens = new ArrayList<>();
+        private int position;
+
+        Parser(String text) {
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '(' || c == ')') {
+                    tokens.add(new Token(null, String.valueOf(c), false));
+                    i++;
+                } else {
+                    // a word, field:value or a quoted string, where the value may be quoted as well
+                    String field = null;
+                    StringBuilder value = new StringBuilder();
+                    boolean quoted = false;
+                    while (i < text.length() && !Character.isWhitespace(text.charAt(i))
+                            && text.charAt(i) != '(' && text.charAt(i) != ')') {
+                        c = text.charAt(i++);
+                        if (c == '"') {
+                            int end = text.indexOf('"', i);
+                            if (end < 0) {
+                                throw new IllegalArgumentException("A quote is not closed: " + text.substring(i - 1));
+                            }
+                            value.append(text, i, end);
+                            quoted = true;
+                            i = end + 1;
+                        } else if (c == ':' && field == null && !quoted) {
+                            field = value.toString().toLowerCase(Locale.ROOT);
+                            value.setLength(0);
+                        } else {
+                            value.append(c);
+                        }
+                    }
+                    tokens.add(new Token(field, value.toString(), quoted));
+                }
+            }
+        }
+
+        BookQuery query() {
+            boolean explain = peek() != null && peek().is("explain");
+            if (explain) {
+                position++;
+            }
+
+            Condition condition = or();
+
+            int limit = NO_LIMIT;
+            if (peek() != null && peek().is("limit")) {
+                position++;
+                Token number = next("a number after LIMIT");
+                try {
+                    limit = Integer.parseInt(number.value);
+                } catch (NumberFormatException e) {
+                    limit = -1;
+                }
+                if (number.field != null || limit < 0) {
+                    throw new IllegalArgumentException("LIMIT needs a number, not " + number);
+                }
+            }
+
+            if (peek() != null) {
+                throw new IllegalArgumentException("Did not expect " + peek() + " here");
+            }
+
+            BookQuery query = where(condition).limit(limit);
+            return explain ? query.explain() : query;
+        }
+
+        private Condition or() {
+            List<Condition> conditions = new ArrayList<>();
+            conditions.add(and());
+            while (peek() != null && peek().is("or")) {
+                position++;
+                conditions.add(and());
+            }
+            return BookQuery.or(conditions.toArray(new Condition[0]));
+        }
+
+        // AND may be left out between two terms
+        private Condition and() {
+            List<Condition> conditions = new ArrayList<>();
+            if (!atEnd()) {
+                conditions.add(not());
+                while (!atEnd()) {
+                    if (peek().is("and")) {
+                        position++;
+                    }
+                    conditions.add(not());
+                }
+            }
+            return BookQuery.and(conditions.toArray(new Condition[0]));
+        }
+
+        // where an and() ends: at the end of the query, a group, or before OR or LIMIT
+        private boolean atEnd() {
+            Token token = peek();
+            return token == null || token.is(")") || token.is("or") || token.is("limit");
+        }
+
+        private Condition not() {
+            if (peek() != null && peek().is("not")) {
+                position++;
+                return BookQuery.not(not());
+            }
+            return term();
+        }
+
+        private Condition term() {
+            Token token = next("a search term");
+
+            if (token.is("(")) {
+                Condition condition = or();
+                Token close = next("\")\"");
+                if (!close.is(")")) {
+                    throw new IllegalArgumentException("Expected \")\" instead of " + close);
+                }
+                return condition;
+            }
+
+            if (token.field != null) {
+                if (token.value.isEmpty()) {
+                    throw new IllegalArgumentException("Nothing to search for after " + token.field + ":");
+                }
+                switch (token.field) {
+                    case "title":
+                        return title(token.value);
+                    case "author":
+                        return author(token.value);
+                    case "description":
+                        return description(token.value);
+                    case "borrower":
+                        return borrower(token.value);
+                    default:
+                        throw new IllegalArgumentException("Unknown field " + token.field
+                                + ":, use title:, author:, description: or borrower:");
+                }
+            }
+
+            if (!token.quoted) {
+                switch (token.value.toLowerCase(Locale.ROOT)) {
+                    case "available":
+                        return available();
+                    case "borrowed":
+                        return borrowed();
+                    case "held":
+                        return held();
+                    case "overdue":
+                        return overdue();
+                    case ")":
+                    case "and":
+                    case "or":
+                    case "not":
+                    case "limit":
+                    case "explain":
+                        throw new IllegalArgumentException("Expected a search term instead of " + token);
+                }
+            }
+
+            return BookQuery.or(title(token.value), author(token.value));
+        }
+
+        private Token peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        private Token next(String expected) {
+            if (position == tokens.size()) {
+                throw new IllegalArgumentException("Expected " + expected + " at the end of the query");
+            }
+            return tokens.get(position++);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.company;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// The books of a catalog by id. Ids are small and handed out in increasing order, so a book is kept
+// in the slot of its id: 4-8 bytes per book, where a map from boxed ids needs a key, an entry and
+// index nodes on top (about 50 bytes per book in a ConcurrentSkipListMap).
+//
+// Reads and iteration go without locking; adding and removing lock, so that growing the array (a
+// copy into a larger one) never loses a change made at the same time.
+public class BookTable {
+    private volatile AtomicReferenceArray<Book> slots = new AtomicReferenceArray<>(16);
+    private volatile int size;
+
+    public Book get(int id) {
+        AtomicReferenceArray<Book> current = slots;
+        return id >= 0 && id < current.length() ? current.get(id) : null;
+    }
+
+    public synchronized void put(Book book) {
+        int id = book.getId();
+        AtomicReferenceArray<Book> current = slots;
+        if (id >= current.length()) {
+            AtomicReferenceArray<Book> larger = new AtomicReferenceArray<>(Math.max(id + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                larger.lazySet(i, current.get(i));
+            }
+            slots = current = larger;
+        }
+        if (current.getAndSet(id, book) == null) {
+            size++;
+        }
+    }
+
+    // false if the book was not in the table
+    public synchronized boolean remove(Book book) {
+        if (get(book.getId()) != book) {
+            return false;
+        }
+        slots.set(book.getId(), null);
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // The books in id order, i.e. the order they were added. Like the views of the concurrent
+    // collections, an iteration may or may not see changes made while it runs.
+    public Collection<Book> values() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<Book> iterator() {
+                return books();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private Iterator<Book> books() {
+        AtomicReferenceArray<Book> current = slots;
+        return new Iterator<>() {
+            private int index = -1;
+            private Book next = advance();
+
+            private Book advance() {
+                while (++index < current.length()) {
+                    Book book = current.get(index);
+                    if (book != null) {
+                        return book;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Book next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Book book = next;
+                next = advance();
+                return book;
+            }
+        };
+    }
+}
@@ -0,0 +1,207 @@
+package com.company;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Safe to share between sessions without locking. Whether a book is available, and who has it, is
+// the book's own atomically updated loan state; borrowing is a single compare-and-set on it.
+//
+// After every change a new CatalogVersion is published. Readers that walk many books (listings,
+// paging, counts) use a version so that they see one consistent state however long they take, while
+// the changes go on.
+public class Catalog {
+    // ids are handed out in increasing order, so this iterates in the order books were added
+    private final BookTable books = new BookTable();
+    private final AtomicInteger nextId = new AtomicInteger();
+    // the copies of a title other than the first one (whose id is the title id), most titles have none;
+    // an array that is replaced on every change, a list per title would cost more than the copies
+    private final Map<Integer, Book[]> extraCopies = new ConcurrentHashMap<>();
+    // most authors have many books, which then share one string
+    private final Interner authors = new Interner();
+    private final AtomicReference<CatalogVersion> version;
+
+    public Catalog(Collection<Book> books, Collection<User> users) {
+        for (Book book : books) {
+            addBook(book);
+        }
+
+        for (User user : users) {
+            for (int bookId : user.borrowedBookIds()) {
+                Book book = this.books.get(bookId);
+                if (book != null) {
+                    long loanEpochSecond = book.isAvailable() ? Instant.now().getEpochSecond() : book.getLoanEpochSecond();
+                    book.restoreLoan(user, loanEpochSecond);
+                }
+            }
+        }
+        version = new AtomicReference<>(CatalogVersion.of(this.books.values()));
+    }
+
+    public int nextBookId() {
+        return nextId.getAndIncrement();
+    }
+
+    public void addBook(Book book) {
+        book.shareStrings(authors, book.getTitleId() != book.getId() ? books.get(book.getTitleId()) : null);
+        books.put(book);
+        if (book.getTitleId() != book.getId()) {
+            extraCopies.merge(book.getTitleId(), new Book[]{book}, Catalog::concat);
+        }
+        nextId.accumulateAndGet(book.getId() + 1, Math::max);
+        if (version != null) {
+            publish(book);
+        }
+    }
+
+    // Only books that are in the library can be removed.
+    public boolean removeBook(Book book, Runnable onRemoved) {
+        if (!book.tryRemove()) {
+            return false;
+        }
+
+        onRemoved.run();
+        books.remove(book);
+        extraCopies.computeIfPresent(book.getTitleId(), (titleId, copies) -> without(copies, book));
+        publish(book);
+        return true;
+    }
+
+    // all copies of the title that are in the catalog, in the order they were added
+    public List<Book> getCopies(int titleId) {
+        List<Book> copies = new ArrayList<>();
+        Book first = books.get(titleId);
+        if (first != null && first.getTitleId() == titleId) {
+            copies.add(first);
+        }
+        Book[] extra = extraCopies.get(titleId);
+        if (extra != null) {
+            copies.addAll(Arrays.asList(extra));
+        }
+        return copies;
+    }
+
+    private static Book[] concat(Book[] copies, Book[] more) {
+        Book[] all = Arrays.copyOf(copies, copies.length + more.length);
+        System.arraycopy(more, 0, all, copies.length, more.length);
+        return all;
+    }
+
+    // null, which removes the title's entry, when no other copies are left
+    private static Book[] without(Book[] copies, Book book) {
+        Book[] rest = Arrays.stream(copies).filter(copy -> copy != book).toArray(Book[]::new);
+        return rest.length > 0 ? rest : null;
+    }
+
+    // The book is claimed first, then onBorrowed runs (e.g. to journal the loan), and only then is the
+    // loan added to the user, which is what makes it possible to return the book again.
+    public boolean borrowBook(Book book, User user, long loanEpochSecond, Runnable onBorrowed) {
+        if (!book.tryBorrow(user, loanEpochSecond)) {
+            return false;
+        }
+
+        onBorrowed.run();
+        user.borrowBook(book);
+        publish(book);
+        return true;
+    }
+
+    // Borrowing a book that is held for the user, see HoldQueues.
+    public boolean borrowHeldBook(Book book, User user, long loanEpochSecond, Runnable onBorrowed) {
+        if (!book.tryBorrowHeld(user, loanEpochSecond)) {
+            return false;
+        }
+
+        onBorrowed.run();
+        user.borrowBook(book);
+        publish(book);
+        return true;
+    }
+
+    // Mirror image of borrowBook: the loan is taken from the user first, and the book only becomes
+    // available to other borrowers after onReturned has run.
+    public boolean returnBook(Book book, User user, Runnable onReturned) {
+        return returnBook(book, user, null, 0, onReturned);
+    }
+
+    // With a holder, the book is held for that user instead of becoming available.
+    public boolean returnBook(Book book, User user, User holder, long holdEpochSecond, Runnable onReturned) {
+        if (book.getBorrower() != user || !user.returnBook(book)) {
+            return false;
+        }
+
+        onReturned.run();
+        book.tryReturn(user, holder, holdEpochSecond);
+        publish(book);
+        return true;
+    }
+
+    // the current version, see CatalogVersion
+    public CatalogVersion snapshot() {
+        return version.get();
+    }
+
+    // Publishes a version with the book as it is now. Called after every change of a book, also by
+    // those that change a book directly (e.g. an expiring hold). Every attempt reads the book again,
+    // so whichever of two concurrent publishes of a book wins, the newest version has its latest state.
+    public void publish(Book book) {
+        while (true) {
+            CatalogVersion current = version.get();
+            CatalogVersion next = books.get(book.getId()) == book
+                    ? current.with(book, book.getLoan()) : current.without(book.getId());
+            if (next == current || version.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    public Book getBook(int id) {
+        return books.get(id);
+    }
+
+    public Collection<Book> getAllBooks() {
+        return Collections.unmodifiableCollection(books.values());
+    }
+
+    public boolean isAvailable(Book book) {
+        return book.isAvailable();
+    }
+
+    public User getBorrower(Book book) {
+        return book.getBorrower();
+    }
+
+    public boolean hasAvailableBooks() {
+        return version.get().countAvailable() > 0;
+    }
+
+    public List<Book> getAvailableBooks() {
+        return version.get().streamAvailableBooks().collect(Collectors.toList());
+    }
+
+    // lazy, so that a caller showing one page of available books does not collect all of them
+    public Stream<Book> streamAvailableBooks() {
+        return version.get().streamAvailableBooks();
+    }
+
+    public List<Book> getBorrowedBooks(User user) {
+        int[] ids = user.borrowedBookIds();
+        List<Book> borrowedBooks = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            Book book = books.get(id);
+            if (book != null) {
+                borrowedBooks.add(book);
+            }
+        }
+        return borrowedBooks;
+    }
+}
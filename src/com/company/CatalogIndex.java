@@ -0,0 +1,172 @@
+package com.company;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public class CatalogIndex {
+    private final TrigramIndex<Book> titleIndex = new TrigramIndex<>(Book::getTitle);
+    private final TrigramIndex<Book> authorIndex = new TrigramIndex<>(Book::getAuthor);
+    private final FuzzyIndex<Book> fuzzyTitleIndex = new FuzzyIndex<>(Book::getTitle);
+    private final FuzzyIndex<Book> fuzzyAuthorIndex = new FuzzyIndex<>(Book::getAuthor);
+
+    private final SortedBookIndex titleOrder;
+    private final SortedBookIndex authorOrder;
+
+    // Built on the first description search, so that startup does not have to decode every description.
+    // The build takes seconds for a million books, so it runs outside the monitor: other searches,
+    // adds and removes go on meanwhile, and the books added and removed during the build are applied
+    // to the new index before it is published.
+    private static final LatencyHistogram BUILD_DESCRIPTION_INDEX = Metrics.latency("index.buildDescriptions");
+    private final Collection<Book> books;
+    private DescriptionIndex descriptionIndex;
+    // while the index is built: the build, and the books added (true) and removed (false) since it started
+    private CompletableFuture<DescriptionIndex> descriptionBuild;
+    private List<Map.Entry<Book, Boolean>> changesDuringBuild;
+
+    // books is the live collection of the catalog, it is read again when the description index is built
+    public CatalogIndex(Collection<Book> books, Locale locale) {
+        this.books = books;
+        Collator collator = Collator.getInstance(locale);
+        titleOrder = new SortedBookIndex(Book::getTitle, collator);
+        authorOrder = new SortedBookIndex(Book::getAuthor, collator);
+
+        for (Book book : books) {
+            addBook(book);
+        }
+    }
+
+    public synchronized void addBook(Book book) {
+        titleIndex.add(book);
+        authorIndex.add(book);
+        fuzzyTitleIndex.add(book);
+        fuzzyAuthorIndex.add(book);
+        titleOrder.add(book);
+        authorOrder.add(book);
+        if (descriptionIndex != null) {
+            descriptionIndex.add(book);
+        } else if (changesDuringBuild != null) {
+            changesDuringBuild.add(Map.entry(book, true));
+        }
+    }
+
+    public synchronized void removeBook(Book book) {
+        titleIndex.remove(book);
+        authorIndex.remove(book);
+        fuzzyTitleIndex.remove(book);
+        fuzzyAuthorIndex.remove(book);
+        titleOrder.remove(book);
+        authorOrder.remove(book);
+        if (descriptionIndex != null) {
+            descriptionIndex.remove(book);
+        } else if (changesDuringBuild != null) {
+            changesDuringBuild.add(Map.entry(book, false));
+        }
+    }
+
+    // the sorted views are safe to walk while books are added and removed, no need to synchronize
+    public Collection<Book> getBooksSortedByTitle() {
+        return titleOrder.getBooks();
+    }
+
+    public Collection<Book> getBooksSortedByAuthor() {
+        return authorOrder.getBooks();
+    }
+
+    public synchronized List<Book> searchByTitle(String searchString) {
+        return titleIndex.search(searchString.toLowerCase());
+    }
+
+    public synchronized List<Book> searchByAuthor(String searchString) {
+        return authorIndex.search(searchString.toLowerCase());
+    }
+
+    // at least as many as searchByTitle() would find, without searching
+    public synchronized int estimateTitleMatches(String searchString) {
+        return titleIndex.estimate(searchString.toLowerCase());
+    }
+
+    public synchronized int estimateAuthorMatches(String searchString) {
+        return authorIndex.estimate(searchString.toLowerCase());
+    }
+
+    // at most limit books, closest matches first, see FuzzyIndex
+    public synchronized List<Book> fuzzySearchByTitle(String searchString, int limit) {
+        return fuzzyTitleIndex.search(searchString, limit);
+    }
+
+    public synchronized List<Book> fuzzySearchByAuthor(String searchString, int limit) {
+        return fuzzyAuthorIndex.search(searchString, limit);
+    }
+
+    // best matches first, see DescriptionIndex
+    public List<Book> searchByDescription(String query, int limit) {
+        DescriptionIndex index = descriptionIndex();
+        synchronized (this) {
+            return index.search(query, limit);
+        }
+    }
+
+    // The first caller builds the index, on its own thread and without holding the monitor; callers
+    // that come while it does wait for the same build.
+    private DescriptionIndex descriptionIndex() {
+        CompletableFuture<DescriptionIndex> build;
+        boolean builder = false;
+        synchronized (this) {
+            if (descriptionIndex != null) {
+                return descriptionIndex;
+            }
+            if (descriptionBuild == null) {
+                descriptionBuild = new CompletableFuture<>();
+                changesDuringBuild = new ArrayList<>();
+                builder = true;
+            }
+            build = descriptionBuild;
+        }
+
+        if (builder) {
+            long start = System.nanoTime();
+            try {
+                // books is a live view, a book added or removed while it is copied is applied twice
+                // below, which adding and removing allow
+                DescriptionIndex index = new DescriptionIndex(books);
+                synchronized (this) {
+                    for (Map.Entry<Book, Boolean> change : changesDuringBuild) {
+                        if (change.getValue()) {
+                            index.add(change.getKey());
+                        } else {
+                            index.remove(change.getKey());
+                        }
+                    }
+                    descriptionIndex = index;
+                    descriptionBuild = null;
+                    changesDuringBuild = null;
+                }
+                BUILD_DESCRIPTION_INDEX.record(System.nanoTime() - start);
+                build.complete(index);
+            } catch (Throwable e) {
+                // the next search tries again
+                synchronized (this) {
+                    descriptionBuild = null;
+                    changesDuringBuild = null;
+                }
+                build.completeExceptionally(e);
+                throw e;
+            }
+        }
+        return build.join();
+    }
+
+    // 0 until the description index has been built
+    public synchronized long getDescriptionIndexBytes() {
+        return descriptionIndex != null ? descriptionIndex.sizeInBytes() : 0;
+    }
+
+    public synchronized int getDescriptionTermCount() {
+        return descriptionIndex != null ? descriptionIndex.getTermCount() : 0;
+    }
+}
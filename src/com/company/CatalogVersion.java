@@ -0,0 +1,283 @@
+package com.company;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// One immutable state of the catalog: which books are in it and the loan state each of them had.
+// Catalog publishes a new version after every change, and a reader that holds on to a version sees
+// exactly that state for as long as it likes, without locking and without seeing later changes.
+//
+// The books are kept in a trie indexed by book id, 32 slots per node. A new version copies only the
+// nodes on the path to the changed book (4 nodes for a million books) and shares everything else
+// with the previous version, so old versions cost nothing once no reader holds them anymore.
+public final class CatalogVersion {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    public static final CatalogVersion EMPTY = new CatalogVersion(0, new Object[WIDTH], 0, 0, 0);
+
+    // a book and its loan state in this version
+    private static final class Entry {
+        final Book book;
+        final Book.Loan loan;
+
+        Entry(Book book, Book.Loan loan) {
+            this.book = book;
+            this.loan = loan;
+        }
+    }
+
+    private final long number;
+    // the leaves hold entries, the other nodes hold nodes; null where there is nothing
+    private final Object[] root;
+    // number of id bits below the root, 0 if the root is a leaf
+    private final int shift;
+    private final int size;
+    private final int availableCount;
+
+    private CatalogVersion(long number, Object[] root, int shift, int size, int availableCount) {
+        this.number = number;
+        this.root = root;
+        this.shift = shift;
+        this.size = size;
+        this.availableCount = availableCount;
+    }
+
+    // The first version, with the books as they are now. Builds the trie bottom up instead of adding
+    // the books one by one, which would copy a path for every book.
+    public static CatalogVersion of(Collection<Book> books) {
+        int maxId = -1;
+        for (Book book : books) {
+            maxId = Math.max(maxId, book.getId());
+        }
+        if (maxId < 0) {
+            return EMPTY;
+        }
+
+        Object[] nodes = new Object[maxId + 1];
+        int availableCount = 0;
+        for (Book book : books) {
+            Book.Loan loan = book.getLoan();
+            nodes[book.getId()] = new Entry(book, loan);
+            if (loan == null) {
+                availableCount++;
+            }
+        }
+
+        int shift = 0;
+        while (true) {
+            Object[] parents = new Object[(nodes.length + MASK) >>> BITS];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = Arrays.copyOfRange(nodes, i << BITS, (i + 1) << BITS);
+            }
+            if (parents.length == 1) {
+                return new CatalogVersion(1, (Object[]) parents[0], shift, books.size(), availableCount);
+            }
+            nodes = parents;
+            shift += BITS;
+        }
+    }
+
+    // Increases with every change, a reader can tell whether anything changed since an earlier version.
+    public long getNumber() {
+        return number;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int countAvailable() {
+        return availableCount;
+    }
+
+    public Book getBook(int id) {
+        Entry entry = entry(id);
+        return entry != null ? entry.book : null;
+    }
+
+    // whether the book was in the library in this version
+    public boolean isAvailable(Book book) {
+        Entry entry = entry(book.getId());
+        return entry != null && entry.book == book && entry.loan == null;
+    }
+
+    // all books in the order they were added
+    public Stream<Book> stream() {
+        return StreamSupport.stream(new Entries(), false).map(entry -> entry.book);
+    }
+
+    public Stream<Book> streamAvailableBooks() {
+        return StreamSupport.stream(new Entries(), false).filter(entry -> entry.loan == null).map(entry -> entry.book);
+    }
+
+    // The next version, with the book in the given loan state. Removed books are left out with without().
+    CatalogVersion with(Book book, Book.Loan loan) {
+        int id = book.getId();
+        Object[] newRoot = root;
+        int newShift = shift;
+        while (id >>> newShift >>> BITS != 0) { // grow upwards until the id fits
+            Object[] parent = new Object[WIDTH];
+            parent[0] = newRoot;
+            newRoot = parent;
+            newShift += BITS;
+        }
+
+        Entry previous = entry(id);
+        int newSize = size + (previous == null ? 1 : 0);
+        int newAvailableCount = availableCount - (previous != null && previous.loan == null ? 1 : 0) + (loan == null ? 1 : 0);
+        return new CatalogVersion(number + 1, set(newRoot, newShift, id, new Entry(book, loan)), newShift, newSize, newAvailableCount);
+    }
+
+    CatalogVersion without(int id) {
+        Entry previous = entry(id);
+        if (previous == null) {
+            return this;
+        }
+        return new CatalogVersion(number + 1, set(root, shift, id, null), shift, size - 1,
+                availableCount - (previous.loan == null ? 1 : 0));
+    }
+
+    // Calls changed with every book that is new or has another loan state than in the older version,
+    // and removed with the id of every book that is no longer there. Nodes the two versions share are
+    // skipped without looking inside, so this takes time in proportion to the changes, not the books.
+    void diff(CatalogVersion older, Consumer<Book> changed, IntConsumer removed) {
+        int level = Math.max(shift, older.shift);
+        diff(lift(root, shift, level), lift(older.root, older.shift, level), level, 0, changed, removed);
+    }
+
+    // the root of a trie with fewer levels, as the node it would be at the given level
+    private static Object[] lift(Object[] root, int shift, int level) {
+        Object[] node = root;
+        for (int i = shift; i < level; i += BITS) {
+            Object[] parent = new Object[WIDTH];
+            parent[0] = node;
+            node = parent;
+        }
+        return node;
+    }
+
+    private static void diff(Object[] node, Object[] olderNode, int level, int firstId, Consumer<Book> changed,
+                             IntConsumer removed) {
+        if (node == olderNode) {
+            return;
+        }
+        for (int slot = 0; slot < WIDTH; slot++) {
+            Object child = node != null ? node[slot] : null;
+            Object olderChild = olderNode != null ? olderNode[slot] : null;
+            if (child == olderChild) {
+                continue;
+            }
+            int id = firstId | slot << level;
+            if (level > 0) {
+                diff((Object[]) child, (Object[]) olderChild, level - BITS, id, changed, removed);
+                continue;
+            }
+
+            Entry entry = (Entry) child;
+            Entry olderEntry = (Entry) olderChild;
+            if (entry == null) {
+                removed.accept(id);
+            } else if (olderEntry == null || entry.book != olderEntry.book || entry.loan != olderEntry.loan) {
+                changed.accept(entry.book);
+            }
+        }
+    }
+
+    private Entry entry(int id) {
+        if (id < 0 || id >>> shift >>> BITS != 0) {
+            return null;
+        }
+        Object[] node = root;
+        for (int level = shift; level > 0 && node != null; level -= BITS) {
+            node = (Object[]) node[(id >>> level) & MASK];
+        }
+        return node != null ? (Entry) node[id & MASK] : null;
+    }
+
+    // a copy of the path from the node down to the id's slot, with the slot set to the value
+    private static Object[] set(Object[] node, int level, int id, Object value) {
+        Object[] copy = node != null ? node.clone() : new Object[WIDTH];
+        int slot = (id >>> level) & MASK;
+        copy[slot] = level == 0 ? value : set((Object[]) copy[slot], level - BITS, id, value);
+        return copy;
+    }
+
+    // Through the leaves in id order. Within a leaf this is a plain array walk, the path from the root
+    // is only followed again to get to the next leaf.
+    private class Entries implements Spliterator<Entry> {
+        private final int leafDepth = shift / BITS;
+        // the nodes from the root down to the parent of the current leaf, and the next child of each
+        private final Object[][] path = new Object[leafDepth + 1][];
+        private final int[] positions = new int[leafDepth + 1];
+        private int depth;
+        private Object[] leaf;
+        private int index;
+
+        Entries() {
+            path[0] = root;
+            if (leafDepth == 0) {
+                leaf = root;
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entry> action) {
+            while (true) {
+                while (leaf != null && index < WIDTH) {
+                    Object entry = leaf[index++];
+                    if (entry != null) {
+                        action.accept((Entry) entry);
+                        return true;
+                    }
+                }
+                leaf = nextLeaf();
+                index = 0;
+                if (leaf == null) {
+                    return false;
+                }
+            }
+        }
+
+        private Object[] nextLeaf() {
+            while (depth >= 0 && leafDepth > 0) {
+                if (positions[depth] == WIDTH) {
+                    depth--;
+                    continue;
+                }
+                Object[] child = (Object[]) path[depth][positions[depth]++];
+                if (child == null) {
+                    continue;
+                }
+                if (depth + 1 == leafDepth) {
+                    return child;
+                }
+                depth++;
+                path[depth] = child;
+                positions[depth] = 0;
+            }
+            return null;
+        }
+
+        @Override
+        public Spliterator<Entry> trySplit() {
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return size;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package com.company;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+// Ranked full-text search over book descriptions. Text is normalized (NFKC, lowercase) and split
+// into words; every word has a posting list of (id delta, term frequency) pairs encoded as varints,
+// with a skip entry every SKIP_INTERVAL postings. Queries walk the posting lists of their words side
+// by side, score each book with BM25 and keep the best ones in a bounded min-heap. Once the heap is
+// full, words whose highest possible scores together cannot beat its worst entry no longer produce
+// candidates, they are only looked up (skipping ahead) for books found through the other words
+// ("MaxScore"), so very common words cost little. Removed books are left in the posting lists and
+// skipped until they make up half of the index, then the lists are rewritten without them.
+public class DescriptionIndex {
+    // BM25 parameters, the usual defaults
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    // books per task when the index is built in parallel
+    private static final int BUILD_CHUNK_SIZE = 16_384;
+    private static final int SKIP_INTERVAL = 64;
+
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final Map<Book, Integer> ids = new IdentityHashMap<>();
+
+    // indexed by id, null once the book has been removed
+    private final List<Book> books = new ArrayList<>();
+    private int[] lengths = new int[16];
+
+    private long totalLength;
+    private int removed;
+
+    // Encoded posting list. Ids are handed out in increasing order, so appending keeps it sorted.
+    private static class Postings {
+        private byte[] data = new byte[8];
+        private int size;
+        private int lastId = -1;
+        private int entries; // including removed books
+        private int documentFrequency; // books in the list that have not been removed
+
+        // skip entry k: the id before posting k * SKIP_INTERVAL and the offset of that posting
+        private int[] skipIds = new int[0];
+        private int[] skipOffsets = new int[0];
+
+        void append(int id, int frequency) {
+            if (entries % SKIP_INTERVAL == 0 && entries > 0) {
+                int k = entries / SKIP_INTERVAL - 1;
+                if (k == skipIds.length) {
+                    skipIds = Arrays.copyOf(skipIds, Math.max(4, k * 2));
+                    skipOffsets = Arrays.copyOf(skipOffsets, skipIds.length);
+                }
+                skipIds[k] = lastId;
+                skipOffsets[k] = size;
+            }
+            if (data.length - size < 10) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            size = writeVarint(data, size, id - lastId);
+            size = writeVarint(data, size, frequency);
+            lastId = id;
+            entries++;
+            documentFrequency++;
+        }
+
+        int skipCount() {
+            return entries == 0 ? 0 : (entries - 1) / SKIP_INTERVAL;
+        }
+
+        // after appending the encoded postings of another list
+        void rebuildSkips() {
+            skipIds = new int[skipCount()];
+            skipOffsets = new int[skipIds.length];
+            int id = -1;
+            int position = 0;
+            for (int entry = 0; position < size; entry++) {
+                if (entry % SKIP_INTERVAL == 0 && entry > 0) {
+                    skipIds[entry / SKIP_INTERVAL - 1] = id;
+                    skipOffsets[entry / SKIP_INTERVAL - 1] = position;
+                }
+                long delta = readVarint(data, position);
+                id += (int) delta;
+                position = (int) (readVarint(data, (int) (delta >>> 32)) >>> 32);
+            }
+        }
+    }
+
+    // Reads one posting list during a search.
+    private static class Cursor {
+        private final Postings postings;
+        private final double idf;
+        private final double maxScore; // the BM25 term score is below idf * (K1 + 1) whatever the frequency and length
+
+        private int position;
+        private int skip; // next skip entry that may be taken
+        private int id = -1; // Integer.MAX_VALUE once exhausted
+        private int frequency;
+
+        Cursor(Postings postings, double idf) {
+            this.postings = postings;
+            this.idf = idf;
+            this.maxScore = idf * (K1 + 1);
+            next();
+        }
+
+        void next() {
+            if (position >= postings.size) {
+                id = Integer.MAX_VALUE;
+                return;
+            }
+            long delta = readVarint(postings.data, position);
+            long tf = readVarint(postings.data, (int) (delta >>> 32));
+            id += (int) delta;
+            frequency = (int) tf;
+            position = (int) (tf >>> 32);
+        }
+
+        // moves to the first posting with an id of at least target
+        void advanceTo(int target) {
+            int skips = postings.skipCount();
+            while (skip < skips && postings.skipIds[skip] < target) {
+                if (postings.skipOffsets[skip] > position) {
+                    position = postings.skipOffsets[skip];
+                    id = postings.skipIds[skip];
+                }
+                skip++;
+            }
+            while (id < target) {
+                next();
+            }
+        }
+    }
+
+    public DescriptionIndex(Collection<Book> books) {
+        // the collection may be a live view, work on a copy so the chunks agree on the ids
+        Book[] initial = books.toArray(new Book[0]);
+        lengths = new int[Math.max(16, initial.length)];
+
+        int chunks = (initial.length + BUILD_CHUNK_SIZE - 1) / BUILD_CHUNK_SIZE;
+        List<Map<String, Postings>> chunkTerms = IntStream.range(0, chunks).parallel()
+                .mapToObj(chunk -> buildChunk(initial, chunk * BUILD_CHUNK_SIZE,
+                        Math.min(initial.length, (chunk + 1) * BUILD_CHUNK_SIZE)))
+                .toList();
+
+        // each chunk encodes the first id of a list as a delta from -1, re-encode it from the list so far
+        for (Map<String, Postings> chunk : chunkTerms) {
+            for (Map.Entry<String, Postings> entry : chunk.entrySet()) {
+                Postings part = entry.getValue();
+                Postings postings = terms.get(entry.getKey());
+                if (postings == null) {
+                    terms.put(entry.getKey(), part);
+                    continue;
+                }
+
+                long first = readVarint(part.data, 0);
+                int firstId = (int) first - 1;
+                int rest = (int) (first >>> 32);
+                int needed = postings.size + 5 + part.size - rest;
+                if (postings.data.length < needed) {
+                    postings.data = Arrays.copyOf(postings.data, Math.max(needed, postings.data.length * 2));
+                }
+                postings.size = writeVarint(postings.data, postings.size, firstId - postings.lastId);
+                System.arraycopy(part.data, rest, postings.data, postings.size, part.size - rest);
+                postings.size += part.size - rest;
+                postings.lastId = part.lastId;
+                postings.entries += part.entries;
+                postings.documentFrequency += part.documentFrequency;
+            }
+        }
+        if (chunks > 1) {
+            terms.values().parallelStream().forEach(Postings::rebuildSkips);
+        }
+
+        for (int id = 0; id < initial.length; id++) {
+            ids.put(initial[id], id);
+            this.books.add(initial[id]);
+            totalLength += lengths[id];
+        }
+    }
+
+    private Map<String, Postings> buildChunk(Book[] initial, int from, int to) {
+        Map<String, Postings> chunk = new HashMap<>();
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (int id = from; id < to; id++) {
+            lengths[id] = countTerms(initial[id].getDescription(), frequencies);
+            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                chunk.computeIfAbsent(entry.getKey(), k -> new Postings()).append(id, entry.getValue());
+            }
+            frequencies.clear();
+        }
+        return chunk;
+    }
+
+    public void add(Book book) {
+        if (ids.containsKey(book)) {
+            return;
+        }
+
+        int id = books.size();
+        Map<String, Integer> frequencies = new HashMap<>();
+        int length = countTerms(book.getDescription(), frequencies);
+        for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+            terms.computeIfAbsent(entry.getKey(), k -> new Postings()).append(id, entry.getValue());
+        }
+
+        if (id == lengths.length) {
+            lengths = Arrays.copyOf(lengths, id * 2);
+        }
+        lengths[id] = length;
+        totalLength += length;
+
+        ids.put(book, id);
+        books.add(book);
+    }
+
+    public void remove(Book book) {
+        Integer id = ids.remove(book);
+        if (id == null) {
+            return;
+        }
+
+        Map<String, Integer> frequencies = new HashMap<>();
+        countTerms(book.getDescription(), frequencies);
+        for (String term : frequencies.keySet()) {
+            terms.get(term).documentFrequency--;
+        }
+
+        totalLength -= lengths[id];
+        books.set(id, null);
+        removed++;
+
+        if (removed > 1024 && removed > ids.size()) {
+            compact();
+        }
+    }
+
+    // Returns up to limit books, best match first.
+    public List<Book> search(String query, int limit) {
+        List<Book> result = new ArrayList<>();
+        int bookCount = ids.size();
+        if (bookCount == 0 || limit <= 0) {
+            return result;
+        }
+
+        List<Cursor> cursorList = new ArrayList<>();
+        for (String term : new LinkedHashSet<>(tokenize(query))) {
+            Postings postings = terms.get(term);
+            if (postings != null && postings.documentFrequency > 0) {
+                double idf = Math.log(1 + (bookCount - postings.documentFrequency + 0.5) / (postings.documentFrequency + 0.5));
+                cursorList.add(new Cursor(postings, idf));
+            }
+        }
+        if (cursorList.isEmpty()) {
+            return result;
+        }
+
+        // lowest possible contribution first; bounds[i] is the most cursors 0..i can add together
+        Cursor[] cursors = cursorList.toArray(new Cursor[0]);
+        Arrays.sort(cursors, (c1, c2) -> Double.compare(c1.maxScore, c2.maxScore));
+        double[] bounds = new double[cursors.length];
+        for (int i = 0; i < cursors.length; i++) {
+            bounds[i] = (i > 0 ? bounds[i - 1] : 0) + cursors[i].maxScore;
+        }
+
+        double averageLength = Math.max(1.0, (double) totalLength / bookCount);
+        long[] heap = new long[Math.min(limit, bookCount)];
+        int heapSize = 0;
+        double threshold = -1; // a book needs more than this to get into the heap
+        int firstEssential = 0; // cursors before this one cannot get a book into the heap on their own
+
+        while (true) {
+            int id = Integer.MAX_VALUE;
+            for (int i = firstEssential; i < cursors.length; i++) {
+                id = Math.min(id, cursors[i].id);
+            }
+            if (id == Integer.MAX_VALUE) {
+                break;
+            }
+
+            double norm = K1 * (1 - B + B * lengths[id] / averageLength);
+            double score = 0;
+            for (int i = firstEssential; i < cursors.length; i++) {
+                Cursor cursor = cursors[i];
+                if (cursor.id == id) {
+                    score += cursor.idf * cursor.frequency * (K1 + 1) / (cursor.frequency + norm);
+                    cursor.next();
+                }
+            }
+            for (int i = firstEssential - 1; i >= 0 && score + bounds[i] >= threshold; i--) {
+                Cursor cursor = cursors[i];
+                cursor.advanceTo(id);
+                if (cursor.id == id) {
+                    score += cursor.idf * cursor.frequency * (K1 + 1) / (cursor.frequency + norm);
+                }
+            }
+            if (books.get(id) == null || score < threshold) {
+                continue;
+            }
+
+            // positive float bits sort like the floats, the inverted id ranks older books first on ties
+            long entry = ((long) Float.floatToIntBits((float) score) << 32) | (Integer.MAX_VALUE - id);
+            if (heapSize < heap.length) {
+                heap[heapSize] = entry;
+                siftUp(heap, heapSize++);
+            } else if (entry > heap[0]) {
+                heap[0] = entry;
+                siftDown(heap, heapSize);
+            } else {
+                continue;
+            }
+
+            if (heapSize == heap.length) {
+                // slightly lower than the worst score in the heap, a book on par may still win on its id
+                threshold = Float.intBitsToFloat((int) (heap[0] >>> 32)) * (1 - 1e-6);
+                while (firstEssential < cursors.length && bounds[firstEssential] < threshold) {
+                    firstEssential++;
+                }
+            }
+        }
+
+        long[] ranked = Arrays.copyOf(heap, heapSize);
+        Arrays.sort(ranked);
+        for (int i = ranked.length - 1; i >= 0; i--) {
+            result.add(books.get(Integer.MAX_VALUE - (int) ranked[i]));
+        }
+        return result;
+    }
+
+    // approximate heap usage of the posting lists, the term strings and the per-book tables
+    public long sizeInBytes() {
+        long size = (long) lengths.length * Integer.BYTES + (long) books.size() * 4 + (long) ids.size() * 32;
+        for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+            Postings postings = entry.getValue();
+            size += postings.data.length + 8L * postings.skipIds.length + 100L + 2L * entry.getKey().length();
+        }
+        return size;
+    }
+
+    public int getTermCount() {
+        return terms.size();
+    }
+
+    // rewrites every posting list without the removed books, ids stay the same
+    private void compact() {
+        terms.values().removeIf(postings -> {
+            byte[] data = postings.data;
+            int size = postings.size;
+            postings.data = new byte[8];
+            postings.size = 0;
+            postings.lastId = -1;
+            postings.entries = 0;
+            postings.documentFrequency = 0;
+            postings.skipIds = new int[0];
+            postings.skipOffsets = new int[0];
+
+            int id = -1;
+            for (int position = 0; position < size; ) {
+                long delta = readVarint(data, position);
+                long tf = readVarint(data, (int) (delta >>> 32));
+                id += (int) delta;
+                position = (int) (tf >>> 32);
+                if (books.get(id) != null) {
+                    postings.append(id, (int) tf);
+                }
+            }
+            return postings.size == 0;
+        });
+        removed = 0;
+    }
+
+    private static int countTerms(String text, Map<String, Integer> frequencies) {
+        List<String> tokens = tokenize(text);
+        for (String token : tokens) {
+            frequencies.merge(token, 1, Integer::sum);
+        }
+        return tokens.size();
+    }
+
+    // words are runs of letters and digits
+    private static List<String> tokenize(String text) {
+        String normalized = isAscii(text) ? text : Normalizer.normalize(text, Normalizer.Form.NFKC);
+        normalized = normalized.toLowerCase(Locale.ROOT);
+
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i < normalized.length(); ) {
+            int codePoint = normalized.codePointAt(i);
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                tokens.add(normalized.substring(start, i));
+                start = -1;
+            }
+            i += Character.charCount(codePoint);
+        }
+        if (start >= 0) {
+            tokens.add(normalized.substring(start));
+        }
+        return tokens;
+    }
+
+    // ASCII text is already in NFKC, which saves the normalizer a copy for most descriptions
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int writeVarint(byte[] data, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            data[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[position++] = (byte) value;
+        return position;
+    }
+
+    // the value in the low half and the position after it in the high half
+    private static long readVarint(byte[] data, int position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data[position++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return ((long) position << 32) | (value & 0xFFFFFFFFL);
+            }
+        }
+    }
+
+    private static void siftUp(long[] heap, int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (heap[parent] <= heap[index]) {
+                return;
+            }
+            swap(heap, parent, index);
+            index = parent;
+        }
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        int index = 0;
+        while (true) {
+            int smallest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && heap[left] < heap[smallest]) {
+                smallest = left;
+            }
+            if (right < size && heap[right] < heap[smallest]) {
+                smallest = right;
+            }
+            if (smallest == index) {
+                return;
+            }
+            swap(heap, smallest, index);
+            index = smallest;
+        }
+    }
+
+    private static void swap(long[] heap, int i, int j) {
+        long t = heap[i];
+        heap[i] = heap[j];
+        heap[j] = t;
+    }
+}
@@ -6,42 +6,68 @@ import java.nio.file.*;
 import java.util.List;
 
 public class FileUtility {
+    private static final LatencyHistogram SAVE_OBJECT = Metrics.latency("io.saveObject");
+    private static final LatencyHistogram LOAD_OBJECT = Metrics.latency("io.loadObject");
+    private static final LatencyHistogram SAVE_TEXT = Metrics.latency("io.saveText");
+    private static final LatencyHistogram LOAD_TEXT = Metrics.latency("io.loadText");
 
     public static void saveObject(String filename, Object o, StandardOpenOption... option) {
+        long start = System.nanoTime();
         Path path = Paths.get(filename);
         try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(path, option))) {
             out.writeObject(o);
         } catch (Exception e) {
             e.printStackTrace();
         }
+        Metrics.addBytesWritten(size(path));
+        SAVE_OBJECT.record(System.nanoTime() - start);
     }
 
     public static Object loadObject(String filename) {
+        long start = System.nanoTime();
         Path path = Paths.get(filename);
         try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(path))) {
             return in.readObject();
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            Metrics.addBytesRead(size(path));
+            LOAD_OBJECT.record(System.nanoTime() - start);
         }
         return null;
     }
 
     public static void saveText(String filename, List<String> list, StandardOpenOption... option) {
+        long start = System.nanoTime();
         Path path = Paths.get(filename);
         try {
             Files.write(path, list, option);
         } catch (Exception e) {
             e.printStackTrace();
         }
+        Metrics.addBytesWritten(size(path));
+        SAVE_TEXT.record(System.nanoTime() - start);
     }
 
     public static List<String> loadText(String filename) {
+        long start = System.nanoTime();
         Path path = Paths.get(filename);
         try {
             return Files.readAllLines(path);
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            Metrics.addBytesRead(size(path));
+            LOAD_TEXT.record(System.nanoTime() - start);
         }
         return null;
     }
+
+    private static long size(Path path) {
+        try {
+            return Files.size(path);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,340 @@
+package com.company;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+// Typo-tolerant word search. Every distinct word of the indexed keys is a node of a BK-tree ordered
+// by Levenshtein distance: a node's children are keyed by their distance to it, so by the triangle
+// inequality a lookup only has to descend into the children within maxDistance of the distance
+// between the query word and the node. A search returns the items that have a close word for every
+// word of the query, ranked by the sum of the distances.
+//
+// The items are found by walking the posting lists of the close words together, in id order, and only
+// the best ones are kept in a bounded heap. Since ties go to the older item, the walk stops as soon as
+// the heap is full of items that are as close as any can be, which a query with common words reaches
+// after a few hundred items rather than the hundreds of thousands that match.
+public class FuzzyIndex<T> {
+    private static final int NO_MORE_ITEMS = Integer.MAX_VALUE;
+
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final Function<T, String> keyExtractor;
+
+    private final Map<String, Word> words = new HashMap<>();
+    private Word root;
+
+    private final Map<T, Integer> ids = new IdentityHashMap<>();
+
+    // indexed by id, null once the item has been removed
+    private final List<T> items = new ArrayList<>();
+    private final List<Word[]> itemWords = new ArrayList<>();
+
+    public FuzzyIndex(Function<T, String> keyExtractor) {
+        this.keyExtractor = keyExtractor;
+    }
+
+    // BK-tree node. Words are never taken out of the tree; a word without items is skipped by searches.
+    private static class Word {
+        private final String text;
+        private final PostingList postings = new PostingList();
+        private Word[] children; // indexed by distance to this word
+
+        Word(String text) {
+            this.text = text;
+        }
+
+        Word child(int distance) {
+            return children != null && distance < children.length ? children[distance] : null;
+        }
+
+        void setChild(int distance, Word child) {
+            if (children == null || distance >= children.length) {
+                children = Arrays.copyOf(children == null ? new Word[0] : children, distance + 1);
+            }
+            children[distance] = child;
+        }
+    }
+
+    public void add(T item) {
+        if (ids.containsKey(item)) {
+            return;
+        }
+
+        int id = items.size();
+        String[] tokens = tokenize(keyExtractor.apply(item));
+        Word[] wordsOfItem = new Word[tokens.length];
+
+        for (int i = 0; i < tokens.length; i++) {
+            Word word = words.get(tokens[i]);
+            if (word == null) {
+                word = new Word(tokens[i]);
+                words.put(word.text, word);
+                insert(word);
+            }
+            // ids are handed out in increasing order, so appending keeps every posting list sorted
+            word.postings.append(id);
+            wordsOfItem[i] = word;
+        }
+
+        ids.put(item, id);
+        items.add(item);
+        itemWords.add(wordsOfItem);
+    }
+
+    public void remove(T item) {
+        Integer id = ids.remove(item);
+        if (id == null) {
+            return;
+        }
+
+        for (Word word : itemWords.get(id)) {
+            word.postings.remove(id);
+        }
+
+        items.set(id, null);
+        itemWords.set(id, null);
+    }
+
+    // The close words of one query word, walked together: the items that have any of them in id order,
+    // each with the distance of the closest word it has.
+    private static class Cursor {
+        private final int[][] ids;
+        private final int[] sizes;
+        private final int[] distances;
+        private final int[] positions;
+        private final int minDistance;
+        private int id = -1;
+        private int distance;
+
+        Cursor(Map<Word, Integer> closeWords) {
+            ids = new int[closeWords.size()][];
+            sizes = new int[ids.length];
+            distances = new int[ids.length];
+            positions = new int[ids.length];
+            int i = 0;
+            int min = Integer.MAX_VALUE;
+            for (Map.Entry<Word, Integer> close : closeWords.entrySet()) {
+                ids[i] = close.getKey().postings.ids;
+                sizes[i] = close.getKey().postings.size;
+                distances[i] = close.getValue();
+                min = Math.min(min, distances[i]);
+                i++;
+            }
+            minDistance = min;
+        }
+
+        // moves to the first item at or after target, NO_MORE_ITEMS if there is none
+        void advanceTo(int target) {
+            if (id >= target) {
+                return;
+            }
+            id = NO_MORE_ITEMS;
+            for (int i = 0; i < ids.length; i++) {
+                int position = seek(ids[i], positions[i], sizes[i], target);
+                positions[i] = position;
+                if (position == sizes[i]) {
+                    continue;
+                }
+                int wordId = ids[i][position];
+                if (wordId < id || (wordId == id && distances[i] < distance)) {
+                    id = wordId;
+                    distance = distances[i];
+                }
+            }
+        }
+
+        // the first position from start whose id is at least target, galloping ahead first since the
+        // next target is often close
+        private static int seek(int[] ids, int start, int size, int target) {
+            int step = 1;
+            int low = start;
+            int high = start;
+            while (high < size && ids[high] < target) {
+                low = high + 1;
+                high += step;
+                step *= 2;
+            }
+            int index = Arrays.binarySearch(ids, low, Math.min(high, size), target);
+            return index >= 0 ? index : -index - 1;
+        }
+    }
+
+    // At most limit items, closest first and older items first on ties.
+    public List<T> search(String query, int limit) {
+        List<T> result = new ArrayList<>();
+        String[] queryWords = tokenize(query);
+        if (queryWords.length == 0 || root == null || limit <= 0) {
+            return result;
+        }
+
+        Cursor[] cursors = new Cursor[queryWords.length];
+        int bestScore = 0;
+        for (int i = 0; i < queryWords.length; i++) {
+            Map<Word, Integer> close = new IdentityHashMap<>();
+            collect(root, queryWords[i], maxDistance(queryWords[i]), close);
+            if (close.isEmpty()) {
+                return result;
+            }
+            cursors[i] = new Cursor(close);
+            bestScore += cursors[i].minDistance;
+        }
+
+        // score (total distance) in the high half and id in the low half, the worst entry on top
+        long[] heap = new long[limit];
+        int heapSize = 0;
+        int id = 0;
+        while (true) {
+            // the next item every query word has a close word in
+            for (int i = 0, matched = 0; matched < cursors.length; i = (i + 1) % cursors.length) {
+                cursors[i].advanceTo(id);
+                if (cursors[i].id == NO_MORE_ITEMS) {
+                    return ranked(heap, heapSize, result);
+                }
+                if (cursors[i].id == id) {
+                    matched++;
+                } else {
+                    id = cursors[i].id;
+                    matched = 1;
+                }
+            }
+
+            int score = 0;
+            for (Cursor cursor : cursors) {
+                score += cursor.distance;
+            }
+            long entry = ((long) score << 32) | id;
+            if (heapSize < heap.length) {
+                heap[heapSize] = entry;
+                siftUp(heap, heapSize++);
+            } else if (entry < heap[0]) {
+                heap[0] = entry;
+                siftDown(heap, heapSize);
+            }
+            // a later item can only get in with a lower score, and none is lower than this
+            if (heapSize == heap.length && (int) (heap[0] >>> 32) == bestScore) {
+                return ranked(heap, heapSize, result);
+            }
+            id++;
+        }
+    }
+
+    private List<T> ranked(long[] heap, int heapSize, List<T> result) {
+        long[] ranked = Arrays.copyOf(heap, heapSize);
+        Arrays.sort(ranked);
+        for (long entry : ranked) {
+            result.add(items.get((int) entry));
+        }
+        return result;
+    }
+
+    // the largest entry on top
+    private static void siftUp(long[] heap, int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (heap[parent] >= heap[index]) {
+                return;
+            }
+            swap(heap, parent, index);
+            index = parent;
+        }
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        int index = 0;
+        while (true) {
+            int largest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && heap[left] > heap[largest]) {
+                largest = left;
+            }
+            if (right < size && heap[right] > heap[largest]) {
+                largest = right;
+            }
+            if (largest == index) {
+                return;
+            }
+            swap(heap, largest, index);
+            index = largest;
+        }
+    }
+
+    private static void swap(long[] heap, int i, int j) {
+        long swap = heap[i];
+        heap[i] = heap[j];
+        heap[j] = swap;
+    }
+
+    private void insert(Word word) {
+        if (root == null) {
+            root = word;
+            return;
+        }
+
+        Word node = root;
+        while (true) {
+            int distance = distance(node.text, word.text);
+            Word child = node.child(distance);
+            if (child == null) {
+                node.setChild(distance, word);
+                return;
+            }
+            node = child;
+        }
+    }
+
+    private static void collect(Word node, String queryWord, int maxDistance, Map<Word, Integer> close) {
+        int distance = distance(node.text, queryWord);
+        if (distance <= maxDistance && node.postings.size > 0) {
+            close.put(node, distance);
+        }
+        if (node.children == null) {
+            return;
+        }
+
+        int last = Math.min(distance + maxDistance, node.children.length - 1);
+        for (int d = Math.max(1, distance - maxDistance); d <= last; d++) {
+            if (node.children[d] != null) {
+                collect(node.children[d], queryWord, maxDistance, close);
+            }
+        }
+    }
+
+    // short words allow fewer typos, otherwise almost every short word would match
+    private static int maxDistance(String word) {
+        return word.length() <= 2 ? 0 : word.length() <= 5 ? 1 : 2;
+    }
+
+    private static int distance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int substitution = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    private static String[] tokenize(String key) {
+        return Arrays.stream(WORD_SEPARATOR.split(key.toLowerCase(Locale.ROOT)))
+                .filter(token -> !token.isEmpty())
+                .toArray(String[]::new);
+    }
+}
@@ -0,0 +1,100 @@
+package com.company;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Users waiting for a title of which no copy is in the library, first come first served. When a copy
+// is returned it is held for the first user in line (see Book) instead of becoming available, and if
+// that user does not borrow it within Library.HOLD_DURATION it goes to the next one.
+//
+// The queue of a title and the holds on its copies only change with the title's lock held, one of a
+// fixed set of locks so that titles nobody waits for cost nothing. A reservation checks for an
+// available copy and a return checks for a waiting user under the same lock, so a copy is never
+// available while somebody is waiting for its title.
+public class HoldQueues {
+    private static final int LOCK_STRIPES = 64;
+
+    public enum Result {
+        QUEUED, COPY_AVAILABLE, ALREADY_WAITING, ALREADY_HAS_COPY
+    }
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    // only the titles somebody is waiting for
+    private final Map<Integer, Deque<User>> queues = new ConcurrentHashMap<>();
+
+    public HoldQueues() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public Object lock(int titleId) {
+        return locks[Math.floorMod(titleId, LOCK_STRIPES)];
+    }
+
+    // The methods below that change or read one queue are only called with lock(titleId) held.
+
+    // the first user in line, null if nobody is waiting
+    public User peek(int titleId) {
+        Deque<User> queue = queues.get(titleId);
+        return queue != null ? queue.peekFirst() : null;
+    }
+
+    public User poll(int titleId) {
+        Deque<User> queue = queues.get(titleId);
+        if (queue == null) {
+            return null;
+        }
+        User user = queue.pollFirst();
+        if (queue.isEmpty()) {
+            queues.remove(titleId);
+        }
+        return user;
+    }
+
+    public void add(int titleId, User user) {
+        queues.computeIfAbsent(titleId, id -> new ArrayDeque<>()).addLast(user);
+    }
+
+    public boolean contains(int titleId, User user) {
+        Deque<User> queue = queues.get(titleId);
+        return queue != null && queue.contains(user);
+    }
+
+    // title id -> the user's place in line (1 for first), for every title the user is waiting for
+    public Map<Integer, Integer> getPositions(User user) {
+        Map<Integer, Integer> positions = new HashMap<>();
+        for (Integer titleId : queues.keySet()) {
+            synchronized (lock(titleId)) {
+                int position = 1;
+                for (User waiting : queues.getOrDefault(titleId, new ArrayDeque<>())) {
+                    if (waiting == user) {
+                        positions.put(titleId, position);
+                        break;
+                    }
+                    position++;
+                }
+            }
+        }
+        return positions;
+    }
+
+    // title id -> names of the waiting users, first in line first. Only called while nothing can
+    // change (by the snapshot writer).
+    public Map<Integer, List<String>> getQueues() {
+        Map<Integer, List<String>> names = new HashMap<>();
+        for (Map.Entry<Integer, Deque<User>> entry : queues.entrySet()) {
+            List<String> waiting = new ArrayList<>(entry.getValue().size());
+            for (User user : entry.getValue()) {
+                waiting.add(user.getName());
+            }
+            names.put(entry.getKey(), waiting);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,22 @@
+package com.company;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// An intern table: equal strings passed to intern() come back as one shared instance, so a value
+// that repeats across many objects (e.g. an author with hundreds of books) is held only once. Unlike
+// String.intern() the table belongs to its owner and is collected with it.
+public class Interner {
+    private final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<>();
+
+    public String intern(String string) {
+        if (string == null) {
+            return null;
+        }
+        String existing = strings.putIfAbsent(string, string);
+        return existing != null ? existing : string;
+    }
+
+    public int size() {
+        return strings.size();
+    }
+}
@@ -0,0 +1,426 @@
+package com.company;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// The records since the last snapshot are in the journal file. When a snapshot is started the file is
+// rotated to ".prev", which is kept until the next rotation so that the records are still there if the
+// new snapshot turns out to be damaged and the previous one has to be used.
+//
+// Followers (see ReplicationServer) get every commit as written to the file, in commit order, and
+// can start from any record still in the two files.
+//
+// The records of a batch (see beginBatch()) are framed by a BATCH_BEGIN and a BATCH_END record. A
+// replay only applies a batch once its end is there, so a crash while it is written loses the whole
+// batch instead of leaving half of it.
+public class Journal {
+    public static final byte ADD = 1;
+    public static final byte REMOVE = 2;
+    public static final byte BORROW = 3;
+    public static final byte RETURN = 4;
+    public static final byte HOLD = 5;
+    public static final byte HOLD_EXPIRED = 6;
+    public static final byte BATCH_BEGIN = 7;
+    public static final byte BATCH_END = 8;
+
+    // record layout: length (int), crc (int), sequence (long), type (byte), fields (short length + UTF-8 bytes)
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    // the longest field a record can hold, its length is written as an unsigned short
+    public static final int MAX_FIELD_BYTES = 0xFFFF;
+
+    private static final LatencyHistogram COMMIT = Metrics.latency("journal.commit");
+    private static final LatencyHistogram SYNC = Metrics.latency("journal.sync");
+
+    private final Path path;
+    private final Path previousPath;
+    private final int syncEvery;
+    private FileChannel channel;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private long sequence;
+    // the last record written to the file
+    private long committedSequence;
+    private int unsyncedRecords;
+    // between beginBatch() and endBatch(), and whether BATCH_BEGIN has been appended yet
+    private boolean inBatch;
+    private boolean batchBegun;
+
+    private final List<Consumer<ByteBuffer>> followers = new CopyOnWriteArrayList<>();
+
+    public Journal(String filename, int syncEvery) throws IOException {
+        this.path = Paths.get(filename);
+        this.previousPath = Paths.get(filename + ".prev");
+        this.syncEvery = Math.max(1, syncEvery);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    public static class Record {
+        private final long sequence;
+        private final byte type;
+        private final String[] fields;
+
+        private Record(long sequence, byte type, String[] fields) {
+            this.sequence = sequence;
+            this.type = type;
+            this.fields = fields;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public String getField(int index) {
+            return fields[index];
+        }
+
+        public int getFieldCount() {
+            return fields.length;
+        }
+    }
+
+    // Replays every intact record with a sequence number above afterSequence, first from the rotated
+    // file and then from the current one. A torn or corrupt tail (e.g. from a crash in the middle of
+    // a write) ends the replay of a file and is cut off the current file.
+    public synchronized void replay(long afterSequence, Consumer<Record> consumer) throws IOException {
+        sequence = afterSequence;
+
+        if (Files.exists(previousPath)) {
+            try (FileChannel previous = FileChannel.open(previousPath, StandardOpenOption.READ)) {
+                replay(previous, afterSequence, consumer, true);
+            }
+        }
+
+        long validLength = replay(channel, afterSequence, consumer, true);
+        channel.truncate(validLength);
+        channel.position(validLength);
+        committedSequence = sequence;
+    }
+
+    // With wholeBatches a batch is held back until its end and left out if the end is missing, which
+    // is then where the valid part of the file ends. Without, the records come as they are in the file.
+    private long replay(FileChannel file, long afterSequence, Consumer<Record> consumer, boolean wholeBatches) throws IOException {
+        long size = file.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("The journal is " + size + " bytes, more than can be replayed");
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) size);
+        // a short read would look like a torn tail, which is then cut off
+        while (data.hasRemaining()) {
+            if (file.read(data, data.position()) < 0) {
+                throw new IOException("Unexpected end of the journal");
+            }
+        }
+        data.flip();
+        Metrics.addBytesRead(data.limit());
+
+        long validLength = 0;
+        List<Record> batch = null;
+        for (Record record; (record = next(data)) != null; ) {
+            if (wholeBatches && record.getType() == BATCH_BEGIN) {
+                batch = new ArrayList<>();
+            }
+            if (batch != null) {
+                batch.add(record);
+                if (record.getType() != BATCH_END) {
+                    continue;
+                }
+            }
+
+            validLength = data.position();
+            for (Record replayed : batch != null ? batch : List.of(record)) {
+                if (replayed.getSequence() > afterSequence) {
+                    consumer.accept(replayed);
+                }
+                sequence = Math.max(sequence, replayed.getSequence());
+            }
+            batch = null;
+        }
+        return validLength;
+    }
+
+    // The next intact record, null at the end of the data or at a torn or corrupt record.
+    private static Record next(ByteBuffer data) {
+        if (data.remaining() < HEADER_SIZE) {
+            return null;
+        }
+
+        int start = data.position();
+        int length = data.getInt();
+        int crc = data.getInt();
+
+        if (length <= 0 || length > data.remaining()) {
+            data.position(start);
+            return null;
+        }
+
+        ByteBuffer body = data.slice();
+        body.limit(length);
+
+        if (checksum(body) != crc) {
+            data.position(start);
+            return null;
+        }
+
+        Record record;
+        try {
+            record = decode(body);
+        } catch (BufferUnderflowException e) {
+            data.position(start);
+            return null;
+        }
+
+        data.position(start + HEADER_SIZE + length);
+        return record;
+    }
+
+    // Decodes records as handed to followers, which have to arrive whole.
+    public static void readRecords(ByteBuffer data, Consumer<Record> consumer) throws IOException {
+        for (Record record; (record = next(data)) != null; ) {
+            consumer.accept(record);
+        }
+        if (data.hasRemaining()) {
+            throw new IOException("Damaged journal record at offset " + data.position());
+        }
+    }
+
+    // Hands the follower the committed records after afterSequence and from then on every commit.
+    // Returns false, without adding the follower, if the journal no longer has all of those records
+    // (or never had them, e.g. after a restore from a backup); the follower then needs a snapshot.
+    public synchronized boolean follow(long afterSequence, Consumer<ByteBuffer> follower) throws IOException {
+        if (afterSequence < 0 || afterSequence > sequence) {
+            return false;
+        }
+
+        List<Record> records = new ArrayList<>();
+        long committedSequence = sequence;
+        if (Files.exists(previousPath)) {
+            try (FileChannel previous = FileChannel.open(previousPath, StandardOpenOption.READ)) {
+                replay(previous, afterSequence, records::add, false);
+            }
+        }
+        // a batch that is still being appended goes out as far as it is committed, the rest follows
+        replay(channel, afterSequence, records::add, false);
+        sequence = committedSequence;
+
+        // appended but not committed yet, these reach the follower with the next commit
+        ByteBuffer uncommitted = buffer.duplicate().flip();
+        Record first = records.isEmpty() ? null : records.get(0);
+        while (first == null && (first = next(uncommitted)) != null && first.getSequence() <= afterSequence) {
+            first = null;
+        }
+        if (first != null ? first.getSequence() != afterSequence + 1 : afterSequence != sequence) {
+            return false;
+        }
+
+        if (!records.isEmpty()) {
+            ByteBuffer backlog = ByteBuffer.allocate(64 * 1024);
+            for (Record record : records) {
+                backlog = put(backlog, record.sequence, record.type, record.fields);
+            }
+            follower.accept(backlog.flip());
+        }
+        followers.add(follower);
+        return true;
+    }
+
+    public void unfollow(Consumer<ByteBuffer> follower) {
+        followers.remove(follower);
+    }
+
+    public int getFollowerCount() {
+        return followers.size();
+    }
+
+    // Throws an IllegalArgumentException, with nothing appended, if a field is longer than
+    // MAX_FIELD_BYTES.
+    public synchronized long append(byte type, String... fields) {
+        checkFields(fields);
+        if (inBatch && !batchBegun) {
+            batchBegun = true;
+            append(BATCH_BEGIN);
+        }
+        buffer = put(buffer, sequence + 1, type, fields);
+        sequence++;
+        unsyncedRecords++;
+        return sequence;
+    }
+
+    // Throws an IllegalArgumentException if a field does not fit in a record, so that callers can
+    // check before they change anything.
+    public static void checkFields(String... fields) {
+        for (String field : fields) {
+            // UTF-8 takes at most three bytes per char, only long fields need to be encoded to know
+            if (field.length() * 3L > MAX_FIELD_BYTES && field.getBytes(StandardCharsets.UTF_8).length > MAX_FIELD_BYTES) {
+                throw new IllegalArgumentException("A text of " + field.length() + " characters is too long, at most "
+                        + MAX_FIELD_BYTES + " bytes can be stored");
+            }
+        }
+    }
+
+    // The records appended until endBatch() are one batch, see the class comment. The caller makes
+    // sure that nobody else appends in the meantime (Library holds its state lock exclusively). A
+    // batch without records leaves nothing in the journal.
+    public synchronized void beginBatch() {
+        inBatch = true;
+    }
+
+    public synchronized void endBatch() {
+        inBatch = false;
+        if (batchBegun) {
+            batchBegun = false;
+            append(BATCH_END);
+        }
+    }
+
+    // Appends a record of the primary's journal on a replica, under the same sequence number. The
+    // replica applies every record in order, so this is always the next number.
+    public synchronized long append(Record record) {
+        sequence = record.getSequence() - 1;
+        return append(record.type, record.fields);
+    }
+
+    // Encodes the record at the end of the buffer, or of a larger copy if it does not fit, and
+    // returns the buffer the record is in.
+    private static ByteBuffer put(ByteBuffer buffer, long sequence, byte type, String[] fields) {
+        int length = Long.BYTES + 1 + Short.BYTES;
+        byte[][] encodedFields = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            encodedFields[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            if (encodedFields[i].length > MAX_FIELD_BYTES) {
+                // the length would wrap, and the record would still pass its checksum
+                throw new IllegalArgumentException("A field of " + encodedFields[i].length + " bytes does not fit in a journal record");
+            }
+            length += Short.BYTES + encodedFields[i].length;
+        }
+
+        buffer = ensureCapacity(buffer, HEADER_SIZE + length);
+
+        int start = buffer.position();
+        buffer.putInt(length);
+        buffer.putInt(0); // crc, filled in below
+        buffer.putLong(sequence);
+        buffer.put(type);
+        buffer.putShort((short) fields.length);
+        for (byte[] field : encodedFields) {
+            buffer.putShort((short) field.length);
+            buffer.put(field);
+        }
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + HEADER_SIZE).limit(buffer.position());
+        buffer.putInt(start + Integer.BYTES, checksum(body));
+        return buffer;
+    }
+
+    // Writes all records appended since the last commit with a single write and forces them to disk
+    // once syncEvery records have accumulated since the last fsync.
+    public synchronized void commit() throws IOException {
+        long start = System.nanoTime();
+        writeBuffer();
+
+        if (unsyncedRecords >= syncEvery) {
+            channel.force(false);
+            unsyncedRecords = 0;
+        }
+        COMMIT.record(System.nanoTime() - start);
+    }
+
+    public synchronized void sync() throws IOException {
+        long start = System.nanoTime();
+        writeBuffer();
+        channel.force(false);
+        unsyncedRecords = 0;
+        SYNC.record(System.nanoTime() - start);
+    }
+
+    // Moves all records to the rotated file, replacing the records rotated there last time, and
+    // starts an empty journal. Called when a snapshot of the current state is taken.
+    public synchronized void rotate() throws IOException {
+        sync();
+        channel.close();
+        Files.move(path, previousPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public synchronized long getCommittedSequence() {
+        return committedSequence;
+    }
+
+    public synchronized long size() throws IOException {
+        return channel.size() + buffer.position();
+    }
+
+    public synchronized void close() throws IOException {
+        sync();
+        channel.close();
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        Metrics.addBytesWritten(buffer.remaining());
+        // a copy, the buffer is reused while the followers may still be sending
+        ByteBuffer committed = !followers.isEmpty() && buffer.hasRemaining()
+                ? ByteBuffer.allocate(buffer.remaining()).put(buffer.duplicate()).flip() : null;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        committedSequence = sequence;
+
+        if (committed != null) {
+            for (Consumer<ByteBuffer> follower : followers) {
+                follower.accept(committed.asReadOnlyBuffer());
+            }
+        }
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    private static Record decode(ByteBuffer body) {
+        long sequence = body.getLong();
+        byte type = body.get();
+        String[] fields = new String[body.getShort()];
+        for (int i = 0; i < fields.length; i++) {
+            byte[] field = new byte[body.getShort() & 0xFFFF];
+            body.get(field);
+            fields[i] = new String(field, StandardCharsets.UTF_8);
+        }
+        return new Record(sequence, type, fields);
+    }
+
+    private static int checksum(ByteBuffer body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,17 @@
+package com.company;
+
+public interface LatencyHistogramMBean {
+    long getCount();
+
+    double getMeanMicros();
+
+    double getMedianMicros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+
+    void reset();
+}
@@ -1,6 +1,8 @@
 package com.company;
 
 public class Librarian extends User {
+    private static final long serialVersionUID = 8969859174321049795L; // pinned so that old .ser files can still be migrated
+
     public Librarian(String name) {
         super(name);
     }
@@ -1,552 +1,1173 @@
 package com.company;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 public class Library {
-    private static final String BOOK_DATA_FILE = "books.ser";
-    private static final String USER_DATA_FILE = "users.ser";
+    private static final String BOOK_DATA_FILE = "books.dat";
+    private static final String USER_DATA_FILE = "users.dat";
+    private static final String LEGACY_BOOK_DATA_FILE = "books.ser";
+    private static final String LEGACY_USER_DATA_FILE = "users.ser";
+    private static final String JOURNAL_FILE = "journal.log";
+    private static final String SNAPSHOT_SEQUENCE_FILE = "snapshot.seq";
+    private static final String LOAN_HISTORY_FILE = "history.dat";
+    private static final String BOOK_DELTA_FILE = "books.dat.delta";
+
+    // number of journal records written between two fsyncs, higher values trade durability for speed
+    private static final int JOURNAL_SYNC_EVERY = Integer.getInteger("library.journal.syncEvery", 1);
+    // how often the background saver checks for changes and, if there are any, writes a new snapshot
+    private static final long AUTOSAVE_INTERVAL_SECONDS = Long.getLong("library.autosave.intervalSeconds", 30);
+    // how often metrics.txt is rewritten, 0 turns the file off (the metrics are still available over JMX)
+    private static final long METRICS_DUMP_SECONDS = Long.getLong("library.metrics.dumpSeconds", 60);
+    private static final String METRICS_FILE = "metrics.txt";
+    // snapshots write only the changed books until they add up to this share of the books file, then
+    // the next one writes all books again, see BookDeltaFile
+    private static final int BOOK_DELTA_PERCENT = Integer.getInteger("library.snapshot.bookDeltaPercent", 25);
+
+    private static final LatencyHistogram SAVE_SNAPSHOT = Metrics.latency("library.saveSnapshot");
+    private static final LatencyHistogram SNAPSHOT_PAUSE = Metrics.latency("library.snapshotPause");
+
+    // decides the sort order of titles and authors, e.g. that Å, Ä and Ö come after Z in Swedish
+    private static final Locale SORT_LOCALE = Locale.forLanguageTag(System.getProperty("library.locale", "sv-SE"));
+
+    // intentionally very short by default to simplify testing
+    public static final Duration LOAN_DURATION = Duration.ofSeconds(Long.getLong("library.loan.durationSeconds", 30));
+    // how long a returned copy is kept for the next user waiting for it
+    public static final Duration HOLD_DURATION = Duration.ofSeconds(Long.getLong("library.hold.durationSeconds", 60));
+
+    private final String bookDataFile;
+    private final String userDataFile;
+    private final String legacyBookDataFile;
+    private final String legacyUserDataFile;
+    private final String journalFile;
+    private final String snapshotSequenceFile;
+
+    private Catalog catalog;
+    private UserStore userStore;
+    private LoanHistory loanHistory;
+    private OverdueTracker overdueTracker;
+    private HoldQueues holdQueues;
+    // held copies by when their hold runs out
+    private OverdueTracker holdTracker;
+    private final List<Consumer<Book>> holdListeners = new CopyOnWriteArrayList<>();
+
+    // Changes to the catalog hold the read lock, so they do not wait for each other. Taking a snapshot
+    // holds the write lock while it copies the state, so that the copy matches the journal.
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+
+    private Journal journal;
+    private CatalogIndex catalogIndex;
+    private TrigramIndex<User> userIndex;
+    private ScheduledExecutorService autosaver;
+
+    // journal sequence number of the newest snapshot on disk, and whether the last attempt to write one worked
+    private long snapshotSequence;
+    private boolean lastSnapshotSaved = true;
+    // the books as the newest block of the delta file has them (or the books file, if that is newer),
+    // and whether the next snapshot must write all of them
+    private final BookDeltaFile bookDelta;
+    private CatalogVersion savedVersion;
+    private long savedBookSequence;
+    private boolean fullBookSaveNeeded;
+
+    // A replica only changes by the records of the primary's journal, see Replica. The state is known
+    // to match the primary's as of this time (the primary's clock, epoch milliseconds).
+    private final boolean replica;
+    private volatile long replicatedAsOfMillis;
 
-    private List<Book> availableBooks;
-    private List<User> users;
-
-    private User currentUser;
+    public Library() {
+        this(Path.of(""));
+    }
 
-    private Scanner scanner = new Scanner(System.in);
+    // All data files are read from and written to the given directory.
+    public Library(Path dataDirectory) {
+        this(dataDirectory, false);
+    }
 
-    private static final Duration LOAN_DURATION = Duration.ofSeconds(30); // intentionally very short to simplify testing
+    public Library(Path dataDirectory, boolean replica) {
+        this.replica = replica;
+        bookDataFile = dataDirectory.resolve(BOOK_DATA_FILE).toString();
+        bookDelta = new BookDeltaFile(dataDirectory.resolve(BOOK_DELTA_FILE));
+        userDataFile = dataDirectory.resolve(USER_DATA_FILE).toString();
+        legacyBookDataFile = dataDirectory.resolve(LEGACY_BOOK_DATA_FILE).toString();
+        legacyUserDataFile = dataDirectory.resolve(LEGACY_USER_DATA_FILE).toString();
+        journalFile = dataDirectory.resolve(JOURNAL_FILE).toString();
+        snapshotSequenceFile = dataDirectory.resolve(SNAPSHOT_SEQUENCE_FILE).toString();
+
+        if (!snapshotExists(bookDataFile) && Files.exists(Path.of(legacyBookDataFile))
+                && Files.exists(Path.of(legacyUserDataFile))) {
+            migrateLegacyDataFiles();
+        }
 
-    public Library() {
-        if (!Files.exists(Path.of(BOOK_DATA_FILE))) {
+        if (!snapshotExists(bookDataFile)) {
             createDefaultBookDataFile();
         }
 
-        availableBooks = (List<Book>) FileUtility.loadObject(BOOK_DATA_FILE);
-
-        if (!Files.exists(Path.of(USER_DATA_FILE))) {
+        if (!snapshotExists(userDataFile)) {
             createDefaultUserDataFile();
         }
 
-        users = (List<User>) FileUtility.loadObject(USER_DATA_FILE);
+        snapshotSequence = loadSnapshot();
+        savedVersion = catalog.snapshot();
+        savedBookSequence = snapshotSequence;
+        loanHistory = new LoanHistory(dataDirectory.resolve(LOAN_HISTORY_FILE));
+        loanHistory.load(snapshotSequence);
+
+        overdueTracker = new OverdueTracker(LOAN_DURATION.getSeconds());
+        holdTracker = new OverdueTracker(HOLD_DURATION.getSeconds(), true);
+        for (Book book : catalog.getAllBooks()) {
+            if (book.isHeld()) {
+                holdTracker.add(book, book.getLoanEpochSecond());
+            } else if (!book.isAvailable()) {
+                overdueTracker.add(book, book.getLoanEpochSecond());
+            }
+        }
+
+        // without the journal the library would run on without the changes since the snapshot, and
+        // the next snapshot would leave them out for good
+        try {
+            journal = new Journal(journalFile, JOURNAL_SYNC_EVERY);
+            journal.replay(snapshotSequence, this::applyJournalRecord);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not replay the journal " + journalFile, e);
+        }
+
+        catalogIndex = new CatalogIndex(catalog.getAllBooks(), SORT_LOCALE);
+        userIndex = new TrigramIndex<>(User::getName);
+        userStore.getUsers().forEach(userIndex::add);
+
+        overdueTracker.start();
+        // on a replica holds run out with the primary's HOLD_EXPIRED records
+        if (!replica) {
+            // holds that ran out while the program was not running first
+            for (Book book : holdTracker.getOverdue(Instant.now().getEpochSecond())) {
+                expireHold(book);
+            }
+            holdTracker.addListener(this::expireHold);
+        }
+        holdTracker.start();
+
+        autosaver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "autosave");
+            thread.setDaemon(true);
+            return thread;
+        });
+        autosaver.scheduleWithFixedDelay(this::saveSnapshot,
+                AUTOSAVE_INTERVAL_SECONDS, AUTOSAVE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        Metrics.registerLibrary(this, dataDirectory.resolve(METRICS_FILE), METRICS_DUMP_SECONDS);
     }
 
     public void startProgram() {
-        System.out.println("Welcome to Library Program");
-        System.out.println("NOTE: Program state is only saved when logging out!");
-        System.out.println("Please login...");
-        login();
+        new Session(this, System.in, System.out, Charset.defaultCharset()).run();
+        shutdown();
     }
 
-    private void login() {
-        while (true) {
-            System.out.print("Enter username (or empty string to quit): ");
-            String username = scanner.nextLine();
+    public void shutdown() {
+        autosaver.shutdown();
+        overdueTracker.stop();
+        holdTracker.stop();
+        saveSnapshot();
+        userStore.close();
+
+        try {
+            journal.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            if (username.isBlank()) {
-                // user wants to quit
-                break;
-            } else if (loggedInSuccessFully(username)) {
-                // logged in successfully
-                showLoginMessages();
-                showMainMenu();
-            } else {
-                System.out.println("ERROR! Wrong username. Try again!");
-            }
-        }
-    }
-
-    private boolean loggedInSuccessFully(String username) {
-        return (currentUser = getUserFromUsername(username)) != null;
-    }
-
-    private void showMainMenu() {
-        while (true) {
-            System.out.println();
-            System.out.println("Main menu");
-            System.out.println("1. Show all books");
-            System.out.println("2. Show book details");
-            System.out.println("3. Borrow book");
-            System.out.println("4. Return book");
-            System.out.println("5. Show my borrowed books");
-            System.out.println("6. Search book");
-            System.out.println("7. Show available books");
-            System.out.println("8. Sort books");
-
-            if(currentUser.isLibrarian()) {
-                System.out.println("9. Show all borrowed books          (Librarian only)");
-                System.out.println("10. Add new book                    (Librarian only)");
-                System.out.println("11. Remove book                     (Librarian only)");
-                System.out.println("12. Show all users                  (Librarian only)");
-                System.out.println("13. Search for user                 (Librarian only)");
-                System.out.println("14. Show books borrowed by a user   (Librarian only)");
-            }
-
-            System.out.println("0. Logout");
-
-            int choice = getIntegerFromUser("Enter option: ");
-
-            System.out.println();
-
-            switch (choice) {
-                case 1:
-                    showAllBooks();
-                    break;
-                case 2:
-                    showBookDetails();
-                    break;
-                case 3:
-                    borrowBook();
-                    break;
-                case 4:
-                    returnBook();
-                    break;
-                case 5:
-                    showBorrowedBooks();
-                    break;
-                case 6:
-                    searchBook();
-                    break;
-                case 7:
-                    showAvailableBooks();
-                    break;
-                case 8:
-                    sortBooks();
-                    break;
-                case 9:
-                    showAllBorrowedBooks();
-                    break;
-                case 10:
-                    addNewBook();
-                    break;
-                case 11:
-                    removeBook();
-                    break;
-                case 12:
-                    showAllUsers();
-                    break;
-                case 13:
-                    searchForUser();
-                    break;
-                case 14:
-                    showBooksBorrowedByAUser();
-                    break;
-                case 0: // logout
-                    saveProgramStateToFiles();
-                    return;
-                default:
-                    System.out.println("ERROR: Invalid choice! Try again!");
-                    break;
-            }
-        }
-    }
-
-    private void sortBooks() {
-        while (true) {
-            System.out.println("Sort by:");
-            System.out.println("1. Title");
-            System.out.println("2. Author");
-            System.out.println("0. Exit");
-
-            int value = getIntegerFromUser("Sort by: ");
-
-            if(value == 0) {
-                return;
-            }
+    public Catalog getCatalog() {
+        return catalog;
+    }
 
-            if(value < 0 || value > 2) {
-                System.out.println("ERROR: Invalid value! Try again!");
-                continue;
-            }
+    public List<User> getUsers() {
+        return userStore.getUsers();
+    }
 
-            List<Book> books = getAllBooks();
+    // the user with their loans, null if there is no such user
+    public User getUser(String username) {
+        return getUserFromUsername(username);
+    }
 
-            if(value == 1) { // sort by title
-                System.out.println("Books sorted by title:");
-                books.sort((b1, b2) -> b1.getTitle().compareToIgnoreCase(b2.getTitle()));
-            }
-            else if(value == 2) { // sort by author
-                System.out.println("Books sorted by author:");
-                books.sort((b1, b2) -> b1.getAuthor().compareToIgnoreCase(b2.getAuthor()));
-            }
+    // Reads the user's loans first if nobody has needed them yet.
+    public List<Book> getBorrowedBooks(User user) {
+        userStore.loadLoans(user, catalog);
+        return catalog.getBorrowedBooks(user);
+    }
 
-            printBookList(books);
+    public List<Book> searchByTitle(String searchString) {
+        return catalogIndex.searchByTitle(searchString);
+    }
 
-            break;
-        }
+    public List<Book> searchByAuthor(String searchString) {
+        return catalogIndex.searchByAuthor(searchString);
     }
 
-    private void showBooksBorrowedByAUser() {
-        if (!currentUser.isLibrarian()) {
-            System.out.println("ERROR: This action can only be performed by librarians!");
-            return;
-        }
+    // at least as many as searchByTitle() would find, see TrigramIndex.estimate()
+    public int estimateTitleMatches(String searchString) {
+        return catalogIndex.estimateTitleMatches(searchString);
+    }
 
-        while (true) {
-            for (int i = 0; i < users.size(); i++) {
-                System.out.println((i + 1) + ". " + users.get(i).getName());
-            }
-            System.out.println("0. Exit");
+    public int estimateAuthorMatches(String searchString) {
+        return catalogIndex.estimateAuthorMatches(searchString);
+    }
 
-            int index = getIntegerFromUser("Enter index of user: ");
+    // Tolerates a typo or two in every word of the search string, at most limit books, closest first.
+    public List<Book> fuzzySearchByTitle(String searchString, int limit) {
+        return catalogIndex.fuzzySearchByTitle(searchString, limit);
+    }
 
-            if (index == 0) {
-                return;
-            }
+    public List<Book> fuzzySearchByAuthor(String searchString, int limit) {
+        return catalogIndex.fuzzySearchByAuthor(searchString, limit);
+    }
 
-            index--; // make index zero-based
+    // at most limit books, ranked by how well their descriptions match the words of the query
+    public List<Book> searchByDescription(String query, int limit) {
+        return catalogIndex.searchByDescription(query, limit);
+    }
 
-            if (index < 0 || index >= users.size()) {
-                System.out.println("ERROR: Invalid index! Try again!");
-                continue;
-            }
+    public long getDescriptionIndexBytes() {
+        return catalogIndex.getDescriptionIndexBytes();
+    }
 
-            User user = users.get(index);
+    public int getDescriptionTermCount() {
+        return catalogIndex.getDescriptionTermCount();
+    }
 
-            if(user.getBorrowedBooks().isEmpty()) {
-                System.out.println("This user has not borrowed any books!");
-                return;
-            }
+    // the loans finished so far, for the reports of LoanHistory
+    public LoanHistory.Columns getLoanHistory() {
+        return loanHistory.columns();
+    }
 
-            System.out.println("Books borrowed by " + user.getName() + ":");
-            for (Book borrowedBook : user.getBorrowedBooks()) {
-                System.out.println(borrowedBook.getTitle());
-            }
+    public List<User> searchUsers(String searchString) {
+        return userIndex.search(searchString.toLowerCase());
+    }
 
-            break;
-        }
+    public Collection<Book> getBooksSortedByTitle() {
+        return catalogIndex.getBooksSortedByTitle();
     }
 
-    private void searchForUser() {
-        if (!currentUser.isLibrarian()) {
-            System.out.println("ERROR: This action can only be performed by librarians!");
-            return;
-        }
+    public Collection<Book> getBooksSortedByAuthor() {
+        return catalogIndex.getBooksSortedByAuthor();
+    }
 
-        System.out.print("Enter search string: ");
-        String searchString = scanner.nextLine().toLowerCase();
+    // Loans that are overdue now, longest overdue first. Books read from the snapshot only know their
+    // borrower once the borrower's loans are read, so if any of them is overdue, the loans of all
+    // users are read (once, after that every loan knows its borrower).
+    public List<Book> getOverdueBooks() {
+        List<Book> overdue = overdueTracker.getOverdue(Instant.now().getEpochSecond());
+        restoreBorrowers(overdue);
+        return overdue;
+    }
 
-        boolean matchFound = false;
+    // loans that become overdue within the given time, soonest first
+    public List<Book> getBooksDueWithin(Duration duration) {
+        List<Book> due = overdueTracker.getDueWithin(Instant.now().getEpochSecond(), duration.getSeconds());
+        restoreBorrowers(due);
+        return due;
+    }
+
+    // every loan, soonest due first; the borrowers may not be known yet (see getOverdueBooks())
+    public List<Book> getLoanedBooks() {
+        return overdueTracker.getAll();
+    }
 
-        for (User user : users) {
-            if(user.getName().toLowerCase().contains(searchString)) {
-                System.out.println(user.getName());
-                matchFound = true;
+    public int countOverdueBooks() {
+        return overdueTracker.countOverdue(Instant.now().getEpochSecond());
+    }
+
+    private void restoreBorrowers(List<Book> books) {
+        if (books.stream().anyMatch(book -> book.getBorrower() == null)) {
+            for (User user : userStore.getUsers()) {
+                userStore.loadLoans(user, catalog);
             }
         }
+    }
 
-        if(!matchFound) {
-            System.out.println("No user with that name exist!");
-        }
+    // The listener is called with every loan that becomes overdue, on the tracker's thread and as
+    // soon as it does. The book may have been returned in the meantime.
+    public void addOverdueListener(Consumer<Book> listener) {
+        overdueTracker.addListener(listener);
     }
 
-    private void showAllUsers() {
-        if (!currentUser.isLibrarian()) {
-            System.out.println("ERROR: This action can only be performed by librarians!");
-            return;
-        }
+    public void removeOverdueListener(Consumer<Book> listener) {
+        overdueTracker.removeListener(listener);
+    }
 
-        for (User user : users) {
-            System.out.println(user.getName() + (user.isLibrarian() ? " (librarian)" : ""));
+    public boolean isOverdue(Book book) {
+        LocalDateTime loanDate = book.getLoanDate();
+        return loanDate != null && LocalDateTime.now().isAfter(loanDate.plus(LOAN_DURATION));
+    }
+
+    // What became of each book of a batch, see borrowBooks(), returnBooks() and removeBooks().
+    public enum BatchResult {
+        DONE,
+        // borrowed or held by somebody else, or (removing) by anybody
+        NOT_AVAILABLE,
+        // returning a book the user does not have (any more)
+        NOT_BORROWED,
+        // no longer in the library
+        NOT_FOUND
+    }
+
+    // The journal record is written after a change has claimed the book but before the change becomes
+    // visible to other sessions, so the journal sees the changes to one book in the order they were made.
+    public boolean borrowBook(Book book, User user) {
+        checkWritable();
+        stateLock.readLock().lock();
+        try {
+            if (!borrow(book, user, Instant.now().getEpochSecond())) {
+                return false;
+            }
+        } finally {
+            stateLock.readLock().unlock();
         }
+        commitJournal();
+        return true;
     }
 
-    private void removeBook() {
-        if (!currentUser.isLibrarian()) {
-            System.out.println("ERROR: This action can only be performed by librarians!");
-            return;
+    // Borrows the books for the user as one batch (see applyBatch()), e.g. a basket checked out at once.
+    public Map<Book, BatchResult> borrowBooks(List<Book> books, User user) {
+        checkWritable();
+        long loanEpochSecond = Instant.now().getEpochSecond();
+        return applyBatch(books, book -> borrow(book, user, loanEpochSecond) ? BatchResult.DONE : BatchResult.NOT_AVAILABLE);
+    }
+
+    // With the state lock held, see borrowBook().
+    private boolean borrow(Book book, User user, long loanEpochSecond) {
+        Runnable onBorrowed = () -> journal.append(Journal.BORROW,
+                user.getName(), Integer.toString(book.getId()), Long.toString(loanEpochSecond));
+        if (book.getHolder() == user) {
+            synchronized (holdQueues.lock(book.getTitleId())) {
+                long holdEpochSecond = book.getLoanEpochSecond();
+                if (!catalog.borrowHeldBook(book, user, loanEpochSecond, onBorrowed)) {
+                    return false;
+                }
+                holdTracker.remove(book, holdEpochSecond);
+            }
+        } else if (!catalog.borrowBook(book, user, loanEpochSecond, onBorrowed)) {
+            return false;
         }
+        userStore.markChanged(user);
+        overdueTracker.add(book, loanEpochSecond);
+        return true;
+    }
 
-        while(true) {
-            for (int i = 0; i < availableBooks.size(); i++) {
-                System.out.println((i + 1) + ". " + availableBooks.get(i));
+    // If somebody is waiting for the title, the book is held for the first in line instead of
+    // becoming available.
+    public boolean returnBook(Book book, User user) {
+        checkWritable();
+        List<Book> nowHeld = new ArrayList<>(1);
+        stateLock.readLock().lock();
+        try {
+            if (!giveBack(book, user, Instant.now().getEpochSecond(), nowHeld)) {
+                return false;
             }
-            System.out.println("0. Exit");
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        commitJournal();
+        nowHeld.forEach(this::notifyHoldListeners);
+        return true;
+    }
 
-            int index = getIntegerFromUser("Enter index of book to remove: ");
+    // Returns the books of the user as one batch (see applyBatch()).
+    public Map<Book, BatchResult> returnBooks(List<Book> books, User user) {
+        checkWritable();
+        long returnEpochSecond = Instant.now().getEpochSecond();
+        List<Book> nowHeld = new ArrayList<>();
+        Map<Book, BatchResult> results = applyBatch(books,
+                book -> giveBack(book, user, returnEpochSecond, nowHeld) ? BatchResult.DONE : BatchResult.NOT_BORROWED);
+        nowHeld.forEach(this::notifyHoldListeners);
+        return results;
+    }
 
-            if(index == 0) {
-                return;
+    // With the state lock held, see returnBook(). Adds the book to nowHeld if it is now held for the
+    // next user in line, whom the hold listeners tell once the journal is committed.
+    private boolean giveBack(Book book, User user, long returnEpochSecond, List<Book> nowHeld) {
+        long[] loanEpochSecond = new long[1];
+        synchronized (holdQueues.lock(book.getTitleId())) {
+            User holder = holdQueues.peek(book.getTitleId());
+            if (!catalog.returnBook(book, user, holder, returnEpochSecond, () -> {
+                loanEpochSecond[0] = book.getLoanEpochSecond();
+                journal.append(Journal.RETURN, user.getName(), Integer.toString(book.getId()), Long.toString(returnEpochSecond));
+            })) {
+                return false;
             }
+            if (holder != null) {
+                holdQueues.poll(book.getTitleId());
+                holdTracker.add(book, returnEpochSecond);
+                nowHeld.add(book);
+            }
+        }
+        userStore.markChanged(user);
+        overdueTracker.remove(book, loanEpochSecond[0]);
+        loanHistory.add(book.getId(), user.getName(), loanEpochSecond[0], returnEpochSecond);
+        return true;
+    }
 
-            index--; // make index zero-based
-
-            if(index < 0 || index >= availableBooks.size()) {
-                System.out.println("ERROR: Invalid index! Try again!");
-                continue;
+    // Puts the user in line for the book's title, which only works while no copy is available.
+    public HoldQueues.Result reserveBook(Book book, User user) {
+        checkWritable();
+        int titleId = book.getTitleId();
+        stateLock.readLock().lock();
+        try {
+            synchronized (holdQueues.lock(titleId)) {
+                List<Book> copies = catalog.getCopies(titleId);
+                if (copies.stream().anyMatch(Book::isAvailable)) {
+                    return HoldQueues.Result.COPY_AVAILABLE;
+                }
+                if (copies.stream().anyMatch(copy -> copy.getBorrower() == user || copy.getHolder() == user)) {
+                    return HoldQueues.Result.ALREADY_HAS_COPY;
+                }
+                if (holdQueues.contains(titleId, user)) {
+                    return HoldQueues.Result.ALREADY_WAITING;
+                }
+                journal.append(Journal.HOLD, user.getName(), Integer.toString(titleId));
+                holdQueues.add(titleId, user);
             }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        commitJournal();
+        return HoldQueues.Result.QUEUED;
+    }
 
-            availableBooks.remove(index);
+    // Called once the hold on the book has run out: the book is held for the next user in line or,
+    // if there is none, becomes available.
+    private void expireHold(Book book) {
+        User nextHolder;
+        stateLock.readLock().lock();
+        try {
+            synchronized (holdQueues.lock(book.getTitleId())) {
+                User holder = book.getHolder();
+                long holdEpochSecond = book.getLoanEpochSecond();
+                long now = Instant.now().getEpochSecond();
+                if (holder == null || holdEpochSecond + HOLD_DURATION.getSeconds() >= now) {
+                    return; // borrowed in the meantime, or held again
+                }
 
-            break;
+                // journaled before the change becomes visible, see borrowBook()
+                journal.append(Journal.HOLD_EXPIRED, Integer.toString(book.getId()), Long.toString(now));
+                nextHolder = holdQueues.poll(book.getTitleId());
+                book.tryEndHold(holder, nextHolder, now);
+                catalog.publish(book);
+                holdTracker.remove(book, holdEpochSecond);
+                if (nextHolder != null) {
+                    holdTracker.add(book, now);
+                }
+            }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        commitJournal();
+        if (nextHolder != null) {
+            notifyHoldListeners(book);
         }
     }
 
-    private void addNewBook() {
-        if (!currentUser.isLibrarian()) {
-            System.out.println("ERROR: This action can only be performed by librarians!");
-            return;
-        }
+    // every copy held for somebody, the hold that ends first first
+    public List<Book> getHeldBooks() {
+        return holdTracker.getAll();
+    }
 
-        System.out.print("Enter title: ");
-        String title = scanner.nextLine();
+    // copies held for the user, waiting to be borrowed
+    public List<Book> getBooksHeldFor(User user) {
+        List<Book> held = new ArrayList<>();
+        for (Book book : holdTracker.getAll()) {
+            if (book.getHolder() == user) {
+                held.add(book);
+            }
+        }
+        return held;
+    }
 
-        System.out.print("Enter author: ");
-        String author = scanner.nextLine();
+    // title id -> the user's place in line, for every title the user is waiting for
+    public Map<Integer, Integer> getReservations(User user) {
+        return holdQueues.getPositions(user);
+    }
 
-        System.out.print("Enter description: ");
-        String description = scanner.nextLine();
+    // The listener is called with every book that becomes held for a user, after the change is journaled.
+    public void addHoldListener(Consumer<Book> listener) {
+        holdListeners.add(listener);
+    }
 
-        availableBooks.add(new Book(title, author, description));
+    public void removeHoldListener(Consumer<Book> listener) {
+        holdListeners.remove(listener);
     }
 
-    private void showAllBorrowedBooks() {
-        if (!currentUser.isLibrarian()) {
-            System.out.println("ERROR: This action can only be performed by librarians!");
-            return;
+    private void notifyHoldListeners(Book book) {
+        for (Consumer<Book> listener : holdListeners) {
+            listener.accept(book);
         }
+    }
+
+    public Book addBook(String title, String author, String description) {
+        return addBook(title, author, description, 1);
+    }
 
-        for (User user : users) {
-            for (Book borrowedBook : user.getBorrowedBooks()) {
-                System.out.printf("\"%s\" borrowed by %s\n", borrowedBook.getTitle(), user.getName());
+    // Adds the given number of copies of a title and returns the first one. Throws an
+    // IllegalArgumentException if a text is too long for the journal, see Journal.checkFields().
+    public Book addBook(String title, String author, String description, int copies) {
+        checkWritable();
+        Journal.checkFields(title, author, description);
+        Book first = null;
+        stateLock.readLock().lock();
+        try {
+            for (int i = 0; i < copies; i++) {
+                int id = catalog.nextBookId();
+                Book book = new Book(id, first != null ? first.getId() : id, title, author, description);
+                journal.append(Journal.ADD, Integer.toString(book.getId()), title, author, description,
+                        Integer.toString(book.getTitleId()));
+                catalog.addBook(book);
+                catalogIndex.addBook(book);
+                if (first == null) {
+                    first = book;
+                }
             }
+        } finally {
+            stateLock.readLock().unlock();
         }
+        commitJournal();
+        return first;
     }
 
-    private void showAvailableBooks() {
-        System.out.println("Books in library:");
-        printBookList(availableBooks);
+    // Adds a batch of new books (ids from catalog.nextBookId()) with a single journal commit. None
+    // are added if a text of any of them is too long for the journal.
+    public void addBooks(List<Book> books) {
+        checkWritable();
+        for (Book book : books) {
+            Journal.checkFields(book.getTitle(), book.getAuthor(), book.getDescription());
+        }
+        stateLock.readLock().lock();
+        try {
+            for (Book book : books) {
+                journal.append(Journal.ADD, Integer.toString(book.getId()), book.getTitle(), book.getAuthor(), book.getDescription());
+                catalog.addBook(book);
+                catalogIndex.addBook(book);
+            }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        commitJournal();
     }
 
-    private void returnBook() {
-        if(currentUser.getBorrowedBooks().isEmpty()) {
-            System.out.println("You have not borrowed any books!");
-            return;
+    public boolean removeBook(Book book) {
+        checkWritable();
+        stateLock.readLock().lock();
+        try {
+            if (!remove(book)) {
+                return false;
+            }
+        } finally {
+            stateLock.readLock().unlock();
         }
+        commitJournal();
+        return true;
+    }
 
-        while (true) {
-            System.out.println("Your borrowed books:");
-            for (int i = 0; i < currentUser.getBorrowedBooks().size(); i++) {
-                System.out.println((i + 1) + ". " + currentUser.getBorrowedBooks().get(i).getTitle());
-            }
-            System.out.println("0. Exit");
+    // Removes the books as one batch (see applyBatch()), e.g. all books a librarian's search found.
+    // Borrowed and held books stay.
+    public Map<Book, BatchResult> removeBooks(List<Book> books) {
+        checkWritable();
+        return applyBatch(books, book -> remove(book) ? BatchResult.DONE : BatchResult.NOT_AVAILABLE);
+    }
 
-            int index = getIntegerFromUser("Enter index of book to return: ");
+    // With the state lock held, see removeBook().
+    private boolean remove(Book book) {
+        if (!catalog.removeBook(book, () -> journal.append(Journal.REMOVE, Integer.toString(book.getId())))) {
+            return false;
+        }
+        catalogIndex.removeBook(book);
+        return true;
+    }
 
-            if (index == 0) {
-                return; // exit
+    // Applies the change to every book, in order, and returns what became of each; books that are no
+    // longer in the library are NOT_FOUND. The batch holds the state lock exclusively, so no other
+    // change comes in between and its journal records (a journal batch) are written with one commit,
+    // and a snapshot has either all of the batch or none of it. A book that cannot be changed does
+    // not stop the others.
+    private Map<Book, BatchResult> applyBatch(List<Book> books, Function<Book, BatchResult> change) {
+        Map<Book, BatchResult> results = new LinkedHashMap<>();
+        stateLock.writeLock().lock();
+        try {
+            journal.beginBatch();
+            try {
+                for (Book book : books) {
+                    if (!results.containsKey(book)) {
+                        results.put(book, catalog.getBook(book.getId()) == book ? change.apply(book) : BatchResult.NOT_FOUND);
+                    }
+                }
+            } finally {
+                journal.endBatch();
             }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        commitJournal();
+        return results;
+    }
 
-            index--; // make index zero-based
+    public void sync() {
+        syncJournal();
+    }
 
-            if (index < 0 || index >= currentUser.getBorrowedBooks().size()) {
-                System.out.println("ERROR: Invalid index. Try again!");
-                continue;
-            }
+    public boolean isReplica() {
+        return replica;
+    }
 
-            Book returnedBook = currentUser.returnBook(index);
-            availableBooks.add(returnedBook);
-            System.out.printf("You returned \"%s\" by %s\n", returnedBook.getTitle(), returnedBook.getAuthor());
-            break;
-        }
+    // whether there is a library in the directory, or a new one would be created
+    public static boolean hasDataFiles(Path dataDirectory) {
+        return Files.exists(dataDirectory.resolve(BOOK_DATA_FILE))
+                || Files.exists(dataDirectory.resolve(BOOK_DATA_FILE + BinaryCodec.BACKUP_SUFFIX));
     }
 
-    private void showBorrowedBooks() {
-        if(currentUser.getBorrowedBooks().isEmpty()) {
-            System.out.println("You have not borrowed any books!");
-            return;
+    // Deletes the data files of the library in the directory, other files (e.g. metrics.txt) stay.
+    public static void deleteDataFiles(Path dataDirectory) throws IOException {
+        List<String> prefixes = List.of(BOOK_DATA_FILE, USER_DATA_FILE, JOURNAL_FILE, SNAPSHOT_SEQUENCE_FILE,
+                LOAN_HISTORY_FILE, UserStore.LOANS_FILE_PREFIX);
+        try (Stream<Path> files = Files.list(dataDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (prefixes.stream().anyMatch(name::startsWith)) {
+                    Files.delete(file);
+                }
+            }
         }
+    }
 
-        for (Book borrowedBook : currentUser.getBorrowedBooks()) {
-            System.out.println("Title: " + borrowedBook.getTitle());
-            System.out.println("Author: " + borrowedBook.getAuthor());
-            System.out.println("Loan date: " + borrowedBook.getLoanDate());
-            LocalDateTime returnDate = borrowedBook.getLoanDate().plus(LOAN_DURATION);
-            System.out.println("Return date: " + returnDate +
-                    (isOverdue(borrowedBook) ? " (Is overdue!)" : " (To be returned in: " + Duration.between(borrowedBook.getLoanDate(), returnDate) + ")"));
-            System.out.println();
+    private void checkWritable() {
+        if (replica) {
+            throw new IllegalStateException("A replica can only be changed by its primary");
         }
     }
 
-    private void searchBook() {
-        while (true) {
-            System.out.println("Search by:");
-            System.out.println("1. Title");
-            System.out.println("2. Author");
-            System.out.println("0. Exit");
+    // the number of the newest journal record, on a replica the newest one received from the primary
+    public long getJournalSequence() {
+        return journal.getSequence();
+    }
 
-            int choice = getIntegerFromUser("Enter choice: ");
+    // the number of the newest journal record written to the file
+    public long getCommittedJournalSequence() {
+        return journal.getCommittedSequence();
+    }
 
-            if (choice == 0) {
-                return;
-            }
+    // Hands the follower every journal record after afterSequence and then every commit, see
+    // Journal.follow(). False if the journal no longer has those records.
+    public boolean followJournal(long afterSequence, Consumer<ByteBuffer> follower) throws IOException {
+        return journal.follow(afterSequence, follower);
+    }
 
-            if (choice > 2 || choice < 0) {
-                System.out.println("ERROR: Invalid choice! Try again!");
-                continue;
-            }
+    public void unfollowJournal(Consumer<ByteBuffer> follower) {
+        journal.unfollow(follower);
+    }
 
-            System.out.print("Enter search string: ");
-            String searchString = scanner.nextLine().toLowerCase();
+    public int getJournalFollowerCount() {
+        return journal.getFollowerCount();
+    }
 
-            System.out.println("\nResult:");
-            boolean matchFound = false;
+    // Writes a snapshot of the current state to the given directory, as books.dat and users.dat, for a
+    // replica to start from, and makes the follower follow the journal from there on. Other changes
+    // only wait while the state is copied, like for saveSnapshot(). Returns the snapshot's sequence.
+    public long saveReplicaSnapshot(Path directory, Consumer<ByteBuffer> follower) throws IOException {
+        // the replica needs every user's loans, not only those read so far
+        for (User user : userStore.getUsers()) {
+            userStore.loadLoans(user, catalog);
+        }
 
-            for (Book book : getAllBooks()) {
-                if ((choice == 1 && book.getTitle().toLowerCase().contains(searchString)) ||
-                        (choice == 2 && book.getAuthor().toLowerCase().contains(searchString))) {
-                    System.out.printf("\"%s\" by %s\n", book.getTitle(), book.getAuthor());
-                    matchFound = true;
-                }
+        long sequence;
+        List<Book> bookCopies;
+        List<User> userCopies;
+        Map<Integer, List<String>> holdQueueCopies;
+        stateLock.writeLock().lock();
+        try {
+            sequence = journal.getSequence();
+            bookCopies = new ArrayList<>(catalog.getAllBooks().size());
+            for (Book book : catalog.getAllBooks()) {
+                bookCopies.add(book.copy());
             }
-
-            if(!matchFound) {
-                System.out.println("No results matched your criteria!");
+            userCopies = new ArrayList<>(userStore.getUsers().size());
+            for (User user : userStore.getUsers()) {
+                userCopies.add(user.copy());
             }
+            holdQueueCopies = holdQueues.getQueues();
+            journal.follow(sequence, follower);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
 
-            break;
+        if (!BinaryCodec.saveBooks(directory.resolve(BOOK_DATA_FILE).toString(), bookCopies, holdQueueCopies, sequence)
+                || !UserStore.saveAll(directory.resolve(USER_DATA_FILE), userCopies, sequence)) {
+            journal.unfollow(follower);
+            throw new IOException("Could not write a snapshot for a replica to " + directory);
         }
+        return sequence;
     }
 
-    private void borrowBook() {
-        if(availableBooks.isEmpty()) {
-            System.out.println("There are no books in the library!");
-            return;
+    // Applies records received from the primary, in order, and journals them under the primary's
+    // sequence numbers so that the replica can continue from where it was after a restart.
+    public void applyReplicated(List<Journal.Record> records) {
+        stateLock.readLock().lock();
+        try {
+            for (Journal.Record record : records) {
+                journal.append(record);
+                applyJournalRecord(record);
+            }
+        } finally {
+            stateLock.readLock().unlock();
         }
+        commitJournal();
+    }
 
-        while (true) {
-            System.out.println("Books in library:");
-            for (int i = 0; i < availableBooks.size(); i++) {
-                Book book = availableBooks.get(i);
-                System.out.printf("%d. \"%s\" by %s\n", (i + 1), book.getTitle(), book.getAuthor());
-            }
-            System.out.println("0. Exit");
+    // Called by the replica once it has every record the primary had committed at the given time.
+    public void markReplicated(long asOfMillis) {
+        replicatedAsOfMillis = Math.max(replicatedAsOfMillis, asOfMillis);
+    }
 
-            int index = getIntegerFromUser("Enter index of book to borrow: ");
+    // how far behind the primary a replica may be, 0 on the primary
+    public long getReplicationStalenessMillis() {
+        return replica ? Math.max(0, System.currentTimeMillis() - replicatedAsOfMillis) : 0;
+    }
 
-            if (index == 0) {
-                return; // exit
-            }
+    private User getUserFromUsername(String username) {
+        User user = userStore.getUser(username);
+        if (user != null) {
+            userStore.loadLoans(user, catalog);
+        }
+        return user;
+    }
 
-            index--; // make index zero-based
+    // One-time conversion of the Java serialization files written by earlier versions. The old files
+    // are left in place; load time and size of both formats are reported so they can be compared.
+    private void migrateLegacyDataFiles() {
+        System.out.println("Migrating " + LEGACY_BOOK_DATA_FILE + " and " + LEGACY_USER_DATA_FILE + " to the binary format...");
 
-            if (index < 0 || index >= availableBooks.size()) {
-                System.out.println("ERROR: Invalid index! Try again!");
-                continue;
-            }
+        long start = System.nanoTime();
+        List<Book> legacyBooks = (List<Book>) FileUtility.loadObject(legacyBookDataFile);
+        List<User> legacyUsers = (List<User>) FileUtility.loadObject(legacyUserDataFile);
+        long legacyLoadTime = System.nanoTime() - start;
 
-            Book bookToBorrow = availableBooks.remove(index);
-            currentUser.borrowBook(bookToBorrow);
+        if (legacyBooks == null || legacyUsers == null) {
+            System.out.println("ERROR: Could not read the old data files, starting with default data!");
+            return;
+        }
 
-            System.out.printf("You borrowed \"%s\" by %s\n", bookToBorrow.getTitle(), bookToBorrow.getAuthor());
+        BinaryCodec.saveBooks(bookDataFile, legacyBooks);
+        UserStore.saveAll(Path.of(userDataFile), legacyUsers);
 
-            break;
-        }
+        start = System.nanoTime();
+        BinaryCodec.loadBooks(bookDataFile);
+        BinaryCodec.loadUsers(userDataFile);
+        long loadTime = System.nanoTime() - start;
+
+        System.out.printf("Old format: %d bytes, loaded in %.2f ms\n",
+                fileSize(legacyBookDataFile) + fileSize(legacyUserDataFile), legacyLoadTime / 1e6);
+        System.out.printf("New format: %d bytes, loaded in %.2f ms\n",
+                fileSize(bookDataFile) + fileSize(userDataFile), loadTime / 1e6);
     }
 
-    private void showBookDetails() {
-        while (true) {
-            List<Book> allBooks = getAllBooks();
+    private long fileSize(String filename) {
+        try {
+            return Files.size(Path.of(filename));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
 
-            for (int i = 0; i < allBooks.size(); i++) {
-                Book book = allBooks.get(i);
-                System.out.println((i + 1) + ". \"" + book.getTitle() + "\" by " + book.getAuthor());
+    private void applyJournalRecord(Journal.Record record) {
+        switch (record.getType()) {
+            case Journal.ADD: {
+                int id = Integer.parseInt(record.getField(0));
+                int titleId = record.getFieldCount() > 4 ? Integer.parseInt(record.getField(4)) : id;
+                Book book = new Book(id, titleId, record.getField(1), record.getField(2), record.getField(3));
+                catalog.addBook(book);
+                // built after the replay at startup, only records from the primary get here with an index
+                if (catalogIndex != null) {
+                    catalogIndex.addBook(book);
+                }
+                break;
+            }
+            case Journal.REMOVE: {
+                Book book = catalog.getBook(Integer.parseInt(record.getField(0)));
+                if (book != null && catalog.removeBook(book, () -> {}) && catalogIndex != null) {
+                    catalogIndex.removeBook(book);
+                }
+                break;
+            }
+            case Journal.BORROW: {
+                User user = getUserFromUsername(record.getField(0));
+                Book book = catalog.getBook(Integer.parseInt(record.getField(1)));
+                if (user != null && book != null) {
+                    long loanEpochSecond = record.getFieldCount() > 2 ? Long.parseLong(record.getField(2)) : Instant.now().getEpochSecond();
+                    long holdEpochSecond = book.getLoanEpochSecond();
+                    if (book.getHolder() == user && catalog.borrowHeldBook(book, user, loanEpochSecond, () -> {})) {
+                        holdTracker.remove(book, holdEpochSecond);
+                        overdueTracker.add(book, loanEpochSecond);
+                    } else if (catalog.borrowBook(book, user, loanEpochSecond, () -> {})) {
+                        overdueTracker.add(book, loanEpochSecond);
+                    }
+                    userStore.markChanged(user);
+                }
+                break;
+            }
+            case Journal.RETURN: {
+                User user = getUserFromUsername(record.getField(0));
+                Book book = catalog.getBook(Integer.parseInt(record.getField(1)));
+                if (user != null && book != null) {
+                    long loanEpochSecond = book.getLoanEpochSecond();
+                    long returnEpochSecond = record.getFieldCount() > 2 ? Long.parseLong(record.getField(2)) : Instant.now().getEpochSecond();
+                    User holder = holdQueues.peek(book.getTitleId());
+                    if (catalog.returnBook(book, user, holder, returnEpochSecond, () -> {})) {
+                        if (holder != null) {
+                            holdQueues.poll(book.getTitleId());
+                            holdTracker.add(book, returnEpochSecond);
+                        }
+                        userStore.markChanged(user);
+                        overdueTracker.remove(book, loanEpochSecond);
+                        loanHistory.add(book.getId(), user.getName(), loanEpochSecond, returnEpochSecond);
+                    }
+                }
+                break;
+            }
+            case Journal.HOLD: {
+                User user = getUserFromUsername(record.getField(0));
+                int titleId = Integer.parseInt(record.getField(1));
+                if (user != null && !holdQueues.contains(titleId, user)) {
+                    holdQueues.add(titleId, user);
+                }
+                break;
+            }
+            case Journal.HOLD_EXPIRED: {
+                Book book = catalog.getBook(Integer.parseInt(record.getField(0)));
+                long now = Long.parseLong(record.getField(1));
+                if (book != null && book.isHeld()) {
+                    long holdEpochSecond = book.getLoanEpochSecond();
+                    User nextHolder = holdQueues.poll(book.getTitleId());
+                    book.tryEndHold(book.getHolder(), nextHolder, now);
+                    catalog.publish(book);
+                    holdTracker.remove(book, holdEpochSecond);
+                    if (nextHolder != null) {
+                        holdTracker.add(book, now);
+                    }
+                }
+                break;
             }
-            System.out.println("0. Exit");
+            case Journal.BATCH_BEGIN:
+            case Journal.BATCH_END:
+                break; // the replay only hands over whole batches
+            default:
+                System.out.println("ERROR: Unknown journal record type " + record.getType() + ", skipping it!");
+                break;
+        }
+    }
 
-            int choice = getIntegerFromUser("Enter index of book to see its detailed info: ");
+    private void commitJournal() {
+        try {
+            journal.commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            if (choice == 0) {
+    private void syncJournal() {
+        try {
+            journal.sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Writes a new snapshot if anything has changed since the last one. Other changes only wait while
+    // the state is copied and the journal rotated; the files are written from the copy afterwards.
+    // Both files carry the sequence number of the last journal record the copy includes. Of the
+    // books, only those that changed since the last snapshot are written, to the delta file, and once
+    // those add up to BOOK_DELTA_PERCENT of the books file all books are written again as well. Of the
+    // users, only those whose loans changed are written, see UserStore, and of the loan history only
+    // the loans finished since the last snapshot.
+    private synchronized void saveSnapshot() {
+        long sequence;
+        CatalogVersion version;
+        List<Book> changedBooks = new ArrayList<>();
+        int[] removedIds;
+        List<Book> bookCopies = null;
+        Map<User, int[]> userChanges;
+        LoanHistory.Columns history;
+        Map<Integer, List<String>> holdQueueCopies;
+
+        long start = System.nanoTime();
+        stateLock.writeLock().lock();
+        try {
+            sequence = journal.getSequence();
+            if (sequence == snapshotSequence) {
                 return;
             }
 
-            choice--; // make zero-based
+            version = catalog.snapshot();
+            List<Integer> removed = new ArrayList<>();
+            version.diff(savedVersion, book -> changedBooks.add(book.copy()), removed::add);
+            removedIds = removed.stream().mapToInt(Integer::intValue).toArray();
+            if (fullBookSaveNeeded || bookDeltaTooLarge()) {
+                bookCopies = new ArrayList<>(catalog.getAllBooks().size());
+                for (Book book : catalog.getAllBooks()) {
+                    bookCopies.add(book.copy());
+                }
+            }
 
-            if (choice < 0 || choice >= allBooks.size()) {
-                System.out.println("ERROR: Invalid index! Try again!");
-                continue;
+            // after a failed snapshot the rotated records are not in any snapshot yet, so keep them
+            if (lastSnapshotSaved) {
+                journal.rotate();
             }
 
-            Book book = allBooks.get(choice);
-            System.out.println("\nTitle: " + book.getTitle());
-            System.out.println("Author: " + book.getAuthor());
-            System.out.println("Description: " + book.getDescription());
-            System.out.println("Available: " + availableBooks.contains(book));
-            break;
+            userChanges = userStore.takeChanges();
+            history = loanHistory.columns();
+            holdQueueCopies = holdQueues.getQueues();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        } finally {
+            stateLock.writeLock().unlock();
+            SNAPSHOT_PAUSE.record(System.nanoTime() - start);
+        }
+
+        // the history and the books first, blocks of a snapshot that did not make it are cut off again at
+        // startup, or not used
+        lastSnapshotSaved = loanHistory.save(history, sequence)
+                && saveBooks(sequence, version, changedBooks, removedIds, bookCopies, holdQueueCopies)
+                && userStore.save(userChanges, sequence);
+        SAVE_SNAPSHOT.record(System.nanoTime() - start);
+        if (lastSnapshotSaved) {
+            snapshotSequence = sequence;
+        } else {
+            userStore.markChanged(userChanges.keySet());
+            System.out.println("ERROR: Could not save the library data, the changes are kept in the journal!");
         }
     }
 
-    private void showAllBooks() {
-        printBookList(getAllBooks());
+    // Appends the changes to the delta file and, given all books, writes the books file as well. The
+    // changes are written also then, so that the blocks lead from the backup of the books file to the
+    // new one. A retry after the users could not be written finds the books saved already.
+    private boolean saveBooks(long sequence, CatalogVersion version, List<Book> changedBooks, int[] removedIds,
+                              List<Book> bookCopies, Map<Integer, List<String>> holdQueueCopies) {
+        if (sequence != savedBookSequence) {
+            if (!bookDelta.append(savedBookSequence, sequence, changedBooks, removedIds, holdQueueCopies)) {
+                return false;
+            }
+            savedVersion = version;
+            savedBookSequence = sequence;
+        }
+        if (bookCopies != null) {
+            if (!BinaryCodec.saveBooks(bookDataFile, bookCopies, holdQueueCopies, sequence)) {
+                return false;
+            }
+            bookDelta.rotate();
+            fullBookSaveNeeded = false;
+        }
+        return true;
     }
 
-    private void printBookList(List<Book> books) {
-        for (Book book : books) {
-            System.out.printf("\"%s\" by %s\n", book.getTitle(), book.getAuthor());
+    private boolean bookDeltaTooLarge() {
+        try {
+            return bookDelta.size() * 100 > Files.size(Path.of(bookDataFile)) * BOOK_DELTA_PERCENT;
+        } catch (IOException e) {
+            return true;
         }
     }
 
-    private List<Book> getAllBooks() {
-        List<Book> allBooks = new ArrayList<>(availableBooks);
+    private boolean snapshotExists(String filename) {
+        return Files.exists(Path.of(filename)) || Files.exists(Path.of(filename + BinaryCodec.BACKUP_SUFFIX));
+    }
+
+    // Loads the newest books and users snapshots that are intact and were taken at the same point of
+    // the journal, and returns that point. Normally those are the data files themselves, with the
+    // blocks of the book delta file on top, but after a damaged file or a crash between writing the
+    // files it can be one or both of the backups, or fewer of the blocks.
+    private long loadSnapshot() {
+        String[] bookFiles = {bookDataFile, bookDataFile + BinaryCodec.BACKUP_SUFFIX};
+        String[] userFiles = {userDataFile, userDataFile + BinaryCodec.BACKUP_SUFFIX};
+        long[] bookSequences = verifySnapshots(bookFiles, true);
+        long[] userSequences = verifySnapshots(userFiles, false);
+
+        // Every block leads from the snapshot its changes are from to its own, so the snapshots a books
+        // file can be brought up to are found by following the blocks from its sequence number.
+        List<BookDeltaFile.Block> blocks = bookDelta.load();
+        blocks.sort(Comparator.comparingLong(block -> block.fromSequence));
+
+        // the books file, the blocks to apply to it, and the users file
+        int bookIndex = -1;
+        List<BookDeltaFile.Block> usedBlocks = List.of();
+        int userIndex = -1;
+        long sequence = -1;
+        for (int i = 0; i < bookFiles.length; i++) {
+            if (bookSequences[i] < 0) {
+                continue;
+            }
+            Map<Long, List<BookDeltaFile.Block>> reachable = new LinkedHashMap<>();
+            reachable.put(bookSequences[i], List.of());
+            for (BookDeltaFile.Block block : blocks) {
+                List<BookDeltaFile.Block> path = reachable.get(block.fromSequence);
+                if (path != null && block.sequence > block.fromSequence && !reachable.containsKey(block.sequence)) {
+                    List<BookDeltaFile.Block> longer = new ArrayList<>(path);
+                    longer.add(block);
+                    reachable.put(block.sequence, longer);
+                }
+            }
+            for (Map.Entry<Long, List<BookDeltaFile.Block>> candidate : reachable.entrySet()) {
+                for (int j = 0; j < userFiles.length; j++) {
+                    if (candidate.getKey() == userSequences[j] && (bookIndex < 0 || candidate.getKey() > sequence)) {
+                        bookIndex = i;
+                        usedBlocks = candidate.getValue();
+                        userIndex = j;
+                        sequence = candidate.getKey();
+                    }
+                }
+            }
+        }
+
+        if (bookIndex < 0) {
+            throw new IllegalStateException("No intact snapshot of the library data found, restore " + bookDataFile
+                    + " and " + userDataFile + " from a backup!");
+        }
+        if (bookIndex > 0 || userIndex > 0) {
+            System.out.println("MESSAGE: Loading the library data from " + bookFiles[bookIndex] + " and " + userFiles[userIndex]);
+        }
 
-        for (User user : users) {
-            allBooks.addAll(user.getBorrowedBooks());
+        List<Book> books = BinaryCodec.loadBooks(bookFiles[bookIndex]);
+        BinaryCodec.Holds holds = BinaryCodec.loadHolds(bookFiles[bookIndex]);
+        if (!usedBlocks.isEmpty()) {
+            books = applyBookDelta(books, holds, usedBlocks);
+        }
+        // a damaged books file is replaced by the next snapshot, and no block leads from a file without
+        // a sequence number
+        fullBookSaveNeeded = bookIndex > 0 || bookSequences[bookIndex] == 0;
+
+        userStore = new UserStore(Path.of(userDataFile));
+        try {
+            userStore.load(userFiles[userIndex]);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not load the users from " + userFiles[userIndex], e);
         }
+        // only users from files before the loans were stored separately come with their loans here
+        catalog = new Catalog(books, userStore.getUsers());
+        restoreHolds(holds);
 
-        return allBooks;
+        // files from before snapshots carried their sequence number have it in a file of its own
+        return sequence == 0 ? loadSnapshotSequence() : sequence;
     }
 
-    private void showLoginMessages() {
-        for (Book borrowedBook : currentUser.getBorrowedBooks()) {
-            if(isOverdue(borrowedBook)) {
-                System.out.println("MESSAGE: \"" + borrowedBook.getTitle() + "\" is overdue!");
+    // The books of the books file with the changes of the blocks, in order. The holders and the hold
+    // queues are updated to those of the last block.
+    private List<Book> applyBookDelta(List<Book> books, BinaryCodec.Holds holds, List<BookDeltaFile.Block> blocks) {
+        // ids only grow, so new books come after the others and the books stay in the order of their ids
+        Map<Integer, Book> booksById = new LinkedHashMap<>();
+        for (Book book : books) {
+            booksById.put(book.getId(), book);
+        }
+        for (BookDeltaFile.Block block : blocks) {
+            for (Book book : block.books) {
+                booksById.put(book.getId(), book);
+                if (holds != null) {
+                    holds.holders.remove(book.getId());
+                }
+            }
+            for (int id : block.removedIds) {
+                booksById.remove(id);
+                if (holds != null) {
+                    holds.holders.remove(id);
+                }
+            }
+            if (holds != null) {
+                holds.holders.putAll(block.holders);
+                holds.queues.clear();
+                holds.queues.putAll(block.queues);
             }
         }
+        return new ArrayList<>(booksById.values());
     }
 
-    private boolean isOverdue(Book book) {
-        return book.getLoanDate() != null && LocalDateTime.now().isAfter(book.getLoanDate().plus(LOAN_DURATION));
-    }
+    private void restoreHolds(BinaryCodec.Holds holds) {
+        holdQueues = new HoldQueues();
+        if (holds == null) {
+            System.out.println("ERROR: Could not read the hold queues, they are empty now!");
+            return;
+        }
 
-    private int getIntegerFromUser(String prompt) {
-        while (true) {
-            try {
-                System.out.print(prompt);
-                return Integer.parseInt(scanner.nextLine());
-            } catch (NumberFormatException e) {
-                System.out.println("ERROR: Invalid integer. Try again!");
+        for (Map.Entry<Integer, List<String>> queue : holds.queues.entrySet()) {
+            for (String name : queue.getValue()) {
+                User user = userStore.getUser(name);
+                if (user != null) {
+                    holdQueues.add(queue.getKey(), user);
+                }
+            }
+        }
+        for (Map.Entry<Integer, String> holder : holds.holders.entrySet()) {
+            Book book = catalog.getBook(holder.getKey());
+            User user = userStore.getUser(holder.getValue());
+            if (book != null && user != null) {
+                book.restoreHold(user, book.getLoanEpochSecond());
+                catalog.publish(book);
             }
         }
     }
 
-    private User getUserFromUsername(String username) {
-        for (User user : users) {
-            if (user.getName().equals(username)) {
-                return user;
+    // the sequence number of each file, or -1 if it is missing or damaged
+    private long[] verifySnapshots(String[] filenames, boolean books) {
+        long[] sequences = new long[filenames.length];
+        for (int i = 0; i < filenames.length; i++) {
+            sequences[i] = -1;
+            if (!Files.exists(Path.of(filenames[i]))) {
+                continue;
             }
-        }
 
-        return null;
+            try {
+                sequences[i] = books ? BinaryCodec.verifyBooks(filenames[i]) : BinaryCodec.verifyUsers(filenames[i]);
+            } catch (IOException e) {
+                System.out.println("ERROR: " + e.getMessage() + ", ignoring it!");
+            }
+        }
+        return sequences;
     }
 
-    private void saveProgramStateToFiles() {
-        FileUtility.saveObject(BOOK_DATA_FILE, availableBooks);
-        FileUtility.saveObject(USER_DATA_FILE, users);
+    private long loadSnapshotSequence() {
+        if (!Files.exists(Path.of(snapshotSequenceFile))) {
+            return 0;
+        }
+
+        List<String> lines = FileUtility.loadText(snapshotSequenceFile);
+        return lines == null || lines.isEmpty() ? 0 : Long.parseLong(lines.get(0).trim());
     }
 
     private void createDefaultBookDataFile() {
         List<Book> defaultBooks = new ArrayList<>();
-        defaultBooks.add(new Book("Harry Potter and the Philosopher’s Stone", "Rowling, J.K.", "Bla bla bla..."));
-        defaultBooks.add(new Book("A Confederacy of Dunces", "Toole, John Kennedy", "Bla bla bla..."));
-        defaultBooks.add(new Book("The Lord of the Rings", "Tolkien, J. R. R.", "Bla bla bla..."));
-        defaultBooks.add(new Book("Effective Java", "Bloch, Joshua", "Bla bla bla..."));
-        defaultBooks.add(new Book("Nineteen Eighty Four", "Orwell, George", "Bla bla bla..."));
+        defaultBooks.add(new Book(0, "Harry Potter and the Philosopher’s Stone", "Rowling, J.K.", "Bla bla bla..."));
+        defaultBooks.add(new Book(1, "A Confederacy of Dunces", "Toole, John Kennedy", "Bla bla bla..."));
+        defaultBooks.add(new Book(2, "The Lord of the Rings", "Tolkien, J. R. R.", "Bla bla bla..."));
+        defaultBooks.add(new Book(3, "Effective Java", "Bloch, Joshua", "Bla bla bla..."));
+        defaultBooks.add(new Book(4, "Nineteen Eighty Four", "Orwell, George", "Bla bla bla..."));
 
-        FileUtility.saveObject(BOOK_DATA_FILE, defaultBooks);
+        BinaryCodec.saveBooks(bookDataFile, defaultBooks);
     }
 
     private void createDefaultUserDataFile() {
@@ -556,6 +1177,6 @@ public class Library {
         defaultUsers.add(new User("kalle"));
         defaultUsers.add(new Librarian("admin"));
 
-        FileUtility.saveObject(USER_DATA_FILE, defaultUsers);
+        UserStore.saveAll(Path.of(userDataFile), defaultUsers);
     }
 }
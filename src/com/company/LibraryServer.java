@@ -0,0 +1,61 @@
+package com.company;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+// Serves any number of terminals over local TCP sockets (e.g. "nc localhost 4000"), one session
+// per connection, all sharing the same library. On a replica a new session gets the library the
+// replica has at the time, see Replica.
+public class LibraryServer {
+    private final Supplier<Library> library;
+    private final int port;
+
+    // a thread per session; sessions spend nearly all their time blocked on terminal input
+    private final ExecutorService sessions = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "session");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LibraryServer(Library library, int port) {
+        this(() -> library, port);
+    }
+
+    public LibraryServer(Supplier<Library> library, int port) {
+        this.library = library;
+        this.port = port;
+    }
+
+    public void start() {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> library.get().shutdown()));
+
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("Library server listening on port " + port);
+
+            while (true) {
+                Socket socket = serverSocket.accept();
+                sessions.execute(() -> serve(socket));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            new Session(library.get(), socket.getInputStream(), socket.getOutputStream(), StandardCharsets.UTF_8).run();
+        } catch (IOException | UncheckedIOException e) {
+            // the terminal went away, nothing to clean up but the socket
+        } catch (RuntimeException e) {
+            // a bug in the session, the other sessions go on
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.company;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+// What a terminal session can do, without the terminal: every operation takes the acting user and
+// returns its result instead of printing it, so the library can also be driven from code (see
+// LoadDriver). Librarian-only operations do nothing for other users and say so in their result.
+public class LibraryService {
+    // number of best matches returned by a description search
+    public static final int DESCRIPTION_RESULTS = Integer.getInteger("library.search.descriptionResults", 50);
+    // number of closest matches offered when a title or author search finds nothing, one page
+    public static final int FUZZY_RESULTS = Integer.getInteger("library.search.fuzzyResults", Pager.PAGE_SIZE);
+
+    public enum SearchField {
+        TITLE, AUTHOR, DESCRIPTION
+    }
+
+    public static class SearchResult {
+        private final List<Book> books;
+        private final boolean fuzzy;
+
+        SearchResult(List<Book> books, boolean fuzzy) {
+            this.books = books;
+            this.fuzzy = fuzzy;
+        }
+
+        public List<Book> getBooks() {
+            return books;
+        }
+
+        // true if nothing matched exactly and these are the closest matches instead
+        public boolean isFuzzy() {
+            return fuzzy;
+        }
+    }
+
+    private final Library library;
+
+    public LibraryService(Library library) {
+        this.library = library;
+    }
+
+    // the user with their loans, null if there is no such user
+    public User login(String username) {
+        return library.getUser(username);
+    }
+
+    // makes sure everything the user did is on disk, see Library.sync()
+    public void logout(User user) {
+        library.sync();
+    }
+
+    // Titles and authors are matched as substrings and, if that finds nothing, with typos allowed.
+    // Descriptions are ranked, best match first.
+    public SearchResult search(SearchField field, String query) {
+        switch (field) {
+            case DESCRIPTION:
+                return new SearchResult(library.searchByDescription(query, DESCRIPTION_RESULTS), false);
+            case TITLE: {
+                List<Book> matches = library.searchByTitle(query);
+                return matches.isEmpty() ? new SearchResult(library.fuzzySearchByTitle(query, FUZZY_RESULTS), true) : new SearchResult(matches, false);
+            }
+            default: {
+                List<Book> matches = library.searchByAuthor(query);
+                return matches.isEmpty() ? new SearchResult(library.fuzzySearchByAuthor(query, FUZZY_RESULTS), true) : new SearchResult(matches, false);
+            }
+        }
+    }
+
+    // See BookQuery for the syntax. Throws an IllegalArgumentException if the query can not be parsed.
+    public QueryPlan.Result query(String query) {
+        return query(BookQuery.parse(query));
+    }
+
+    public QueryPlan.Result query(BookQuery query) {
+        return query.run(library);
+    }
+
+    // one page of the available books, in the order they were added
+    public List<Book> getAvailableBooks(int offset, int limit) {
+        return library.getCatalog().streamAvailableBooks().skip(offset).limit(limit).collect(Collectors.toList());
+    }
+
+    public List<Book> getBorrowedBooks(User user) {
+        return library.getBorrowedBooks(user);
+    }
+
+    public Book getBook(int id) {
+        return library.getCatalog().getBook(id);
+    }
+
+    // false if somebody else got the book first
+    public boolean borrow(User user, Book book) {
+        return library.borrowBook(book, user);
+    }
+
+    // false if the user does not have the book (any more)
+    public boolean returnBook(User user, Book book) {
+        return library.returnBook(book, user);
+    }
+
+    // A basket of books borrowed at once, with what became of each book in the order given.
+    public Map<Book, Library.BatchResult> borrowAll(User user, List<Book> books) {
+        return library.borrowBooks(books, user);
+    }
+
+    public Map<Book, Library.BatchResult> returnAll(User user, List<Book> books) {
+        return library.returnBooks(books, user);
+    }
+
+    public HoldQueues.Result reserve(User user, Book book) {
+        return library.reserveBook(book, user);
+    }
+
+    // Returns the first of the new copies, null if the user is not a librarian. Throws an
+    // IllegalArgumentException if a text is too long, see Library.addBook().
+    public Book addBook(User user, String title, String author, String description, int copies) {
+        if (!user.isLibrarian() || copies < 1) {
+            return null;
+        }
+        return library.addBook(title, author, description, copies);
+    }
+
+    // false if the user is not a librarian, or the book is borrowed or already removed
+    public boolean removeBook(User user, Book book) {
+        return user.isLibrarian() && library.removeBook(book);
+    }
+
+    // Removes the books that are in the library and not borrowed or held, e.g. everything a search
+    // found, with what became of each book. Null if the user is not a librarian.
+    public Map<Book, Library.BatchResult> removeAll(User user, List<Book> books) {
+        return user.isLibrarian() ? library.removeBooks(books) : null;
+    }
+}
@@ -0,0 +1,80 @@
+package com.company;
+
+// Catalog and loan gauges, computed from the catalog every time they are read. The book counts come
+// with every CatalogVersion, so they cost nothing however many books there are.
+public class LibraryStats implements LibraryStatsMBean {
+    private final Library library;
+
+    public LibraryStats(Library library) {
+        this.library = library;
+    }
+
+    @Override
+    public long getBooks() {
+        return library.getCatalog().snapshot().size();
+    }
+
+    @Override
+    public long getAvailableBooks() {
+        return library.getCatalog().snapshot().countAvailable();
+    }
+
+    // counted from the books, which know about their loans without reading the users' loans
+    @Override
+    public long getLoans() {
+        CatalogVersion version = library.getCatalog().snapshot();
+        return version.size() - version.countAvailable();
+    }
+
+    @Override
+    public long getOverdueLoans() {
+        return library.countOverdueBooks();
+    }
+
+    @Override
+    public long getUsers() {
+        return library.getUsers().size();
+    }
+
+    @Override
+    public long getDescriptionIndexBytes() {
+        return library.getDescriptionIndexBytes();
+    }
+
+    @Override
+    public long getDescriptionTerms() {
+        return library.getDescriptionTermCount();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return Metrics.getBytesRead();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return Metrics.getBytesWritten();
+    }
+
+    @Override
+    public long getJournalSequence() {
+        return library.getJournalSequence();
+    }
+
+    // replicas following this library's journal
+    @Override
+    public long getReplicas() {
+        return library.getJournalFollowerCount();
+    }
+
+    // 0 unless this library is a replica
+    @Override
+    public long getReplicationStalenessMillis() {
+        return library.getReplicationStalenessMillis();
+    }
+
+    @Override
+    public String getReport() {
+        return String.join("\n", Metrics.report(this));
+    }
+}
@@ -0,0 +1,29 @@
+package com.company;
+
+public interface LibraryStatsMBean {
+    long getBooks();
+
+    long getAvailableBooks();
+
+    long getLoans();
+
+    long getOverdueLoans();
+
+    long getUsers();
+
+    long getDescriptionIndexBytes();
+
+    long getDescriptionTerms();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getJournalSequence();
+
+    long getReplicas();
+
+    long getReplicationStalenessMillis();
+
+    String getReport();
+}
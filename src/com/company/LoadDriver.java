@@ -0,0 +1,241 @@
+package com.company;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+// Load generator for capacity planning: every thread plays patron sessions back to back, without
+// think time, against a library in a scratch directory through LibraryService. A session logs in a
+// random patron, performs a number of operations drawn from the mix and logs out (which syncs the
+// journal). At the end the throughput and latency percentiles of every operation are printed.
+//
+// The mix gives the relative weight of each operation: search (title, author or description),
+// browse (a page of available books), borrow, return, reserve, and the librarian operations add and
+// remove. Operations that find nothing to do (e.g. return without loans) are not counted.
+//
+// usage: LoadDriver [threads] [seconds] [mix] [books] [patrons] [operations per session]
+//   e.g. LoadDriver 8 30 search=40,browse=20,borrow=15,return=15,reserve=5,add=3,remove=2 100000 10000 10
+public class LoadDriver {
+    private static final String DEFAULT_MIX = "search=40,browse=20,borrow=15,return=15,reserve=5,add=3,remove=2";
+    private static final int PAGE_SIZE = 20;
+
+    private static final String[] WORDS = {
+            "lighthouse", "keeper", "winter", "garden", "river", "shadow", "silver", "north", "storm", "letters",
+            "island", "forest", "summer", "stone", "glacier", "harbour", "secret", "night", "mountain", "city"
+    };
+    private static final String[] AUTHORS = {
+            "Lindgren, Astrid", "Tolkien, J. R. R.", "Orwell, George", "Rowling, J.K.", "Bloch, Joshua",
+            "Lagerlöf, Selma", "Strindberg, August", "Mankell, Henning", "Austen, Jane", "Woolf, Virginia"
+    };
+
+    private final LibraryService service;
+    private final List<String> patrons;
+    private final User librarian;
+    private final String[] operations;
+    private final int[] cumulativeWeights;
+    private final int operationsPerSession;
+
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String mix = args.length > 2 ? args[2] : DEFAULT_MIX;
+        int books = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+        int patrons = args.length > 4 ? Integer.parseInt(args[4]) : 1_000;
+        int operationsPerSession = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+
+        if (!Metrics.ENABLED) {
+            System.out.println("ERROR: Metrics are turned off (library.metrics=false), there would be no latencies to report!");
+            return;
+        }
+
+        Path directory = Files.createTempDirectory("library-load");
+        try {
+            List<String> names = createLibrary(directory, books, patrons);
+            Library library = new Library(directory);
+            try {
+                System.out.printf("%d threads, %d s, %,d books, %,d patrons, %d operations per session, mix %s\n",
+                        threads, seconds, books, patrons, operationsPerSession, mix);
+                new LoadDriver(new LibraryService(library), names, library.getUser("admin"), mix, operationsPerSession)
+                        .run(threads, seconds);
+            } finally {
+                library.shutdown();
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    public LoadDriver(LibraryService service, List<String> patrons, User librarian, String mix, int operationsPerSession) {
+        this.service = service;
+        this.patrons = patrons;
+        this.librarian = librarian;
+        this.operationsPerSession = operationsPerSession;
+
+        String[] entries = mix.split(",");
+        operations = new String[entries.length];
+        cumulativeWeights = new int[entries.length];
+        int total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            String[] entry = entries[i].split("=");
+            operations[i] = entry[0].trim();
+            total += Integer.parseInt(entry[1].trim());
+            cumulativeWeights[i] = total;
+            latencies.put(operations[i], new LatencyHistogram(operations[i]));
+        }
+        latencies.put("login", new LatencyHistogram("login"));
+        latencies.put("logout", new LatencyHistogram("logout"));
+    }
+
+    public void run(int threads, int seconds) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                while (running.get()) {
+                    runSession();
+                }
+            }, "load-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        report((System.nanoTime() - start) / 1e9);
+    }
+
+    private void runSession() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        long start = System.nanoTime();
+        User user = service.login(patrons.get(random.nextInt(patrons.size())));
+        latencies.get("login").record(System.nanoTime() - start);
+
+        for (int i = 0; i < operationsPerSession; i++) {
+            String operation = pickOperation(random);
+            start = System.nanoTime();
+            if (perform(operation, user, random)) {
+                latencies.get(operation).record(System.nanoTime() - start);
+            }
+        }
+
+        start = System.nanoTime();
+        service.logout(user);
+        latencies.get("logout").record(System.nanoTime() - start);
+    }
+
+    private String pickOperation(ThreadLocalRandom random) {
+        int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; ; i++) {
+            if (value < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+    }
+
+    // false if there was nothing to do
+    private boolean perform(String operation, User user, ThreadLocalRandom random) {
+        switch (operation) {
+            case "search": {
+                LibraryService.SearchField field = LibraryService.SearchField.values()[random.nextInt(3)];
+                String query = field == LibraryService.SearchField.AUTHOR ? AUTHORS[random.nextInt(AUTHORS.length)].split(",")[0]
+                        : WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)];
+                service.search(field, query);
+                return true;
+            }
+            case "browse":
+                service.getAvailableBooks(random.nextInt(1000), PAGE_SIZE);
+                return true;
+            case "borrow": {
+                List<Book> page = service.getAvailableBooks(random.nextInt(1000), PAGE_SIZE);
+                return !page.isEmpty() && service.borrow(user, page.get(random.nextInt(page.size())));
+            }
+            case "return": {
+                List<Book> borrowed = service.getBorrowedBooks(user);
+                return !borrowed.isEmpty() && service.returnBook(user, borrowed.get(random.nextInt(borrowed.size())));
+            }
+            case "reserve": {
+                Book book = service.getBook(random.nextInt(1000));
+                return book != null && !book.isAvailable() && service.reserve(user, book) == HoldQueues.Result.QUEUED;
+            }
+            case "add":
+                return service.addBook(librarian, title(random), AUTHORS[random.nextInt(AUTHORS.length)],
+                        description(random), 1 + random.nextInt(2)) != null;
+            case "remove": {
+                List<Book> page = service.getAvailableBooks(random.nextInt(1000), PAGE_SIZE);
+                return !page.isEmpty() && service.removeBook(librarian, page.get(random.nextInt(page.size())));
+            }
+            default:
+                throw new IllegalArgumentException("Unknown operation in the mix: " + operation);
+        }
+    }
+
+    private void report(double seconds) {
+        long total = 0;
+        System.out.printf("%-10s %12s %10s %10s %10s %10s %10s %10s\n",
+                "operation", "count", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+        for (LatencyHistogram histogram : latencies.values()) {
+            total += histogram.getCount();
+            System.out.printf("%-10s %,12d %,10.0f %,10.1f %,10.1f %,10.1f %,10.1f %,10.1f\n", histogram.getName(),
+                    histogram.getCount(), histogram.getCount() / seconds, histogram.getPercentileNanos(50) / 1e3,
+                    histogram.getPercentileNanos(90) / 1e3, histogram.getPercentileNanos(99) / 1e3,
+                    histogram.getPercentileNanos(99.9) / 1e3, histogram.getMaxMicros());
+        }
+        System.out.printf("%-10s %,12d %,10.0f\n", "total", total, total / seconds);
+    }
+
+    // Writes the books and users straight to the data files, much faster than adding them one by one.
+    private static List<String> createLibrary(Path directory, int bookCount, int patronCount) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<Book> books = new ArrayList<>(bookCount);
+        for (int id = 0; id < bookCount; id++) {
+            books.add(new Book(id, title(random), AUTHORS[random.nextInt(AUTHORS.length)], description(random)));
+        }
+        BinaryCodec.saveBooks(directory.resolve("books.dat").toString(), books);
+
+        List<User> users = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < patronCount; i++) {
+            users.add(new User("patron" + i));
+            names.add("patron" + i);
+        }
+        users.add(new Librarian("admin"));
+        UserStore.saveAll(directory.resolve("users.dat"), users);
+        return names;
+    }
+
+    private static String title(ThreadLocalRandom random) {
+        String word = WORDS[random.nextInt(WORDS.length)];
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1) + " " + WORDS[random.nextInt(WORDS.length)];
+    }
+
+    private static String description(ThreadLocalRandom random) {
+        StringBuilder description = new StringBuilder("A book about");
+        for (int i = 0; i < 15; i++) {
+            description.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return description.toString();
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package com.company;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BinaryOperator;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+// Every finished loan as a row of four columns: book id, user id, start and end (epoch seconds).
+// Rows are only ever appended, in memory to growing primitive arrays and on disk as one block per
+// snapshot that has new rows. Reports scan the columns in parallel chunks on the common fork-join
+// pool; rows below the row count never change, so a report works on the arrays as they were when
+// it started.
+//
+// File layout: a sequence of blocks, each the length of the block (int), the journal sequence number
+// of the snapshot it belongs to (long), the names of the users first seen in it (count, then strings),
+// the row count (int), the four columns one after the other and a CRC32 of everything before it in
+// the block (int). At startup only the blocks up to the sequence of the loaded snapshot are read, the
+// rest is cut off since replaying the journal adds those loans again.
+public class LoanHistory {
+    // rows per task of a report, big enough that a task is worth scheduling
+    private static final int MIN_CHUNK_ROWS = 64 * 1024;
+
+    private static final LatencyHistogram SAVE = Metrics.latency("io.saveHistory");
+    private static final LatencyHistogram LOAD = Metrics.latency("io.loadHistory");
+
+    private final Path file;
+
+    private int[] bookIds = new int[1024];
+    private int[] userIds = new int[1024];
+    private long[] starts = new long[1024];
+    private long[] ends = new long[1024];
+    private int size;
+    private int maxBookId = -1;
+
+    // user ids are indexes into userNames
+    private final Map<String, Integer> userIdsByName = new HashMap<>();
+    private final List<String> userNames = new ArrayList<>();
+
+    // what is already in the file
+    private int savedRows;
+    private int savedUsers;
+    private long savedBytes;
+
+    // The columns up to a row count, see columns().
+    public static class Columns {
+        private final int[] bookIds;
+        private final int[] userIds;
+        private final long[] starts;
+        private final long[] ends;
+        private final int size;
+        private final int maxBookId;
+        private final String[] userNames;
+
+        private Columns(LoanHistory history) {
+            bookIds = history.bookIds;
+            userIds = history.userIds;
+            starts = history.starts;
+            ends = history.ends;
+            size = history.size;
+            maxBookId = history.maxBookId;
+            userNames = history.userNames.toArray(new String[0]);
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    // How often one user returned books late.
+    public static class UserLoans {
+        private final String name;
+        private final int loans;
+        private final int overdue;
+
+        UserLoans(String name, int loans, int overdue) {
+            this.name = name;
+            this.loans = loans;
+            this.overdue = overdue;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getLoans() {
+            return loans;
+        }
+
+        public int getOverdue() {
+            return overdue;
+        }
+
+        public double getOverdueRate() {
+            return (double) overdue / loans;
+        }
+    }
+
+    public LoanHistory(Path file) {
+        this.file = file;
+    }
+
+    public synchronized void add(int bookId, String userName, long start, long end) {
+        ensureCapacity(size + 1);
+
+        bookIds[size] = bookId;
+        userIds[size] = userId(userName);
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+        maxBookId = Math.max(maxBookId, bookId);
+    }
+
+    private void ensureCapacity(int rows) {
+        if (rows > bookIds.length) {
+            int capacity = Math.max(rows, bookIds.length * 2);
+            bookIds = Arrays.copyOf(bookIds, capacity);
+            userIds = Arrays.copyOf(userIds, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+    }
+
+    private int userId(String name) {
+        Integer id = userIdsByName.get(name);
+        if (id == null) {
+            id = userNames.size();
+            userIdsByName.put(name, id);
+            userNames.add(name);
+        }
+        return id;
+    }
+
+    // The rows added so far. Cheap, the arrays are shared and not copied.
+    public synchronized Columns columns() {
+        return new Columns(this);
+    }
+
+    // Reads the blocks of the snapshots up to the given journal sequence number.
+    public synchronized void load(long sequence) {
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Metrics.addBytesRead(data.limit());
+
+            while (data.remaining() >= Integer.BYTES) {
+                int blockStart = data.position();
+                int length = data.getInt(blockStart);
+                if (length < 2 * Integer.BYTES + Long.BYTES || length > data.remaining() || !checksumMatches(data, blockStart, length)) {
+                    break; // a block that was being written when the program stopped
+                }
+                data.position(blockStart + Integer.BYTES);
+                if (data.getLong() > sequence) {
+                    break; // written with a snapshot newer than the one in use
+                }
+                readBlock(data);
+                data.position(blockStart + length);
+            }
+
+            savedRows = size;
+            savedUsers = userNames.size();
+            savedBytes = data.position();
+            channel.truncate(savedBytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("ERROR: Could not read the loan history, it starts over from here!");
+        } finally {
+            LOAD.record(System.nanoTime() - start);
+        }
+    }
+
+    private void readBlock(ByteBuffer data) {
+        int newUsers = data.getInt();
+        for (int i = 0; i < newUsers; i++) {
+            byte[] name = new byte[data.getInt()];
+            data.get(name);
+            userId(new String(name, StandardCharsets.UTF_8));
+        }
+
+        int rows = data.getInt();
+        int first = size;
+        ensureCapacity(first + rows);
+        for (int i = 0; i < rows; i++) {
+            bookIds[first + i] = data.getInt();
+            maxBookId = Math.max(maxBookId, bookIds[first + i]);
+        }
+        for (int i = 0; i < rows; i++) {
+            userIds[first + i] = data.getInt();
+        }
+        for (int i = 0; i < rows; i++) {
+            starts[first + i] = data.getLong();
+        }
+        for (int i = 0; i < rows; i++) {
+            ends[first + i] = data.getLong();
+        }
+        size = first + rows;
+    }
+
+    private static boolean checksumMatches(ByteBuffer data, int blockStart, int length) {
+        ByteBuffer contents = data.duplicate();
+        contents.position(blockStart).limit(blockStart + length - Integer.BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        return (int) crc.getValue() == data.getInt(blockStart + length - Integer.BYTES);
+    }
+
+    // Appends the rows of the given columns that are not in the file yet as the block of the snapshot
+    // with the given sequence number. Only called by one thread at a time (the snapshot writer).
+    public boolean save(Columns columns, long sequence) {
+        long start = System.nanoTime();
+        int rows = columns.size - savedRows;
+        int users = columns.userNames.length - savedUsers;
+        if (rows == 0 && users == 0) {
+            return true; // nothing new, no need for an empty block
+        }
+
+        List<byte[]> names = new ArrayList<>(users);
+        int length = Integer.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES + rows * (2 * Integer.BYTES + 2 * Long.BYTES) + Integer.BYTES;
+        for (int i = savedUsers; i < columns.userNames.length; i++) {
+            byte[] name = columns.userNames[i].getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            length += Integer.BYTES + name.length;
+        }
+
+        ByteBuffer block = ByteBuffer.allocate(length);
+        block.putInt(length);
+        block.putLong(sequence);
+        block.putInt(users);
+        for (byte[] name : names) {
+            block.putInt(name.length);
+            block.put(name);
+        }
+        block.putInt(rows);
+        for (int i = savedRows; i < columns.size; i++) {
+            block.putInt(columns.bookIds[i]);
+        }
+        for (int i = savedRows; i < columns.size; i++) {
+            block.putInt(columns.userIds[i]);
+        }
+        for (int i = savedRows; i < columns.size; i++) {
+            block.putLong(columns.starts[i]);
+        }
+        for (int i = savedRows; i < columns.size; i++) {
+            block.putLong(columns.ends[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(block.array(), 0, block.position());
+        block.putInt((int) crc.getValue());
+        block.flip();
+
+        // written over whatever a failed attempt left behind
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = savedBytes;
+            while (block.hasRemaining()) {
+                position += channel.write(block, position);
+            }
+            channel.truncate(position);
+            channel.force(true);
+            Metrics.addBytesWritten(length);
+
+            savedRows = columns.size;
+            savedUsers = columns.userNames.length;
+            savedBytes = position;
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            SAVE.record(System.nanoTime() - start);
+        }
+    }
+
+    // Book ids and how often they were borrowed, most borrowed first.
+    public static List<Map.Entry<Integer, Integer>> mostBorrowedBooks(Columns columns, int limit) {
+        int[] counts = aggregate(columns, true, () -> new int[columns.maxBookId + 1], (counts1, from, to) -> {
+            for (int i = from; i < to; i++) {
+                counts1[columns.bookIds[i]]++;
+            }
+        }, LoanHistory::sum);
+
+        // count in the high half and the inverted id in the low half, so the lowest ids win ties
+        long[] top = new long[0];
+        if (counts != null) {
+            top = IntStream.range(0, counts.length).filter(id -> counts[id] > 0)
+                    .mapToLong(id -> ((long) counts[id] << 32) | (Integer.MAX_VALUE - id))
+                    .sorted().toArray();
+        }
+
+        List<Map.Entry<Integer, Integer>> result = new ArrayList<>();
+        for (int i = top.length - 1; i >= 0 && result.size() < limit; i--) {
+            result.add(Map.entry(Integer.MAX_VALUE - (int) top[i], (int) (top[i] >>> 32)));
+        }
+        return result;
+    }
+
+    public static double averageLoanSeconds(Columns columns) {
+        if (columns.size == 0) {
+            return 0;
+        }
+        long total = IntStream.range(0, chunkCount(columns.size, false)).parallel()
+                .mapToLong(chunk -> {
+                    long sum = 0;
+                    for (int i = chunkStart(columns.size, chunk, false); i < chunkStart(columns.size, chunk + 1, false); i++) {
+                        sum += columns.ends[i] - columns.starts[i];
+                    }
+                    return sum;
+                }).sum();
+        return (double) total / columns.size;
+    }
+
+    // Users with at least minLoans finished loans, highest share of loans kept longer than
+    // loanSeconds first.
+    public static List<UserLoans> overdueRates(Columns columns, long loanSeconds, int minLoans, int limit) {
+        int users = columns.userNames.length;
+        // loans of user u at [2u], of those overdue at [2u + 1]
+        int[] counts = aggregate(columns, true, () -> new int[2 * users], (counts1, from, to) -> {
+            for (int i = from; i < to; i++) {
+                int user = columns.userIds[i];
+                counts1[2 * user]++;
+                if (columns.ends[i] - columns.starts[i] > loanSeconds) {
+                    counts1[2 * user + 1]++;
+                }
+            }
+        }, LoanHistory::sum);
+
+        List<UserLoans> result = new ArrayList<>();
+        for (int user = 0; counts != null && user < users; user++) {
+            if (counts[2 * user] >= minLoans) {
+                result.add(new UserLoans(columns.userNames[user], counts[2 * user], counts[2 * user + 1]));
+            }
+        }
+        result.sort((a, b) -> a.getOverdueRate() != b.getOverdueRate()
+                ? Double.compare(b.getOverdueRate(), a.getOverdueRate()) : Integer.compare(b.loans, a.loans));
+        return result.subList(0, Math.min(limit, result.size()));
+    }
+
+    // Number of loans started in each hour of the day in the given time zone.
+    public static long[] loansPerHour(Columns columns, ZoneId zone) {
+        ZoneRules rules = zone.getRules();
+        long[] hours = aggregate(columns, false, () -> new long[24], (counts, from, to) -> {
+            // loans are mostly in time order, so the offset only has to be looked up again at a transition
+            long validFrom = Long.MAX_VALUE;
+            long validUntil = Long.MIN_VALUE;
+            int offset = 0;
+            for (int i = from; i < to; i++) {
+                long start = columns.starts[i];
+                if (start < validFrom || start >= validUntil) {
+                    Instant instant = Instant.ofEpochSecond(start);
+                    offset = rules.getOffset(instant).getTotalSeconds();
+                    ZoneOffsetTransition previous = rules.previousTransition(instant.plusSeconds(1));
+                    ZoneOffsetTransition next = rules.nextTransition(instant);
+                    validFrom = previous != null ? previous.toEpochSecond() : Long.MIN_VALUE;
+                    validUntil = next != null ? next.toEpochSecond() : Long.MAX_VALUE;
+                }
+                counts[(int) Math.floorMod(start + offset, 86_400L) / 3600]++;
+            }
+        }, (a, b) -> {
+            for (int i = 0; i < a.length; i++) {
+                a[i] += b[i];
+            }
+            return a;
+        });
+        return hours != null ? hours : new long[24];
+    }
+
+    private interface ChunkAggregator<T> {
+        void add(T result, int from, int to);
+    }
+
+    private interface Factory<T> {
+        T create();
+    }
+
+    // Runs the aggregator over the rows in parallel chunks and combines the chunk results, null if
+    // there are no rows. Reports with a large result per chunk use one chunk per worker thread.
+    private static <T> T aggregate(Columns columns, boolean largeResult, Factory<T> factory,
+                                   ChunkAggregator<T> aggregator, BinaryOperator<T> combiner) {
+        int chunks = chunkCount(columns.size, largeResult);
+        IntFunction<T> chunkResult = chunk -> {
+            T result = factory.create();
+            aggregator.add(result, chunkStart(columns.size, chunk, largeResult), chunkStart(columns.size, chunk + 1, largeResult));
+            return result;
+        };
+        return IntStream.range(0, chunks).parallel().mapToObj(chunkResult).reduce(combiner).orElse(null);
+    }
+
+    private static int chunkCount(int rows, boolean largeResult) {
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        int chunks = largeResult ? parallelism : parallelism * 4;
+        return Math.max(1, Math.min(chunks, rows / MIN_CHUNK_ROWS));
+    }
+
+    private static int chunkStart(int rows, int chunk, boolean largeResult) {
+        return (int) ((long) rows * chunk / chunkCount(rows, largeResult));
+    }
+
+    private static int[] sum(int[] a, int[] b) {
+        for (int i = 0; i < a.length; i++) {
+            a[i] += b[i];
+        }
+        return a;
+    }
+}
@@ -1,8 +1,24 @@
 package com.company;
 
+import java.nio.file.Path;
+
 public class Main {
 
-    public static void main(String[] args) {
-	    new Library().startProgram();
+    // --server <port> [--replication <port>]: serves terminals, and ships the journal to replicas
+    // --replica <data directory> <primary's replication port> <port>: serves terminals from a read-only replica
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 2 && args[0].equals("--server")) {
+            Library library = new Library();
+            if (args.length == 4 && args[2].equals("--replication")) {
+                new ReplicationServer(library, Integer.parseInt(args[3])).start();
+            }
+            new LibraryServer(library, Integer.parseInt(args[1])).start();
+        } else if (args.length == 4 && args[0].equals("--replica")) {
+            Replica replica = new Replica(Path.of(args[1]), Integer.parseInt(args[2]));
+            replica.start();
+            new LibraryServer(replica::getLibrary, Integer.parseInt(args[3])).start();
+        } else {
+            new Library().startProgram();
+        }
     }
 }
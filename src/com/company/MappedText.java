@@ -0,0 +1,23 @@
+package com.company;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// UTF-8 text that stays in a memory-mapped data file until it is needed.
+public class MappedText {
+    private final ByteBuffer source;
+    private final int offset;
+    private final int length;
+
+    public MappedText(ByteBuffer source, int offset, int length) {
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public String decode() {
+        byte[] bytes = new byte[length];
+        source.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
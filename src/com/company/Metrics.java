@@ -0,0 +1,134 @@
+package com.company;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Process-wide latency histograms and I/O counters. Everything is registered as an MBean under
+// "com.company" (see jconsole) and can also be dumped to a text file at a fixed interval. Callers
+// look up their histograms once and keep them, so that recording is just a few atomic adds.
+public class Metrics {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("library.metrics", "true"));
+
+    private static final String DOMAIN = "com.company";
+
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private static final LongAdder bytesRead = new LongAdder();
+    private static final LongAdder bytesWritten = new LongAdder();
+
+    private static ScheduledExecutorService dumper;
+
+    public static LatencyHistogram latency(String name) {
+        return histograms.computeIfAbsent(name, key -> {
+            LatencyHistogram histogram = new LatencyHistogram(key);
+            register(histogram, "type=Latency,name=" + key);
+            return histogram;
+        });
+    }
+
+    public static void addBytesRead(long bytes) {
+        if (ENABLED) {
+            bytesRead.add(bytes);
+        }
+    }
+
+    public static void addBytesWritten(long bytes) {
+        if (ENABLED) {
+            bytesWritten.add(bytes);
+        }
+    }
+
+    public static long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public static long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    // Registers the catalog and loan gauges of the library and, if intervalSeconds is above zero,
+    // rewrites the dump file that often.
+    public static synchronized void registerLibrary(Library library, Path dumpFile, long intervalSeconds) {
+        if (!ENABLED) {
+            return;
+        }
+
+        LibraryStats stats = new LibraryStats(library);
+        register(stats, "type=Library");
+
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+        if (intervalSeconds > 0) {
+            dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleWithFixedDelay(() -> dump(stats, dumpFile), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void register(Object mbean, String properties) {
+        if (!ENABLED) {
+            return;
+        }
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name); // a newer library replaces the old one
+            }
+            server.registerMBean(mbean, name);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static List<String> report(LibraryStats stats) {
+        List<String> lines = new ArrayList<>();
+        lines.add("Library metrics at " + LocalDateTime.now());
+        lines.add(String.format("books %d, available %d, loans %d, overdue %d, users %d",
+                stats.getBooks(), stats.getAvailableBooks(), stats.getLoans(), stats.getOverdueLoans(), stats.getUsers()));
+        lines.add(String.format("bytes read %d, bytes written %d", getBytesRead(), getBytesWritten()));
+        lines.add(String.format("description index %d terms, %d bytes", stats.getDescriptionTerms(), stats.getDescriptionIndexBytes()));
+        lines.add(String.format("journal record %d, replicas %d, replication staleness %d ms",
+                stats.getJournalSequence(), stats.getReplicas(), stats.getReplicationStalenessMillis()));
+        lines.add(String.format("%-24s %10s %12s %12s %12s %12s %12s",
+                "operation", "count", "mean (us)", "p50 (us)", "p99 (us)", "p99.9 (us)", "max (us)"));
+        for (LatencyHistogram histogram : new TreeMap<>(histograms).values()) {
+            if (histogram.getCount() > 0) {
+                lines.add(String.format("%-24s %10d %12.1f %12.1f %12.1f %12.1f %12.1f", histogram.getName(),
+                        histogram.getCount(), histogram.getMeanMicros(), histogram.getMedianMicros(),
+                        histogram.getP99Micros(), histogram.getP999Micros(), histogram.getMaxMicros()));
+            }
+        }
+        return lines;
+    }
+
+    // written next to the file and renamed, so a reader never sees half a report
+    private static void dump(LibraryStats stats, Path dumpFile) {
+        try {
+            Path temporaryFile = Path.of(dumpFile + ".tmp");
+            Files.write(temporaryFile, report(stats));
+            Files.move(temporaryFile, dumpFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.company;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+// The loans ordered by due time, so that the loans that are overdue, or will be within some time,
+// are found without looking at any other loan. A loan is added when a book is borrowed and taken out
+// again when it is returned. A notifier thread sleeps until the next loan falls due and then hands
+// every loan that just became overdue to the listeners.
+//
+// A loan is overdue once its due time (loan time + loan duration, in epoch seconds) has passed. The
+// same goes for holds, see HoldQueues: a tracker for holds has the hold duration as loan duration.
+public class OverdueTracker {
+    private final long loanSeconds;
+    private final boolean holds;
+
+    private final ConcurrentSkipListSet<Due> loans = new ConcurrentSkipListSet<>();
+    private final List<Consumer<Book>> listeners = new CopyOnWriteArrayList<>();
+
+    // loans due before this have been handed to the listeners, guarded by this
+    private long notifiedUntil;
+    // when the notifier wakes up next, guarded by this
+    private long wakeUpMillis = Long.MAX_VALUE;
+    private Thread notifier;
+    private volatile boolean stopped;
+
+    private static class Due implements Comparable<Due> {
+        final long epochSecond;
+        final int bookId;
+        final Book book; // null for the bounds of a range
+
+        Due(long epochSecond, int bookId, Book book) {
+            this.epochSecond = epochSecond;
+            this.bookId = bookId;
+            this.book = book;
+        }
+
+        // the first possible entry at the given time
+        static Due bound(long epochSecond) {
+            return new Due(epochSecond, Integer.MIN_VALUE, null);
+        }
+
+        @Override
+        public int compareTo(Due other) {
+            return epochSecond != other.epochSecond
+                    ? Long.compare(epochSecond, other.epochSecond) : Integer.compare(bookId, other.bookId);
+        }
+    }
+
+    public OverdueTracker(long loanSeconds) {
+        this(loanSeconds, false);
+    }
+
+    public OverdueTracker(long loanSeconds, boolean holds) {
+        this.loanSeconds = loanSeconds;
+        this.holds = holds;
+    }
+
+    public void add(Book book, long loanEpochSecond) {
+        long dueEpochSecond = loanEpochSecond + loanSeconds;
+        loans.add(new Due(dueEpochSecond, book.getId(), book));
+
+        synchronized (this) {
+            // it is overdue one second after it is due
+            if ((dueEpochSecond + 1) * 1000 < wakeUpMillis) {
+                notifyAll();
+            }
+        }
+    }
+
+    public void remove(Book book, long loanEpochSecond) {
+        loans.remove(new Due(loanEpochSecond + loanSeconds, book.getId(), book));
+    }
+
+    // loans overdue at the given time, longest overdue first
+    public List<Book> getOverdue(long nowEpochSecond) {
+        return books(loans.headSet(Due.bound(nowEpochSecond)));
+    }
+
+    public int countOverdue(long nowEpochSecond) {
+        return loans.headSet(Due.bound(nowEpochSecond)).size();
+    }
+
+    // loans not overdue at the given time that will be within the given number of seconds, soonest first
+    public List<Book> getDueWithin(long nowEpochSecond, long seconds) {
+        return books(loans.subSet(Due.bound(nowEpochSecond), Due.bound(nowEpochSecond + seconds)));
+    }
+
+    public long getDueEpochSecond(Book book) {
+        return book.getLoanEpochSecond() + loanSeconds;
+    }
+
+    // all loans, soonest due first
+    public List<Book> getAll() {
+        return books(loans);
+    }
+
+    // skips loans that ended while they were being added
+    private List<Book> books(Iterable<Due> range) {
+        List<Book> books = new ArrayList<>();
+        for (Due due : range) {
+            if (!due.book.isAvailable() && due.book.isHeld() == holds && getDueEpochSecond(due.book) == due.epochSecond) {
+                books.add(due.book);
+            }
+        }
+        return books;
+    }
+
+    public void addListener(Consumer<Book> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Book> listener) {
+        listeners.remove(listener);
+    }
+
+    // Starts notifying the listeners of loans that become overdue from now on.
+    public synchronized void start() {
+        notifiedUntil = Instant.now().getEpochSecond();
+        notifier = new Thread(this::notifyOverdueLoans, holds ? "holds" : "overdue");
+        notifier.setDaemon(true);
+        notifier.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        if (notifier != null) {
+            notifier.interrupt();
+        }
+    }
+
+    private void notifyOverdueLoans() {
+        while (!stopped) {
+            List<Book> overdue;
+            synchronized (this) {
+                long now = Instant.now().getEpochSecond();
+                overdue = books(loans.subSet(Due.bound(notifiedUntil), Due.bound(now)));
+                notifiedUntil = now;
+
+                if (overdue.isEmpty()) {
+                    Due next = loans.ceiling(Due.bound(now));
+                    wakeUpMillis = next != null ? (next.epochSecond + 1) * 1000 : Long.MAX_VALUE;
+                    try {
+                        long waitMillis = wakeUpMillis - System.currentTimeMillis();
+                        if (waitMillis > 0) {
+                            wait(wakeUpMillis == Long.MAX_VALUE ? 0 : waitMillis);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    } finally {
+                        wakeUpMillis = Long.MAX_VALUE;
+                    }
+                    continue;
+                }
+            }
+
+            // outside the lock, so that a slow listener does not hold up borrowing
+            for (Book book : overdue) {
+                for (Consumer<Book> listener : listeners) {
+                    try {
+                        listener.accept(book);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.company;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Shows a listing one page at a time. Only the rows of the visible page are taken from the source,
+// which is asked for a fresh stream on every page. Listings of books page through one CatalogVersion,
+// so rows do not move between pages while other sessions borrow and return books.
+// The rows are formatted into a reused buffer and the page is written to the terminal in one call.
+public class Pager<T> {
+    public static final int PAGE_SIZE = Integer.getInteger("library.pageSize", 20);
+
+    private final Supplier<Stream<T>> source;
+    private final BiConsumer<StringBuilder, T> rowFormatter;
+    private final boolean numbered;
+
+    private final StringBuilder buffer = new StringBuilder(PAGE_SIZE * 80);
+
+    private int offset;
+    private List<T> page = List.of();
+    private boolean hasNextPage;
+
+    public Pager(Supplier<Stream<T>> source, boolean numbered, BiConsumer<StringBuilder, T> rowFormatter) {
+        this.source = source;
+        this.numbered = numbered;
+        this.rowFormatter = rowFormatter;
+    }
+
+    // Prints the current page and returns false if there was nothing to print.
+    public boolean printPage(PrintStream out) {
+        // one row more than is shown tells whether there is a next page
+        List<T> rows = source.get().skip(offset).limit(PAGE_SIZE + 1L).collect(Collectors.toList());
+        hasNextPage = rows.size() > PAGE_SIZE;
+        page = hasNextPage ? rows.subList(0, PAGE_SIZE) : rows;
+
+        buffer.setLength(0);
+        for (int i = 0; i < page.size(); i++) {
+            if (numbered) {
+                buffer.append(offset + i + 1).append(". ");
+            }
+            rowFormatter.accept(buffer, page.get(i));
+            buffer.append('\n');
+        }
+        if (hasNextPage || offset > 0) {
+            buffer.append("-- Page ").append(offset / PAGE_SIZE + 1).append(", rows ")
+                    .append(offset + 1).append('-').append(offset + page.size()).append(" --\n");
+        }
+        out.append(buffer);
+
+        return !page.isEmpty();
+    }
+
+    public boolean hasNextPage() {
+        return hasNextPage;
+    }
+
+    public boolean hasPreviousPage() {
+        return offset > 0;
+    }
+
+    public boolean nextPage() {
+        if (!hasNextPage) {
+            return false;
+        }
+        offset += PAGE_SIZE;
+        return true;
+    }
+
+    public boolean previousPage() {
+        if (offset == 0) {
+            return false;
+        }
+        offset = Math.max(0, offset - PAGE_SIZE);
+        return true;
+    }
+
+    // Returns the row at the zero-based index, or null if there is none. Rows on the visible page are
+    // returned as they were shown, other rows are looked up in the source.
+    public T get(int index) {
+        if (index < 0) {
+            return null;
+        }
+        if (index >= offset && index < offset + page.size()) {
+            return page.get(index - offset);
+        }
+        return source.get().skip(index).findFirst().orElse(null);
+    }
+}
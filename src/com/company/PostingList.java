@@ -0,0 +1,33 @@
+package com.company;
+
+import java.util.Arrays;
+
+// Sorted list of item ids for the search indexes. Ids must be appended in increasing order.
+public class PostingList {
+    int[] ids = new int[4];
+    int size;
+
+    void append(int id) {
+        if (size > 0 && ids[size - 1] == id) {
+            return; // e.g. a trigram or word that occurs more than once in the same key
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        ids[size++] = id;
+    }
+
+    boolean remove(int id) {
+        int index = Arrays.binarySearch(ids, 0, size, id);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+        size--;
+        return true;
+    }
+
+    boolean contains(int id) {
+        return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+}
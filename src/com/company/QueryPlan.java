@@ -0,0 +1,222 @@
+package com.company;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// How a BookQuery is run. Of the conditions that must all hold, the planner asks each where its books
+// can be found (an index, the loans of a user, the overdue loans, the available books) and how many
+// there are at most, and starts from the smallest; without any, it goes through every book of the
+// current catalog version. The books are then streamed through the other conditions, cheapest
+// first, and a LIMIT stops the stream as soon as enough books matched, so a full scan for
+// "available LIMIT 10" only looks at the first few books.
+//
+// The conditions are tested against the books as they are at that moment, so a book borrowed while
+// the query runs may or may not be found.
+public class QueryPlan {
+    private static final LatencyHistogram QUERY = Metrics.latency("query.run");
+
+    private static final Comparator<Book> BY_ID = Comparator.comparingInt(Book::getId);
+
+    // what the conditions are compiled against, the same for every condition of a query
+    static class Context {
+        final Library library;
+        final CatalogVersion version;
+        final long nowEpochSecond;
+
+        Context(Library library) {
+            this.library = library;
+            this.version = library.getCatalog().snapshot();
+            this.nowEpochSecond = Instant.now().getEpochSecond();
+        }
+    }
+
+    // Where a query can start. The estimate is an upper bound of the number of books found, and
+    // exact means that every book found matches the condition, which need not be tested again.
+    static class Source {
+        final String description;
+        final int estimate;
+        final boolean exact;
+        private final Supplier<Stream<Book>> books;
+        private final boolean inIdOrder;
+
+        private Source(String description, int estimate, boolean exact, Supplier<Stream<Book>> books, boolean inIdOrder) {
+            this.description = description;
+            this.estimate = estimate;
+            this.exact = exact;
+            this.books = books;
+            this.inIdOrder = inIdOrder;
+        }
+
+        // books in any order and maybe more than once, they are sorted before they are used
+        Source(String description, int estimate, boolean exact, Supplier<Stream<Book>> books) {
+            this(description, estimate, exact, books, false);
+        }
+
+        // a lazy stream in the order the books were added, nothing is read before it is needed
+        static Source inIdOrder(String description, int estimate, boolean exact, Supplier<Stream<Book>> books) {
+            return new Source(description, estimate, exact, books, true);
+        }
+
+        static Source union(List<Source> sources) {
+            String description = sources.stream().map(source -> source.description).collect(Collectors.joining(" + "));
+            long estimate = sources.stream().mapToLong(source -> source.estimate).sum();
+            boolean exact = sources.stream().allMatch(source -> source.exact);
+            return new Source(description, (int) Math.min(estimate, Integer.MAX_VALUE), exact,
+                    () -> sources.stream().flatMap(source -> source.books.get()));
+        }
+
+        Source inexact() {
+            return new Source(description, estimate, false, books, inIdOrder);
+        }
+
+        Stream<Book> stream() {
+            return inIdOrder ? books.get() : books.get().sorted(BY_ID).distinct();
+        }
+    }
+
+    public static class Result {
+        private final QueryPlan plan;
+        private final List<Book> books;
+        private final int examined;
+        private final long runNanos;
+
+        Result(QueryPlan plan, List<Book> books, int examined, long runNanos) {
+            this.plan = plan;
+            this.books = books;
+            this.examined = examined;
+            this.runNanos = runNanos;
+        }
+
+        public List<Book> getBooks() {
+            return books;
+        }
+
+        public QueryPlan getPlan() {
+            return plan;
+        }
+
+        // books the plan started from that were tested against the conditions
+        public int getExamined() {
+            return examined;
+        }
+
+        public long getRunNanos() {
+            return runNanos;
+        }
+
+        // the plan, followed by what running it took
+        public String report() {
+            return plan.describe() + String.format("\nTime:   planned in %.3f ms, ran in %.3f ms, %d books examined, %d found",
+                    plan.planNanos / 1e6, runNanos / 1e6, examined, books.size());
+        }
+    }
+
+    private final BookQuery query;
+    private final Source source;
+    private final List<Source> candidates;
+    private final List<BookQuery.Condition> filters;
+    private final Predicate<Book> predicate;
+    private final long planNanos;
+
+    private QueryPlan(BookQuery query, Source source, List<Source> candidates, List<BookQuery.Condition> filters,
+                      Predicate<Book> predicate, long planNanos) {
+        this.query = query;
+        this.source = source;
+        this.candidates = candidates;
+        this.filters = filters;
+        this.predicate = predicate;
+        this.planNanos = planNanos;
+    }
+
+    static QueryPlan plan(BookQuery query, Library library) {
+        long start = System.nanoTime();
+        Context context = new Context(library);
+
+        List<BookQuery.Condition> conditions = query.getCondition().conjuncts();
+        List<Source> candidates = new ArrayList<>();
+        Source scan = Source.inIdOrder("all books", context.version.size(), false, context.version::stream);
+        Source best = scan;
+        BookQuery.Condition bestCondition = null;
+        for (BookQuery.Condition condition : conditions) {
+            Source source = condition.source(context);
+            if (source != null) {
+                candidates.add(source);
+                if (source.estimate < best.estimate || (source.estimate == best.estimate && bestCondition == null)) {
+                    best = source;
+                    bestCondition = condition;
+                }
+            }
+        }
+        candidates.add(scan);
+
+        List<BookQuery.Condition> filters = new ArrayList<>(conditions);
+        if (best.exact) {
+            filters.remove(bestCondition);
+        }
+        filters = cheapestFirst(filters);
+
+        Predicate<Book> predicate = book -> true;
+        for (BookQuery.Condition filter : filters) {
+            predicate = predicate.and(filter.compile(context));
+        }
+
+        return new QueryPlan(query, best, candidates, filters, predicate, System.nanoTime() - start);
+    }
+
+    static List<BookQuery.Condition> cheapestFirst(List<BookQuery.Condition> conditions) {
+        List<BookQuery.Condition> sorted = new ArrayList<>(conditions);
+        sorted.sort(Comparator.comparingInt(BookQuery.Condition::cost));
+        return sorted;
+    }
+
+    public Result run() {
+        long start = System.nanoTime();
+        int[] examined = new int[1];
+        List<Book> books = source.stream()
+                .peek(book -> examined[0]++)
+                .filter(predicate)
+                .limit(query.getLimit())
+                .collect(Collectors.toList());
+        long runNanos = System.nanoTime() - start;
+        QUERY.record(planNanos + runNanos);
+        return new Result(this, books, examined[0], runNanos);
+    }
+
+    public BookQuery getQuery() {
+        return query;
+    }
+
+    public long getPlanNanos() {
+        return planNanos;
+    }
+
+    public String describe() {
+        StringBuilder text = new StringBuilder();
+        text.append("Query:  ").append(query.getCondition().conjuncts().isEmpty() ? query + " (every book)" : query);
+        text.append("\nStart:  ").append(source.description).append(", at most ").append(source.estimate)
+                .append(source.estimate == 1 ? " book" : " books");
+        if (candidates.size() > 1) {
+            text.append("\n        (of ").append(candidates.stream()
+                    .map(candidate -> candidate.description + ": " + candidate.estimate)
+                    .collect(Collectors.joining(", "))).append(")");
+        }
+        if (!filters.isEmpty()) {
+            text.append("\nFilter: ").append(filters.stream().map(this::describe).collect(Collectors.joining(", then ")));
+        }
+        if (query.getLimit() != BookQuery.NO_LIMIT) {
+            text.append("\nLimit:  ").append(query.getLimit()).append(", stops as soon as that many books are found");
+        }
+        return text.toString();
+    }
+
+    private String describe(BookQuery.Condition condition) {
+        String text = condition.toString();
+        return text.contains(" OR ") ? "(" + text + ")" : text;
+    }
+}
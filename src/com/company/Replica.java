@@ -0,0 +1,222 @@
+package com.company;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+// A read-only copy of the primary library for searching and browsing, kept up to date from the
+// primary's journal (see ReplicationServer). It has a data directory of its own, in which it journals
+// every record it applies under the primary's sequence number, so after a restart it only needs the
+// records it missed. Only if the primary no longer has those (or on the first start) does it get a
+// snapshot, which replaces everything in the directory.
+//
+// replication.lag is the time from a commit on the primary until the replica has applied it. How
+// old the replica's state may be is Library.getReplicationStalenessMillis().
+public class Replica {
+    private static final LatencyHistogram LAG = Metrics.latency("replication.lag");
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final Path dataDirectory;
+    private final int primaryPort;
+
+    private volatile Library library;
+    private volatile Socket socket;
+    private volatile boolean stopped;
+    private final CountDownLatch caughtUp = new CountDownLatch(1);
+    // the records of a batch whose end has not arrived yet, they are applied together once it has
+    private final List<Journal.Record> batch = new ArrayList<>();
+
+    public Replica(Path dataDirectory, int primaryPort) {
+        this.dataDirectory = dataDirectory;
+        this.primaryPort = primaryPort;
+    }
+
+    // Opens the library in the data directory, if there is one yet, and follows the primary on a
+    // thread of its own. Returns once the replica has caught up with the primary for the first time.
+    public void start() throws IOException, InterruptedException {
+        Files.createDirectories(dataDirectory);
+        if (Library.hasDataFiles(dataDirectory)) {
+            library = new Library(dataDirectory, true);
+        }
+
+        Thread follower = new Thread(this::followPrimary, "replica");
+        follower.setDaemon(true);
+        follower.start();
+        caughtUp.await();
+    }
+
+    // the library is replaced when the replica has to start over from a snapshot
+    public Library getLibrary() {
+        return library;
+    }
+
+    public void stop() {
+        stopped = true;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (library != null) {
+            library.shutdown();
+        }
+    }
+
+    private void followPrimary() {
+        boolean reported = false;
+        while (!stopped) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), primaryPort)) {
+                this.socket = socket;
+                reported = false;
+                follow(socket);
+            } catch (IOException e) {
+                // once until the primary is back, not on every attempt
+                if (!stopped && !reported) {
+                    System.out.println("ERROR: Lost the connection to the primary library (" + e.getMessage() + "), trying again...");
+                    reported = true;
+                }
+            }
+
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        out.writeLong(library != null ? library.getJournalSequence() : -1);
+        out.flush();
+        batch.clear(); // sent again from the start
+
+        while (true) {
+            byte type = in.readByte();
+            switch (type) {
+                case ReplicationServer.SNAPSHOT:
+                    loadSnapshot(in);
+                    break;
+                case ReplicationServer.RECORDS: {
+                    long commitMillis = in.readLong();
+                    byte[] records = new byte[in.readInt()];
+                    in.readFully(records);
+                    apply(records);
+                    LAG.record((System.currentTimeMillis() - commitMillis) * 1_000_000);
+                    upToDate(commitMillis);
+                    break;
+                }
+                case ReplicationServer.HEARTBEAT: {
+                    long sequence = in.readLong();
+                    long epochMillis = in.readLong();
+                    if (library.getJournalSequence() >= sequence) {
+                        upToDate(epochMillis);
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown replication message " + type);
+            }
+        }
+    }
+
+    private void upToDate(long asOfMillis) {
+        library.markReplicated(asOfMillis);
+        caughtUp.countDown();
+    }
+
+    // Records the replica already has are skipped, e.g. those appended on the primary while its
+    // snapshot was taken. A gap means something went wrong, the replica reconnects and starts over
+    // from its last record. A batch can arrive in several commits and is only applied once it is
+    // complete, as on the primary after a crash.
+    private void apply(byte[] bytes) throws IOException {
+        long sequence = batch.isEmpty() ? library.getJournalSequence() : batch.get(batch.size() - 1).getSequence();
+        List<Journal.Record> records = new ArrayList<>();
+        Journal.readRecords(ByteBuffer.wrap(bytes), records::add);
+        List<Journal.Record> newRecords = new ArrayList<>(records.size());
+        for (Journal.Record record : records) {
+            if (record.getSequence() <= sequence) {
+                continue;
+            }
+            if (record.getSequence() != sequence + 1) {
+                throw new IOException("Journal record " + (sequence + 1) + " is missing, got " + record.getSequence());
+            }
+            sequence++;
+            if (record.getType() == Journal.BATCH_BEGIN || !batch.isEmpty()) {
+                batch.add(record);
+                if (record.getType() == Journal.BATCH_END) {
+                    newRecords.addAll(batch);
+                    batch.clear();
+                }
+            } else {
+                newRecords.add(record);
+            }
+        }
+        library.applyReplicated(newRecords);
+    }
+
+    private void loadSnapshot(DataInputStream in) throws IOException {
+        long sequence = in.readLong();
+        if (library != null) {
+            System.out.println("ERROR: The primary library no longer has the records this replica is missing, starting over from a snapshot!");
+            library.shutdown();
+        }
+
+        Library.deleteDataFiles(dataDirectory);
+        int files = in.readInt();
+        for (int i = 0; i < files; i++) {
+            Path file = dataDirectory.resolve(Path.of(in.readUTF()).getFileName());
+            long length = in.readLong();
+            Files.copy(limit(in, length), file);
+        }
+
+        library = new Library(dataDirectory, true);
+        System.out.println("MESSAGE: Loaded a snapshot of the primary library at journal record " + sequence);
+    }
+
+    // the next length bytes of the stream, without closing it
+    private static InputStream limit(DataInputStream in, long length) {
+        return new InputStream() {
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining == 0) {
+                    return -1;
+                }
+                remaining--;
+                return in.readUnsignedByte();
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int count) throws IOException {
+                if (remaining == 0) {
+                    return -1;
+                }
+                int read = in.read(bytes, offset, (int) Math.min(count, remaining));
+                if (read < 0) {
+                    throw new IOException("The snapshot ended early");
+                }
+                remaining -= read;
+                return read;
+            }
+        };
+    }
+}
@@ -0,0 +1,167 @@
+package com.company;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Ships the journal of the primary library to read-only replicas (see Replica) over local TCP
+// sockets, any number of them. A replica connects and sends the sequence number of the last record it
+// has; it gets the records after that from the journal files, or first a snapshot if the journal no
+// longer has them, and from then on every commit as it happens.
+//
+// Messages from the primary, each starting with its type (byte):
+//   SNAPSHOT:  sequence (long), number of files (int), then per file its name (UTF) and length (long) and the bytes
+//   RECORDS:   commit time (long, epoch ms), length (int) and the records as in the journal file
+//   HEARTBEAT: sequence of the last committed record (long) and the time (long, epoch ms), when idle
+public class ReplicationServer {
+    public static final byte SNAPSHOT = 1;
+    public static final byte RECORDS = 2;
+    public static final byte HEARTBEAT = 3;
+
+    // a replica that is this many commits behind is disconnected, it catches up from the journal files
+    // when it reconnects instead of holding ever more memory here
+    private static final int MAX_QUEUED_COMMITS = Integer.getInteger("library.replication.maxQueuedCommits", 10_000);
+    public static final long HEARTBEAT_MILLIS = Long.getLong("library.replication.heartbeatMillis", 1000);
+
+    private final Library library;
+    private final int port;
+
+    public ReplicationServer(Library library, int port) {
+        this.library = library;
+        this.port = port;
+    }
+
+    // Accepts replicas on a thread of its own.
+    public void start() {
+        Thread acceptor = new Thread(this::acceptReplicas, "replication");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void acceptReplicas() {
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("Replication listening on port " + port);
+
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread sender = new Thread(() -> serve(socket), "replication-" + socket.getPort());
+                sender.setDaemon(true);
+                sender.start();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // a commit handed to a replica, with when it was made
+    private static class Commit {
+        final long epochMillis;
+        final ByteBuffer records;
+
+        Commit(long epochMillis, ByteBuffer records) {
+            this.epochMillis = epochMillis;
+            this.records = records;
+        }
+    }
+
+    private void serve(Socket socket) {
+        BlockingQueue<Commit> commits = new ArrayBlockingQueue<>(MAX_QUEUED_COMMITS);
+        // called with the journal locked, so it must not wait for the replica
+        Consumer<ByteBuffer> follower = records -> {
+            if (!commits.offer(new Commit(System.currentTimeMillis(), records))) {
+                closeQuietly(socket);
+            }
+        };
+
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            WritableByteChannel channel = Channels.newChannel(out);
+
+            long afterSequence = in.readLong();
+            if (!library.followJournal(afterSequence, follower)) {
+                sendSnapshot(out, follower);
+            }
+            System.out.println("MESSAGE: Replica " + socket.getRemoteSocketAddress() + " connected at journal record " + afterSequence);
+
+            while (!socket.isClosed()) {
+                Commit commit = commits.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                if (commit == null) {
+                    out.writeByte(HEARTBEAT);
+                    out.writeLong(library.getCommittedJournalSequence());
+                    out.writeLong(System.currentTimeMillis());
+                } else {
+                    out.writeByte(RECORDS);
+                    out.writeLong(commit.epochMillis);
+                    out.writeInt(commit.records.remaining());
+                    while (commit.records.hasRemaining()) {
+                        channel.write(commit.records);
+                    }
+                }
+                // more commits waiting go out with the same write
+                if (commits.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // the replica went away or fell too far behind, it reconnects
+        } finally {
+            library.unfollowJournal(follower);
+        }
+        System.out.println("MESSAGE: Replica " + socket.getRemoteSocketAddress() + " disconnected");
+    }
+
+    private void sendSnapshot(DataOutputStream out, Consumer<ByteBuffer> follower) throws IOException {
+        Path directory = Files.createTempDirectory("library-replica");
+        try {
+            long sequence = library.saveReplicaSnapshot(directory, follower);
+            List<Path> files;
+            try (Stream<Path> list = Files.list(directory)) {
+                files = list.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+
+            out.writeByte(SNAPSHOT);
+            out.writeLong(sequence);
+            out.writeInt(files.size());
+            for (Path file : files) {
+                out.writeUTF(file.getFileName().toString());
+                out.writeLong(Files.size(file));
+                Files.copy(file, out);
+            }
+            out.flush();
+        } finally {
+            try (Stream<Path> list = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) list::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
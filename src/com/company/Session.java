@@ -0,0 +1,1006 @@
+package com.company;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+// One patron terminal: the logged in user and the terminal's input and output. All sessions of a
+// library share its catalog.
+//
+// Output is buffered and only flushed when the session waits for input, so a long listing costs a
+// few writes instead of one synchronized, flushing write per line.
+public class Session {
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    // rows of the top lists of the loan statistics, and the number of loans a user needs to be in the late list
+    private static final int STATISTICS_ROWS = 10;
+    private static final int STATISTICS_MIN_LOANS = 3;
+    // a replica warns above the menu when it may be further behind the primary than this
+    private static final long MAX_REPLICA_STALENESS_MILLIS = Long.getLong("library.replica.maxStalenessSeconds", 5) * 1000;
+    // main menu options that change the library, which a replica cannot do
+    private static final Set<Integer> CHANGING_ACTIONS = Set.of(3, 4, 9, 12, 13, 17, 20);
+    // the most books that can be borrowed or returned at once
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private static final LatencyHistogram LOGIN = Metrics.latency("session.login");
+    // indexed by main menu option
+    private static final LatencyHistogram[] MENU_ACTIONS = {
+            Metrics.latency("menu.logout"),
+            Metrics.latency("menu.showAllBooks"),
+            Metrics.latency("menu.showBookDetails"),
+            Metrics.latency("menu.borrowBook"),
+            Metrics.latency("menu.returnBook"),
+            Metrics.latency("menu.showBorrowedBooks"),
+            Metrics.latency("menu.searchBook"),
+            Metrics.latency("menu.showAvailableBooks"),
+            Metrics.latency("menu.sortBooks"),
+            Metrics.latency("menu.reserveBook"),
+            Metrics.latency("menu.showReservations"),
+            Metrics.latency("menu.showAllBorrowedBooks"),
+            Metrics.latency("menu.addNewBook"),
+            Metrics.latency("menu.removeBook"),
+            Metrics.latency("menu.showAllUsers"),
+            Metrics.latency("menu.searchForUser"),
+            Metrics.latency("menu.showBooksBorrowedByAUser"),
+            Metrics.latency("menu.importBooks"),
+            Metrics.latency("menu.showLoanStatistics"),
+            Metrics.latency("menu.showOverdueLoans"),
+            Metrics.latency("menu.removeBooksBySearch"),
+    };
+
+    private final Library library;
+    private final LibraryService service;
+    private final Catalog catalog;
+
+    private final Scanner scanner;
+    private final PrintStream out;
+
+    private User currentUser;
+
+    // loans of the current user that became overdue, and books that became held for the user, while
+    // logged in, shown above the next menu
+    private final Queue<Book> overdueNotices = new ConcurrentLinkedQueue<>();
+    private final Queue<Book> holdNotices = new ConcurrentLinkedQueue<>();
+    private final Consumer<Book> overdueListener = book -> {
+        if (book.getBorrower() == currentUser) {
+            overdueNotices.add(book);
+        }
+    };
+    private final Consumer<Book> holdListener = book -> {
+        if (book.getHolder() == currentUser) {
+            holdNotices.add(book);
+        }
+    };
+
+    // time spent waiting for the user since the current action started, which is not part of its latency
+    private long inputWaitNanos;
+
+    public Session(Library library, InputStream in, OutputStream out, Charset charset) {
+        this.library = library;
+        this.service = new LibraryService(library);
+        this.catalog = library.getCatalog();
+        this.scanner = new Scanner(in, charset);
+        this.out = new PrintStream(new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE), false, charset);
+    }
+
+    public void run() {
+        out.println("Welcome to Library Program");
+        out.println("Please login...");
+        login();
+        out.flush();
+    }
+
+    private String readLine() {
+        out.flush();
+        long start = System.nanoTime();
+        try {
+            if (!scanner.hasNextLine()) {
+                // the terminal was closed or the connection dropped, the Scanner keeps the error to itself
+                IOException error = scanner.ioException();
+                throw new UncheckedIOException(error != null ? error : new EOFException("The terminal went away"));
+            }
+            return scanner.nextLine();
+        } finally {
+            inputWaitNanos += System.nanoTime() - start;
+        }
+    }
+
+    private void login() {
+        while (true) {
+            out.print("Enter username (or empty string to quit): ");
+            String username = readLine();
+            long start = System.nanoTime();
+
+            if (username.isBlank()) {
+                // user wants to quit
+                break;
+            } else if (loggedInSuccessFully(username)) {
+                // logged in successfully
+                showLoginMessages();
+                LOGIN.record(System.nanoTime() - start);
+                library.addOverdueListener(overdueListener);
+                library.addHoldListener(holdListener);
+                try {
+                    showMainMenu();
+                } finally {
+                    library.removeOverdueListener(overdueListener);
+                    library.removeHoldListener(holdListener);
+                    overdueNotices.clear();
+                    holdNotices.clear();
+                }
+            } else {
+                out.println("ERROR! Wrong username. Try again!");
+            }
+        }
+    }
+
+    private boolean loggedInSuccessFully(String username) {
+        return (currentUser = service.login(username)) != null;
+    }
+
+    private void showMainMenu() {
+        while (true) {
+            out.println();
+            for (Book book; (book = overdueNotices.poll()) != null; ) {
+                if (book.getBorrower() == currentUser) {
+                    out.println("MESSAGE: \"" + book.getTitle() + "\" is now overdue!");
+                }
+            }
+            for (Book book; (book = holdNotices.poll()) != null; ) {
+                showHoldMessage(book);
+            }
+            if (library.getReplicationStalenessMillis() > MAX_REPLICA_STALENESS_MILLIS) {
+                out.println("ERROR: This copy of the library has not been updated for "
+                        + library.getReplicationStalenessMillis() / 1000 + " s, books may have been borrowed or returned since!");
+            }
+            out.println("Main menu");
+            out.println("1. Show all books");
+            out.println("2. Show book details");
+            out.println("3. Borrow book");
+            out.println("4. Return book");
+            out.println("5. Show my borrowed books");
+            out.println("6. Search book");
+            out.println("7. Show available books");
+            out.println("8. Sort books");
+            out.println("9. Reserve book");
+            out.println("10. Show my reservations");
+
+            if(currentUser.isLibrarian()) {
+                out.println("11. Show all borrowed books         (Librarian only)");
+                out.println("12. Add new book                    (Librarian only)");
+                out.println("13. Remove book                     (Librarian only)");
+                out.println("14. Show all users                  (Librarian only)");
+                out.println("15. Search for user                 (Librarian only)");
+                out.println("16. Show books borrowed by a user   (Librarian only)");
+                out.println("17. Import books from file          (Librarian only)");
+                out.println("18. Show loan statistics            (Librarian only)");
+                out.println("19. Show overdue loans              (Librarian only)");
+                out.println("20. Remove books by search          (Librarian only)");
+            }
+
+            out.println("0. Logout");
+
+            int choice = getIntegerFromUser("Enter option: ");
+
+            out.println();
+
+            long start = System.nanoTime();
+            inputWaitNanos = 0;
+
+            if (library.isReplica() && CHANGING_ACTIONS.contains(choice)) {
+                out.println("ERROR: This is a read-only copy of the library for searching, borrow and return books at the main terminal!");
+                continue;
+            }
+
+            switch (choice) {
+                case 1:
+                    showAllBooks();
+                    break;
+                case 2:
+                    showBookDetails();
+                    break;
+                case 3:
+                    borrowBook();
+                    break;
+                case 4:
+                    returnBook();
+                    break;
+                case 5:
+                    showBorrowedBooks();
+                    break;
+                case 6:
+                    searchBook();
+                    break;
+                case 7:
+                    showAvailableBooks();
+                    break;
+                case 8:
+                    sortBooks();
+                    break;
+                case 9:
+                    reserveBook();
+                    break;
+                case 10:
+                    showReservations();
+                    break;
+                case 11:
+                    showAllBorrowedBooks();
+                    break;
+                case 12:
+                    addNewBook();
+                    break;
+                case 13:
+                    removeBook();
+                    break;
+                case 14:
+                    showAllUsers();
+                    break;
+                case 15:
+                    searchForUser();
+                    break;
+                case 16:
+                    showBooksBorrowedByAUser();
+                    break;
+                case 17:
+                    importBooks();
+                    break;
+                case 18:
+                    showLoanStatistics();
+                    break;
+                case 19:
+                    showOverdueLoans();
+                    break;
+                case 20:
+                    removeBooksBySearch();
+                    break;
+                case 0: // logout
+                    service.logout(currentUser);
+                    MENU_ACTIONS[0].record(System.nanoTime() - start);
+                    return;
+                default:
+                    out.println("ERROR: Invalid choice! Try again!");
+                    continue;
+            }
+
+            MENU_ACTIONS[choice].record(System.nanoTime() - start - inputWaitNanos);
+        }
+    }
+
+    private void sortBooks() {
+        while (true) {
+            out.println("Sort by:");
+            out.println("1. Title");
+            out.println("2. Author");
+            out.println("0. Exit");
+
+            int value = getIntegerFromUser("Sort by: ");
+
+            if(value == 0) {
+                return;
+            }
+
+            if(value < 0 || value > 2) {
+                out.println("ERROR: Invalid value! Try again!");
+                continue;
+            }
+
+            Collection<Book> books;
+
+            if(value == 1) { // sort by title
+                out.println("Books sorted by title:");
+                books = library.getBooksSortedByTitle();
+            }
+            else { // sort by author
+                out.println("Books sorted by author:");
+                books = library.getBooksSortedByAuthor();
+            }
+
+            printBookList(books::stream);
+
+            break;
+        }
+    }
+
+    private void showBooksBorrowedByAUser() {
+        if (!currentUser.isLibrarian()) {
+            out.println("ERROR: This action can only be performed by librarians!");
+            return;
+        }
+
+        Pager<User> pager = new Pager<>(library.getUsers()::stream, true, (row, user) -> row.append(user.getName()));
+        User user = choose(pager, "Enter index of user: ");
+
+        if (user == null) {
+            return;
+        }
+
+        List<Book> borrowedBooks = library.getBorrowedBooks(user);
+        if(borrowedBooks.isEmpty()) {
+            out.println("This user has not borrowed any books!");
+            return;
+        }
+
+        out.println("Books borrowed by " + user.getName() + ":");
+        for (Book book : borrowedBooks) {
+            out.println(book.getTitle());
+        }
+    }
+
+    private void searchForUser() {
+        if (!currentUser.isLibrarian()) {
+            out.println("ERROR: This action can only be performed by librarians!");
+            return;
+        }
+
+        out.print("Enter search string: ");
+        String searchString = readLine().toLowerCase();
+
+        List<User> matches = library.searchUsers(searchString);
+
+        for (User user : matches) {
+            out.println(user.getName());
+        }
+
+        if(matches.isEmpty()) {
+            out.println("No user with that name exist!");
+        }
+    }
+
+    private void showAllUsers() {
+        if (!currentUser.isLibrarian()) {
+            out.println("ERROR: This action can only be performed by librarians!");
+            return;
+        }
+
+        showPaged(new Pager<>(library.getUsers()::stream, false,
+                (row, user) -> row.append(user.getName()).append(user.isLibrarian() ? " (librarian)" : "")));
+    }
+
+    private void removeBook() {
+        if (!currentUser.isLibrarian()) {
+            out.println("ERROR: This action can only be performed by librarians!");
+            return;
+        }
+
+        Pager<Book> pager = new Pager<>(catalog.snapshot()::streamAvailableBooks, true, StringBuilder::append);
+        Book book = choose(pager, "Enter index of book to remove: ");
+
+        if(book == null) {
+            return;
+        }
+
+        if (!service.removeBook(currentUser, book)) {
+            out.println("ERROR: That book was just borrowed or removed by somebody else!");
+        }
+    }
+
+    // Removes every book whose title or author matches a search, e.g. to retire an outdated edition
+    // or everything from one author. Only exact matches, a typo is no reason to remove a book.
+    private void removeBooksBySearch() {
+        if (!currentUser.isLibrarian()) {
+            out.println("ERROR: This action can only be performed by librarians!");
+            return;
+        }
+
+        out.println("Remove books by:");
+        out.println("1. Title");
+        out.println("2. Author");
+        out.println("0. Exit");
+
+        int choice = getIntegerFromUser("Enter choice: ");
+        if (choice == 0) {
+            return;
+        }
+        if (choice != 1 && choice != 2) {
+            out.println("ERROR: Invalid choice!");
+            return;
+        }
+
+        out.print("Enter search string: ");
+        String searchString = readLine();
+        if (searchString.isBlank()) {
+            out.println("ERROR: The search string cannot be empty!");
+            return;
+        }
+
+        List<Book> matches = choice == 1 ? library.searchByTitle(searchString) : library.searchByAuthor(searchString);
+        if (matches.isEmpty()) {
+            out.println("No results matched your criteria!");
+            return;
+        }
+
+        printBookList(matches::stream);
+        out.print("Remove these " + matches.size() + " books? Borrowed and held books stay (y/n): ");
+        if (!readLine().trim().equalsIgnoreCase("y")) {
+            return;
+        }
+
+        Map<Book, Library.BatchResult> results = service.removeAll(currentUser, matches);
+        long removed = results.values().stream().filter(result -> result == Library.BatchResult.DONE).count();
+        results.values().removeIf(result -> result == Library.BatchResult.DONE);
+        printBatchResults(results, "Removed", "is borrowed or held and was not removed", "has already been removed");
+        out.println("Removed " + removed + " of " + matches.size() + " books.");
+    }
+
+    private void importBooks() {
+        if (!currentUser.isLibrarian()) {
+            out.println("ERROR: This action can only be performed by librarians!");
+            return;
+        }
+
+        out.print("Enter file name (.csv or .tsv): ");
+        String filename = readLine();
+
+        if (!Files.isRegularFile(Path.of(filename))) {
+            out.println("ERROR: No such file!");
+            return;
+        }
+
+        new BookImporter(library, out).importFile(filename);
+    }
+
+    private void addNewBook() {
+        if (!currentUser.isLibrarian()) {
+            out.println("ERROR: This action can only be performed by librarians!");
+            return;
+        }
+
+        out.print("Enter title: ");
+        String title = readLine();
+
+        out.print("Enter author: ");
+        String author = readLine();
+
+        out.print("Enter description: ");
+        String description = readLine();
+
+        int copies = getIntegerFromUser("Enter number of copies: ");
+        if (copies < 1) {
+            out.println("ERROR: There has to be at least one copy!");
+            return;
+        }
+
+        try {
+            service.addBook(currentUser, title, author, description, copies);
+        } catch (IllegalArgumentException e) {
+            out.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    private void showLoanStatistics() {
+        if (!currentUser.isLibrarian()) {
+            out.println("ERROR: This action can only be performed by librarians!");
+            return;
+        }
+
+        LoanHistory.Columns history = library.getLoanHistory();
+        if (history.size() == 0) {
+            out.println("No books have been returned yet!");
+            return;
+        }
+
+        out.println("Returned loans: " + history.size());
+        long averageSeconds = Math.round(LoanHistory.averageLoanSeconds(history));
+        out.printf("Average loan length: %d d %02d:%02d:%02d%n", averageSeconds / 86_400,
+                averageSeconds / 3600 % 24, averageSeconds / 60 % 60, averageSeconds % 60);
+
+        out.println();
+        out.println("Most borrowed books:");
+        for (Map.Entry<Integer, Integer> entry : LoanHistory.mostBorrowedBooks(history, STATISTICS_ROWS)) {
+            Book book = catalog.getBook(entry.getKey());
+            String title = book != null ? '"' + book.getTitle() + "\" by " + book.getAuthor() : "Removed book #" + entry.getKey();
+            out.println("  " + entry.getValue() + "  " + title);
+        }
+
+        out.println();
+        out.println("Highest share of late returns (at least " + STATISTICS_MIN_LOANS + " loans):");
+        for (LoanHistory.UserLoans user : LoanHistory.overdueRates(history, Library.LOAN_DURATION.getSeconds(),
+                STATISTICS_MIN_LOANS, STATISTICS_ROWS)) {
+            out.printf("  %3.0f%%  %s (%d of %d loans)%n", 100 * user.getOverdueRate(), user.getName(),
+                    user.getOverdue(), user.getLoans());
+        }
+
+        out.println();
+        out.println("Loans started per hour of the day:");
+        long[] hours = LoanHistory.loansPerHour(history, ZoneId.systemDefault());
+        long busiest = Arrays.stream(hours).max().orElse(0);
+        for (int hour = 0; hour < hours.length; hour++) {
+            int bar = busiest > 0 ? (int) (40 * hours[hour] / busiest) : 0;
+            out.printf("  %02d:00  %-40s %d%n", hour, "#".repeat(bar), hours[hour]);
+        }
+    }
+
+    private void showOverdueLoans() {
+        if (!currentUser.isLibrarian()) {
+            out.println("ERROR: This action can only be performed by librarians!");
+            return;
+        }
+
+        List<Book> overdue = library.getOverdueBooks();
+        out.println("Overdue loans: " + overdue.size());
+        printLoans(overdue);
+
+        int hours = getIntegerFromUser("Show loans due within how many hours (0 for none)? ");
+        if (hours > 0) {
+            List<Book> dueSoon = library.getBooksDueWithin(Duration.ofHours(hours));
+            out.println("Loans due within " + hours + " hours: " + dueSoon.size());
+            printLoans(dueSoon);
+        }
+    }
+
+    private void printLoans(List<Book> books) {
+        for (Book book : books) {
+            User borrower = book.getBorrower();
+            LocalDateTime loanDate = book.getLoanDate();
+            if (loanDate == null) {
+                continue; // returned in the meantime
+            }
+            out.println("  \"" + book.getTitle() + "\" borrowed by " + (borrower != null ? borrower.getName() : "?")
+                    + ", due " + loanDate.plus(Library.LOAN_DURATION));
+        }
+    }
+
+    // Titles of which every copy is borrowed or held, each listed once (by its first copy).
+    private void reserveBook() {
+        CatalogVersion version = catalog.snapshot();
+        Pager<Book> pager = new Pager<>(() -> version.stream()
+                .filter(book -> !version.isAvailable(book))
+                .filter(book -> {
+                    List<Book> copies = catalog.getCopies(book.getTitleId());
+                    return copies.get(0) == book && copies.stream().noneMatch(Book::isAvailable);
+                }), true, Session::formatBook);
+
+        out.println("Books that are out:");
+        Book book = choose(pager, "Enter index of book to reserve: ");
+        if (book == null) {
+            return;
+        }
+
+        switch (service.reserve(currentUser, book)) {
+            case QUEUED:
+                out.println("You reserved \"" + book.getTitle() + "\", you will get a message when it is held for you.");
+                break;
+            case COPY_AVAILABLE:
+                out.println("ERROR: A copy of that book was just returned, borrow it instead!");
+                break;
+            case ALREADY_HAS_COPY:
+                out.println("ERROR: You already have a copy of that book, or one is held for you!");
+                break;
+            case ALREADY_WAITING:
+                out.println("ERROR: You have already reserved that book!");
+                break;
+        }
+    }
+
+    private void showReservations() {
+        List<Book> heldBooks = library.getBooksHeldFor(currentUser);
+        Map<Integer, Integer> reservations = library.getReservations(currentUser);
+        if (heldBooks.isEmpty() && reservations.isEmpty()) {
+            out.println("You have not reserved any books!");
+            return;
+        }
+
+        for (Book book : heldBooks) {
+            showHoldMessage(book);
+        }
+        for (Map.Entry<Integer, Integer> reservation : reservations.entrySet()) {
+            List<Book> copies = catalog.getCopies(reservation.getKey());
+            if (!copies.isEmpty()) {
+                out.println("\"" + copies.get(0).getTitle() + "\": number " + reservation.getValue() + " in line");
+            }
+        }
+    }
+
+    private void showHoldMessage(Book book) {
+        LocalDateTime holdDate = book.getLoanDate();
+        if (book.getHolder() == currentUser && holdDate != null) {
+            out.println("MESSAGE: \"" + book.getTitle() + "\" is held for you until "
+                    + holdDate.plus(Library.HOLD_DURATION) + ", borrow it before then!");
+        }
+    }
+
+    private void showAllBorrowedBooks() {
+        if (!currentUser.isLibrarian()) {
+            out.println("ERROR: This action can only be performed by librarians!");
+            return;
+        }
+
+        // the loans of a user are only read when the page showing them is printed
+        Supplier<Stream<Map.Entry<User, Book>>> loans = () -> library.getUsers().stream()
+                .flatMap(user -> library.getBorrowedBooks(user).stream().map(book -> Map.entry(user, book)));
+
+        showPaged(new Pager<>(loans, false, (row, loan) -> row.append('"').append(loan.getValue().getTitle())
+                .append("\" borrowed by ").append(loan.getKey().getName())));
+    }
+
+    private void showAvailableBooks() {
+        out.println("Books in library:");
+        printBookList(catalog.snapshot()::streamAvailableBooks);
+    }
+
+    private void returnBook() {
+        if (!currentUser.hasBorrowedBooks()) {
+            out.println("You have not borrowed any books!");
+            return;
+        }
+
+        while (true) {
+            List<Book> borrowedBooks = catalog.getBorrowedBooks(currentUser);
+
+            out.println("Your borrowed books:");
+            for (int i = 0; i < borrowedBooks.size(); i++) {
+                out.println((i + 1) + ". " + borrowedBooks.get(i).getTitle());
+            }
+            out.println("0. Exit");
+
+            out.print("Enter index of book to return (or several, e.g. 1 3 5 or 2-4): ");
+            List<Integer> indexes = parseIndexes(readLine());
+
+            if (indexes == null) {
+                out.println("ERROR: Invalid integer. Try again!");
+                continue;
+            }
+
+            if (indexes.contains(0)) {
+                return; // exit
+            }
+
+            if (indexes.stream().anyMatch(index -> index < 1 || index > borrowedBooks.size())) {
+                out.println("ERROR: Invalid index. Try again!");
+                continue;
+            }
+
+            if (indexes.size() > 1) {
+                List<Book> books = new ArrayList<>(indexes.size());
+                for (int index : indexes) {
+                    books.add(borrowedBooks.get(index - 1));
+                }
+                printBatchResults(service.returnAll(currentUser, books), "You returned",
+                        "has already been returned", "has already been returned");
+                break;
+            }
+
+            Book returnedBook = borrowedBooks.get(indexes.get(0) - 1);
+            if (!service.returnBook(currentUser, returnedBook)) {
+                out.println("ERROR: That book has already been returned!");
+                return;
+            }
+
+            out.printf("You returned \"%s\" by %s\n", returnedBook.getTitle(), returnedBook.getAuthor());
+            break;
+        }
+    }
+
+    // One line per book of a batch, in the order they were given.
+    private void printBatchResults(Map<Book, Library.BatchResult> results, String done, String notAvailable, String notFound) {
+        for (Map.Entry<Book, Library.BatchResult> result : results.entrySet()) {
+            Book book = result.getKey();
+            switch (result.getValue()) {
+                case DONE:
+                    out.printf("%s \"%s\" by %s\n", done, book.getTitle(), book.getAuthor());
+                    break;
+                case NOT_FOUND:
+                    out.printf("ERROR: \"%s\" %s!\n", book.getTitle(), notFound);
+                    break;
+                default:
+                    out.printf("ERROR: \"%s\" %s!\n", book.getTitle(), notAvailable);
+                    break;
+            }
+        }
+    }
+
+    private void showBorrowedBooks() {
+        if (!currentUser.hasBorrowedBooks()) {
+            out.println("You have not borrowed any books!");
+            return;
+        }
+
+        for (Book borrowedBook : catalog.getBorrowedBooks(currentUser)) {
+            // read once, another session of the same user may return the book while this one prints
+            LocalDateTime loanDate = borrowedBook.getLoanDate();
+            if (loanDate == null || borrowedBook.isHeld()) {
+                continue; // returned since the list was made
+            }
+            out.println("Title: " + borrowedBook.getTitle());
+            out.println("Author: " + borrowedBook.getAuthor());
+            out.println("Loan date: " + loanDate);
+            LocalDateTime returnDate = loanDate.plus(Library.LOAN_DURATION);
+            out.println("Return date: " + returnDate +
+                    (LocalDateTime.now().isAfter(returnDate) ? " (Is overdue!)" : " (To be returned in: " + Duration.between(loanDate, returnDate) + ")"));
+            out.println();
+        }
+    }
+
+    private void searchBook() {
+        while (true) {
+            out.println("Search by:");
+            out.println("1. Title");
+            out.println("2. Author");
+            out.println("3. Description");
+            out.println("4. Query");
+            out.println("0. Exit");
+
+            int choice = getIntegerFromUser("Enter choice: ");
+
+            if (choice == 0) {
+                return;
+            }
+
+            if (choice > 4 || choice < 0) {
+                out.println("ERROR: Invalid choice! Try again!");
+                continue;
+            }
+
+            if (choice == 4) {
+                if (query()) {
+                    break;
+                }
+                continue;
+            }
+
+            out.print("Enter search string: ");
+            String searchString = readLine();
+
+            out.println("\nResult:");
+            LibraryService.SearchField field = choice == 1 ? LibraryService.SearchField.TITLE
+                    : choice == 2 ? LibraryService.SearchField.AUTHOR : LibraryService.SearchField.DESCRIPTION;
+            LibraryService.SearchResult result = service.search(field, searchString);
+            List<Book> matches = result.getBooks();
+
+            if (result.isFuzzy() && !matches.isEmpty()) {
+                out.println("No exact matches, did you mean:");
+            }
+
+            if(matches.isEmpty()) {
+                out.println("No results matched your criteria!");
+            } else {
+                printBookList(matches::stream);
+            }
+
+            break;
+        }
+    }
+
+    // false if the query could not be parsed
+    private boolean query() {
+        out.println("Search with title:, author:, description:, borrower:<user name>, available, borrowed, held");
+        out.println("and overdue, combined with AND, OR, NOT and parentheses, and maybe LIMIT <n> at the end.");
+        out.println("Start with EXPLAIN to see how the query is run. For example:");
+        out.println("  author:tolkien AND available AND NOT overdue LIMIT 10");
+        out.print("Enter query: ");
+        String text = readLine();
+
+        QueryPlan.Result result;
+        try {
+            result = service.query(text);
+        } catch (IllegalArgumentException e) {
+            out.println("ERROR: " + e.getMessage());
+            return false;
+        }
+
+        out.println("\nResult:");
+        if (result.getBooks().isEmpty()) {
+            out.println("No results matched your criteria!");
+        } else {
+            printBookList(result.getBooks()::stream);
+        }
+
+        if (result.getPlan().getQuery().isExplain()) {
+            out.println();
+            out.println(result.report());
+        }
+        return true;
+    }
+
+    private void borrowBook() {
+        // books held for the user come first, they are not available to anybody else
+        List<Book> heldBooks = library.getBooksHeldFor(currentUser);
+        CatalogVersion version = catalog.snapshot();
+        if(heldBooks.isEmpty() && version.countAvailable() == 0) {
+            out.println("There are no books in the library!");
+            return;
+        }
+
+        Pager<Book> pager = new Pager<>(() -> Stream.concat(heldBooks.stream(), version.streamAvailableBooks()), true,
+                (row, book) -> formatBook(row.append(book.isHeld() ? "(Held for you) " : ""), book));
+
+        while (true) {
+            out.println("Books in library:");
+            List<Book> books = choose(pager, "Enter index of book to borrow (or several, e.g. 1 3 5 or 2-4): ", true);
+
+            if (books.isEmpty()) {
+                return; // exit
+            }
+
+            if (books.size() > 1) {
+                printBatchResults(service.borrowAll(currentUser, books), "You borrowed",
+                        "was just borrowed by somebody else", "is not in the library any more");
+                break;
+            }
+
+            Book bookToBorrow = books.get(0);
+            if (!service.borrow(currentUser, bookToBorrow)) {
+                out.println("ERROR: Somebody else just borrowed that book! Try again!");
+                continue;
+            }
+
+            out.printf("You borrowed \"%s\" by %s\n", bookToBorrow.getTitle(), bookToBorrow.getAuthor());
+
+            break;
+        }
+    }
+
+    private void showBookDetails() {
+        Pager<Book> pager = new Pager<>(catalog.snapshot()::stream, true, Session::formatBook);
+        Book book = choose(pager, "Enter index of book to see its detailed info: ");
+
+        if (book == null) {
+            return;
+        }
+
+        out.println("\nTitle: " + book.getTitle());
+        out.println("Author: " + book.getAuthor());
+        out.println("Description: " + book.getDescription());
+        out.println("Available: " + catalog.isAvailable(book));
+    }
+
+    private void showAllBooks() {
+        printBookList(catalog.snapshot()::stream);
+    }
+
+    private void printBookList(Supplier<Stream<Book>> books) {
+        showPaged(new Pager<>(books, false, Session::formatBook));
+    }
+
+    private static void formatBook(StringBuilder row, Book book) {
+        row.append('"').append(book.getTitle()).append("\" by ").append(book.getAuthor());
+    }
+
+    // Shows a listing page by page for as long as the user asks for more.
+    private <T> void showPaged(Pager<T> pager) {
+        pager.printPage(out);
+
+        while (pager.hasNextPage() || pager.hasPreviousPage()) {
+            out.print("Enter n for next page, p for previous page or nothing to stop: ");
+            String input = readLine().trim();
+
+            if (input.isEmpty()) {
+                return;
+            }
+
+            if (turnPage(pager, input)) {
+                pager.printPage(out);
+            } else {
+                out.println("ERROR: Invalid choice! Try again!");
+            }
+        }
+    }
+
+    // Lets the user pick a row of a numbered listing, returns null if the user chose to exit.
+    private <T> T choose(Pager<T> pager, String prompt) {
+        List<T> rows = choose(pager, prompt, false);
+        return rows.isEmpty() ? null : rows.get(0);
+    }
+
+    // With several, the user can pick any number of rows at once (e.g. "1 3 5" or "2-4"). Returns
+    // the rows in the order given, none if the user chose to exit.
+    private <T> List<T> choose(Pager<T> pager, String prompt, boolean several) {
+        pager.printPage(out);
+
+        while (true) {
+            if (pager.hasNextPage()) {
+                out.println("n. Next page");
+            }
+            if (pager.hasPreviousPage()) {
+                out.println("p. Previous page");
+            }
+            out.println("0. Exit");
+
+            out.print(prompt);
+            String input = readLine().trim();
+
+            if (turnPage(pager, input)) {
+                pager.printPage(out);
+                continue;
+            }
+
+            List<Integer> indexes = parseIndexes(input);
+            if (indexes == null || (!several && indexes.size() > 1)) {
+                out.println("ERROR: Invalid integer. Try again!");
+                continue;
+            }
+
+            if (indexes.contains(0)) {
+                return List.of();
+            }
+
+            List<T> rows = new ArrayList<>(indexes.size());
+            for (int index : indexes) {
+                T row = pager.get(index - 1); // make index zero-based
+                if (row == null) {
+                    break;
+                }
+                rows.add(row);
+            }
+            if (rows.size() < indexes.size()) {
+                out.println("ERROR: Invalid index! Try again!");
+                continue;
+            }
+            return rows;
+        }
+    }
+
+    // "3", "1 3 5", "1,3,5" or ranges like "2-4"; null if that is not what the input is
+    private static List<Integer> parseIndexes(String input) {
+        List<Integer> indexes = new ArrayList<>();
+        try {
+            for (String part : input.trim().split("[\\s,]+")) {
+                int dash = part.indexOf('-', 1);
+                int first = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+                int last = dash < 0 ? first : Integer.parseInt(part.substring(dash + 1));
+                if (last < first || last - first > MAX_BATCH_SIZE) {
+                    return null;
+                }
+                for (int index = first; index <= last; index++) {
+                    indexes.add(index);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return indexes.isEmpty() || indexes.size() > MAX_BATCH_SIZE ? null : indexes;
+    }
+
+    private boolean turnPage(Pager<?> pager, String input) {
+        if (input.equalsIgnoreCase("n")) {
+            return pager.nextPage();
+        }
+        if (input.equalsIgnoreCase("p")) {
+            return pager.previousPage();
+        }
+        return false;
+    }
+
+    private void showLoginMessages() {
+        for (Book book : library.getBooksHeldFor(currentUser)) {
+            showHoldMessage(book);
+        }
+        for (Book borrowedBook : catalog.getBorrowedBooks(currentUser)) {
+            if(library.isOverdue(borrowedBook)) {
+                out.println("MESSAGE: \"" + borrowedBook.getTitle() + "\" is overdue!");
+            }
+        }
+    }
+
+    private int getIntegerFromUser(String prompt) {
+        while (true) {
+            try {
+                out.print(prompt);
+                return Integer.parseInt(readLine());
+            } catch (NumberFormatException e) {
+                out.println("ERROR: Invalid integer. Try again!");
+            }
+        }
+    }
+}
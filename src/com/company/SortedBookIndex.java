@@ -0,0 +1,65 @@
+package com.company;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+
+// Keeps books ordered by one of their fields. Each book's collation key is computed once when it is
+// added, so listing in order is a walk over the map instead of a sort with string comparisons.
+public class SortedBookIndex {
+    private final Function<Book, String> keyExtractor;
+    private final Collator collator;
+
+    private final NavigableMap<SortKey, Book> books = new ConcurrentSkipListMap<>();
+    private final Map<Integer, SortKey> keys = new ConcurrentHashMap<>();
+
+    public SortedBookIndex(Function<Book, String> keyExtractor, Collator collator) {
+        this.keyExtractor = keyExtractor;
+        this.collator = collator;
+    }
+
+    // books with equal keys are kept in the order they were added
+    private static class SortKey implements Comparable<SortKey> {
+        private final CollationKey collationKey;
+        private final int bookId;
+
+        SortKey(CollationKey collationKey, int bookId) {
+            this.collationKey = collationKey;
+            this.bookId = bookId;
+        }
+
+        @Override
+        public int compareTo(SortKey other) {
+            int result = collationKey.compareTo(other.collationKey);
+            return result != 0 ? result : Integer.compare(bookId, other.bookId);
+        }
+    }
+
+    public void add(Book book) {
+        CollationKey collationKey;
+        synchronized (collator) { // Collator is not thread-safe
+            collationKey = collator.getCollationKey(keyExtractor.apply(book));
+        }
+
+        SortKey key = new SortKey(collationKey, book.getId());
+        keys.put(book.getId(), key);
+        books.put(key, book);
+    }
+
+    public void remove(Book book) {
+        SortKey key = keys.remove(book.getId());
+        if (key != null) {
+            books.remove(key);
+        }
+    }
+
+    public Collection<Book> getBooks() {
+        return Collections.unmodifiableCollection(books.values());
+    }
+}
@@ -0,0 +1,126 @@
+package com.company;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+public class TrigramIndex<T> {
+    private final Function<T, String> keyExtractor;
+
+    private final Map<Long, PostingList> postings = new HashMap<>();
+    private final Map<T, Integer> ids = new IdentityHashMap<>();
+
+    // indexed by id, null once the item has been removed
+    private final List<T> items = new ArrayList<>();
+    private final List<String> keys = new ArrayList<>();
+
+    public TrigramIndex(Function<T, String> keyExtractor) {
+        this.keyExtractor = keyExtractor;
+    }
+
+    public void add(T item) {
+        if (ids.containsKey(item)) {
+            return;
+        }
+
+        int id = items.size();
+        String key = keyExtractor.apply(item).toLowerCase();
+
+        ids.put(item, id);
+        items.add(item);
+        keys.add(key);
+
+        for (int i = 0; i + 3 <= key.length(); i++) {
+            // ids are handed out in increasing order, so appending keeps every posting list sorted
+            postings.computeIfAbsent(trigram(key, i), k -> new PostingList()).append(id);
+        }
+    }
+
+    public void remove(T item) {
+        Integer id = ids.remove(item);
+        if (id == null) {
+            return;
+        }
+
+        String key = keys.get(id);
+        for (int i = 0; i + 3 <= key.length(); i++) {
+            long trigram = trigram(key, i);
+            PostingList postingList = postings.get(trigram);
+            if (postingList != null && postingList.remove(id) && postingList.size == 0) {
+                postings.remove(trigram);
+            }
+        }
+
+        items.set(id, null);
+        keys.set(id, null);
+    }
+
+    // Returns every indexed item whose key contains the given (lowercase) search string.
+    public List<T> search(String searchString) {
+        List<T> result = new ArrayList<>();
+
+        if (searchString.length() < 3) {
+            // too short to form a trigram, check the stored keys directly
+            for (int id = 0; id < items.size(); id++) {
+                if (keys.get(id) != null && keys.get(id).contains(searchString)) {
+                    result.add(items.get(id));
+                }
+            }
+            return result;
+        }
+
+        PostingList[] lists = new PostingList[searchString.length() - 2];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = postings.get(trigram(searchString, i));
+            if (lists[i] == null) {
+                return result;
+            }
+        }
+
+        // start with the shortest posting list so candidates are discarded as early as possible
+        Arrays.sort(lists, (l1, l2) -> Integer.compare(l1.size, l2.size));
+
+        PostingList shortest = lists[0];
+        for (int i = 0; i < shortest.size; i++) {
+            int id = shortest.ids[i];
+
+            boolean inAll = true;
+            for (int j = 1; j < lists.length && inAll; j++) {
+                inAll = lists[j].contains(id);
+            }
+
+            // the trigrams may all be present without forming the search string, so confirm the match
+            if (inAll && keys.get(id).contains(searchString)) {
+                result.add(items.get(id));
+            }
+        }
+
+        return result;
+    }
+
+    // An upper bound for the number of items search() finds, from the posting list sizes alone: the
+    // shortest list of the search string's trigrams, or every item if it is too short to have any.
+    public int estimate(String searchString) {
+        if (searchString.length() < 3) {
+            return ids.size();
+        }
+
+        int estimate = ids.size();
+        for (int i = 0; i + 3 <= searchString.length(); i++) {
+            PostingList postingList = postings.get(trigram(searchString, i));
+            if (postingList == null) {
+                return 0;
+            }
+            estimate = Math.min(estimate, postingList.size);
+        }
+        return estimate;
+    }
+
+    private static long trigram(String s, int start) {
+        return ((long) s.charAt(start) << 32) | ((long) s.charAt(start + 1) << 16) | s.charAt(start + 2);
+    }
+}
@@ -1,13 +1,18 @@
 package com.company;
 
 import java.io.Serializable;
-import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 public class User implements Serializable {
+    private static final long serialVersionUID = 1359437236535361471L; // pinned so that old .ser files can still be migrated
+
+    private static final int[] NO_BOOKS = new int[0];
+
     private String name;
-    private List<Book> borrowedBooks = new ArrayList<>();
+    // A user can be logged in to several sessions, and loans are few and rarely change: the array is
+    // replaced as a whole on every change and never modified, so readers use it without locking.
+    private volatile int[] borrowedBookIds = NO_BOOKS;
 
     public User(String name) {
         this.name = name;
@@ -18,29 +23,75 @@ public class User implements Serializable {
     }
 
     public void borrowBook(Book book) {
-        book.setLoanDate(LocalDateTime.now());
-        borrowedBooks.add(book);
+        restoreLoan(book.getId());
+    }
+
+    // false if the book was not borrowed by this user, or was just returned from another session
+    public synchronized boolean returnBook(Book book) {
+        int[] ids = borrowedBookIds;
+        int index = indexOf(ids, book.getId());
+        if (index < 0) {
+            return false;
+        }
+        int[] newIds = Arrays.copyOf(ids, ids.length - 1);
+        System.arraycopy(ids, index + 1, newIds, index, ids.length - index - 1);
+        borrowedBookIds = newIds.length == 0 ? NO_BOOKS : newIds;
+        return true;
     }
 
-    public Book returnBook(int index) {
-        Book returnedBook = borrowedBooks.remove(index);
-        returnedBook.setLoanDate(null);
-        return returnedBook;
+    // re-registers a loan read from disk, the loan date is stored with the book
+    public synchronized void restoreLoan(int bookId) {
+        int[] ids = borrowedBookIds;
+        if (indexOf(ids, bookId) < 0) {
+            int[] newIds = Arrays.copyOf(ids, ids.length + 1);
+            newIds[ids.length] = bookId;
+            borrowedBookIds = newIds;
+        }
+    }
+
+    // A copy with the user's current loans, so that a snapshot can be written while the loans change.
+    public User copy() {
+        User copy = isLibrarian() ? new Librarian(name) : new User(name);
+        copy.borrowedBookIds = borrowedBookIds;
+        return copy;
     }
 
     public boolean isLibrarian() {
         return this instanceof Librarian;
     }
 
-    public List<Book> getBorrowedBooks() {
-        return new ArrayList<>(borrowedBooks);
+    public boolean hasBorrowedBooks() {
+        return borrowedBookIds.length > 0;
+    }
+
+    public int getBorrowedBookCount() {
+        return borrowedBookIds.length;
+    }
+
+    // in the order the books were borrowed, read from the user's current loans without copying them
+    public IntStream getBorrowedBookIds() {
+        return Arrays.stream(borrowedBookIds);
+    }
+
+    // the array itself, for readers in this package that promise not to change it
+    int[] borrowedBookIds() {
+        return borrowedBookIds;
+    }
+
+    private static int indexOf(int[] ids, int bookId) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == bookId) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     @Override
     public String toString() {
         return this.getClass().getSimpleName() + "{" +
                 "name='" + name + '\'' +
-                ", borrowedBooks=" + borrowedBooks +
+                ", borrowedBookIds=" + Arrays.toString(borrowedBookIds) +
                 '}';
     }
 }
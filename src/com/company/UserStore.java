@@ -0,0 +1,354 @@
+package com.company;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+// The users and their loans. The users file is only a directory (see BinaryCodec): every user's
+// loans are a record of their own in a loans file, and are read with a single positional read when
+// the user logs in or a librarian looks at them. A snapshot appends a new record for each user whose
+// loans changed and rewrites the directory, the loans of everybody else are not touched.
+//
+// Records are never overwritten, so the backup directory stays valid. Once old records take up most
+// of the loans file, the current ones are copied to the next generation of the file; the generation
+// before that is kept for the backup directory and deleted by the next successful save.
+//
+// Loans file record: length of the whole record (int), CRC32 of the rest (int), the user name, the
+// number of loans (int) and the ids of the borrowed books (int each).
+public class UserStore {
+    static final String LOANS_FILE_PREFIX = "loans.";
+    private static final String LOANS_FILE_SUFFIX = ".dat";
+    // the loans file is compacted when it is larger than twice its current records plus this
+    private static final long COMPACTION_SLACK = 1024 * 1024;
+
+    private static final LatencyHistogram LOAD_LOANS = Metrics.latency("io.loadLoans");
+    private static final LatencyHistogram SAVE_LOANS = Metrics.latency("io.saveLoans");
+
+    private final Path usersFile;
+
+    private List<User> users;
+    private Map<String, User> usersByName;
+
+    // where the current loans record of each user is, users without loans have none
+    private final Map<String, Location> locations = new ConcurrentHashMap<>();
+    // users whose loans have been read (or never were on disk), grows as users log in
+    private final Set<User> loaded = ConcurrentHashMap.newKeySet();
+    // users whose loans changed since the last save
+    private final Set<User> changed = ConcurrentHashMap.newKeySet();
+
+    private int generation;
+    private FileChannel loans;
+    private long liveBytes;
+
+    public static class Location {
+        final long offset;
+        final int length;
+
+        public Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    public UserStore(Path usersFile) {
+        this.usersFile = usersFile;
+    }
+
+    // Writes a new store holding the given users and their loans, e.g. the default users.
+    public static boolean saveAll(Path usersFile, Collection<User> users) {
+        return saveAll(usersFile, users, 0);
+    }
+
+    // with the journal sequence number the users are up to date with, see BinaryCodec.saveUsers()
+    public static boolean saveAll(Path usersFile, Collection<User> users, long sequence) {
+        Map<String, Location> locations = new HashMap<>();
+        try (FileChannel channel = FileChannel.open(loansFile(usersFile, 0), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = 0;
+            for (User user : users) {
+                if (!user.hasBorrowedBooks()) {
+                    continue;
+                }
+                ByteBuffer record = encode(user.getName(), user.borrowedBookIds());
+                locations.put(user.getName(), new Location(position, record.remaining()));
+                position += write(channel, record, position);
+            }
+            channel.force(true);
+            Metrics.addBytesWritten(position);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return BinaryCodec.saveUsers(usersFile.toString(), new BinaryCodec.UserDirectory(new ArrayList<>(users), locations, 0), sequence);
+    }
+
+    // Reads the directory from the given users file (the current one or its backup). Loans stored in
+    // a file from before version 3 are restored right away and written to a loans file by the next save.
+    public void load(String filename) throws IOException {
+        BinaryCodec.UserDirectory directory = BinaryCodec.loadUsers(filename);
+        if (directory == null) {
+            throw new IOException("Could not read " + filename);
+        }
+
+        users = Collections.unmodifiableList(directory.users);
+        usersByName = new HashMap<>();
+        for (User user : users) {
+            usersByName.put(user.getName(), user);
+        }
+
+        if (directory.loansGeneration < 0) {
+            loaded.addAll(users);
+            for (User user : users) {
+                if (user.hasBorrowedBooks()) {
+                    changed.add(user);
+                }
+            }
+        } else {
+            generation = directory.loansGeneration;
+            locations.putAll(directory.loans);
+            for (Location location : locations.values()) {
+                liveBytes += location.length;
+            }
+        }
+
+        loans = FileChannel.open(loansFile(usersFile, generation), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    public List<User> getUsers() {
+        return users;
+    }
+
+    // without loading the user's loans
+    public User getUser(String name) {
+        return usersByName.get(name);
+    }
+
+    // Reads the user's loans if that has not been done yet, and fills in the user as the borrower of
+    // the books (the books file only knows that they are borrowed and since when).
+    public void loadLoans(User user, Catalog catalog) {
+        if (loaded.contains(user)) {
+            return;
+        }
+
+        synchronized (this) {
+            if (loaded.contains(user)) {
+                return; // loaded by another session in the meantime
+            }
+
+            Location location = locations.get(user.getName());
+            if (location == null) {
+                loaded.add(user);
+                return;
+            }
+
+            long start = System.nanoTime();
+            try {
+                for (int bookId : read(location, user.getName())) {
+                    Book book = catalog.getBook(bookId);
+                    if (book != null && book.restoreBorrower(user)) {
+                        user.restoreLoan(bookId);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("ERROR: Could not read the loans of " + user.getName() + "!");
+            } finally {
+                loaded.add(user);
+                LOAD_LOANS.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    public void markChanged(User user) {
+        changed.add(user);
+    }
+
+    // after a failed save, so that the next one writes them again
+    public void markChanged(Collection<User> users) {
+        changed.addAll(users);
+    }
+
+    // The loans of the users that changed since the last call. Called while no loans can change, so
+    // that they match the journal position the snapshot is taken at.
+    public Map<User, int[]> takeChanges() {
+        Map<User, int[]> changes = new HashMap<>();
+        for (User user : changed) {
+            changes.put(user, user.borrowedBookIds());
+        }
+        changed.removeAll(changes.keySet());
+        return changes;
+    }
+
+    // Appends the changed loans and writes a new directory with the given journal sequence number.
+    // Only called by one thread at a time (the snapshot writer).
+    public boolean save(Map<User, int[]> changes, long sequence) {
+        long start = System.nanoTime();
+        try {
+            long position = loans.size();
+            long appended = 0;
+            Map<String, Location> written = new HashMap<>();
+            for (Map.Entry<User, int[]> change : changes.entrySet()) {
+                if (change.getValue().length == 0) {
+                    written.put(change.getKey().getName(), null);
+                    continue;
+                }
+                ByteBuffer record = encode(change.getKey().getName(), change.getValue());
+                written.put(change.getKey().getName(), new Location(position + appended, record.remaining()));
+                appended += write(loans, record, position + appended);
+            }
+            if (appended > 0) {
+                loans.force(true);
+                Metrics.addBytesWritten(appended);
+            }
+
+            for (Map.Entry<String, Location> entry : written.entrySet()) {
+                Location previous = entry.getValue() != null
+                        ? locations.put(entry.getKey(), entry.getValue()) : locations.remove(entry.getKey());
+                liveBytes += (entry.getValue() != null ? entry.getValue().length : 0) - (previous != null ? previous.length : 0);
+            }
+            if (position + appended > 2 * liveBytes + COMPACTION_SLACK) {
+                compact();
+            }
+
+            if (!BinaryCodec.saveUsers(usersFile.toString(), new BinaryCodec.UserDirectory(users, locations, generation), sequence)) {
+                return false;
+            }
+            // the backup directory refers to this generation or the one before, nothing refers to older ones
+            Files.deleteIfExists(loansFile(usersFile, generation - 2));
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            SAVE_LOANS.record(System.nanoTime() - start);
+        }
+    }
+
+    public void close() {
+        try {
+            loans.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Copies the current records to the next generation of the loans file.
+    private void compact() throws IOException {
+        int nextGeneration = generation + 1;
+        FileChannel next = FileChannel.open(loansFile(usersFile, nextGeneration), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        Map<String, Location> moved = new HashMap<>();
+        long position = 0;
+        try {
+            for (Map.Entry<String, Location> entry : locations.entrySet()) {
+                ByteBuffer record = ByteBuffer.allocate(entry.getValue().length);
+                readFully(loans, record, entry.getValue().offset);
+                record.flip();
+                moved.put(entry.getKey(), new Location(position, entry.getValue().length));
+                position += write(next, record, position);
+            }
+            next.force(true);
+            Metrics.addBytesWritten(position);
+        } catch (IOException e) {
+            next.close();
+            throw e;
+        }
+
+        // loadLoans() reads under the same lock, so it never sees a location of the other file
+        FileChannel previous;
+        synchronized (this) {
+            previous = loans;
+            loans = next;
+            generation = nextGeneration;
+            locations.putAll(moved);
+            liveBytes = position;
+        }
+        previous.close();
+    }
+
+    private int[] read(Location location, String name) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(location.length);
+        readFully(loans, record, location.offset);
+        record.flip();
+        Metrics.addBytesRead(location.length);
+
+        if (record.getInt() != location.length) {
+            throw new IOException("Loans record of " + name + " is damaged (length mismatch)");
+        }
+        int checksum = record.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(record.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Loans record of " + name + " is damaged (checksum mismatch)");
+        }
+
+        byte[] nameBytes = new byte[record.getInt()];
+        record.get(nameBytes);
+        if (!name.equals(new String(nameBytes, StandardCharsets.UTF_8))) {
+            throw new IOException("Loans record of " + name + " belongs to somebody else");
+        }
+
+        int[] bookIds = new int[record.getInt()];
+        for (int i = 0; i < bookIds.length; i++) {
+            bookIds[i] = record.getInt();
+        }
+        return bookIds;
+    }
+
+    private static ByteBuffer encode(String name, int[] bookIds) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int length = 3 * Integer.BYTES + nameBytes.length + Integer.BYTES + bookIds.length * Integer.BYTES;
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length);
+        record.putInt(0); // patched below
+        record.putInt(nameBytes.length);
+        record.put(nameBytes);
+        record.putInt(bookIds.length);
+        for (int bookId : bookIds) {
+            record.putInt(bookId);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 2 * Integer.BYTES, length - 2 * Integer.BYTES);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static int write(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        int length = data.remaining();
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+        return length;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            int read = channel.read(data, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of the loans file");
+            }
+            position += read;
+        }
+    }
+
+    private static Path loansFile(Path usersFile, int generation) {
+        return usersFile.resolveSibling(LOANS_FILE_PREFIX + generation + LOANS_FILE_SUFFIX);
+    }
+}